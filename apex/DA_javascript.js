@@ -72,6 +72,13 @@ function uploadFromApex(empId, app_cs) {
 
     // Extract file
     var file = fileInput.files[0];
+
+    // Large files go through the chunked, resumable upload API
+    if (file.size > CHUNKED_UPLOAD_THRESHOLD) {
+        uploadInChunks(empId, app_cs, file);
+        return;
+    }
+
     var reader = new FileReader();
     
     // Get session information
@@ -121,5 +128,151 @@ function uploadFromApex(empId, app_cs) {
     reader.readAsArrayBuffer(file);
 }
 
+var CHUNKED_UPLOAD_THRESHOLD = 16 * 1024 * 1024; // 16 MB
+var CHUNK_SIZE = 8 * 1024 * 1024;                // 8 MB per chunk
+var PARALLEL_CHUNKS = 3;                         // chunks in flight at once
+var CHUNK_RETRIES = 3;                           // attempts per chunk
+
+/**
+ * Upload File in Chunks (resumable)
+ * Starts (or resumes) an upload, sends missing chunks in parallel and commits it.
+ * @param {number} empId - Employee ID from APEX process
+ * @param {string} app_cs - Application CS token from APEX process
+ * @param {File} file - File selected by the user
+ */
+function uploadInChunks(empId, app_cs, file) {
+    var uploadsEndpoint = 'http://172.16.250.162:9001/rest_token/SaveDocumentV2/uploads';
+    var sessionId = ('pInstance');
+    var resumeKey = 'upload:' + empId + ':' + file.name + ':' + file.size;
+
+    // Send a request with the session headers used by every chunked call
+    function send(method, url, headers, body, callback) {
+        var xhr = new XMLHttpRequest();
+        xhr.open(method, url, true);
+        xhr.setRequestHeader('p_app_id', app_cs);
+        xhr.setRequestHeader('p_session_id', sessionId);
+        for (var name in headers) {
+            xhr.setRequestHeader(name, headers[name]);
+        }
+        xhr.onload = function() {
+            callback(xhr.status, xhr.responseText);
+        };
+        xhr.onerror = function() {
+            callback(0, 'Network error');
+        };
+        xhr.send(body);
+    }
+
+    // Build the list of chunk offsets not yet covered by the "received" ranges
+    function missingChunks(received) {
+        var covered = [];
+        if (received) {
+            received.split(',').forEach(function(range) {
+                var bounds = range.split('-');
+                covered.push([Number(bounds[0]), Number(bounds[1])]);
+            });
+        }
+        var chunks = [];
+        for (var start = 0; start < file.size; start += CHUNK_SIZE) {
+            var end = Math.min(start + CHUNK_SIZE, file.size) - 1;
+            var done = covered.some(function(r) { return r[0] <= start && r[1] >= end; });
+            if (!done) {
+                chunks.push(start);
+            }
+        }
+        return chunks;
+    }
+
+    // Send all missing chunks with bounded parallelism, then commit
+    function sendChunks(uploadId, chunks) {
+        var next = 0;
+        var active = 0;
+        var failed = false;
+
+        function sendChunk(start, attempt) {
+            var end = Math.min(start + CHUNK_SIZE, file.size) - 1;
+            send('PUT', uploadsEndpoint + '/' + uploadId,
+                {
+                    'Content-Type': 'application/octet-stream',
+                    'Content-Range': 'bytes ' + start + '-' + end + '/' + file.size
+                },
+                file.slice(start, end + 1),
+                function(status, response) {
+                    if (status === 200) {
+                        active--;
+                        pump();
+                    } else if (attempt < CHUNK_RETRIES) {
+                        sendChunk(start, attempt + 1);
+                    } else if (!failed) {
+                        failed = true;
+                        apex.message.alert('Upload interrupted, select the file again to resume: ' + response);
+                    }
+                });
+        }
+
+        function pump() {
+            if (failed) {
+                return;
+            }
+            while (active < PARALLEL_CHUNKS && next < chunks.length) {
+                active++;
+                sendChunk(chunks[next++], 1);
+            }
+            if (active === 0 && next === chunks.length) {
+                commit(uploadId);
+            }
+        }
+
+        pump();
+    }
+
+    function commit(uploadId) {
+        send('POST', uploadsEndpoint + '/' + uploadId + '/commit', {}, null, function(status, response) {
+            if (status === 200) {
+                sessionStorage.removeItem(resumeKey);
+                apex.message.showPageSuccess('Employee saved and file uploaded successfully');
+            } else {
+                apex.message.alert('Upload failed: ' + response);
+            }
+        });
+    }
+
+    function start() {
+        send('POST', uploadsEndpoint,
+            {
+                'X-Doc-Id': empId,
+                'X-File-Name': file.name,
+                'X-Doc-Type': 'EMP_DOC',
+                'X-Upload-Length': file.size
+            },
+            null,
+            function(status, response) {
+                if (status !== 201) {
+                    apex.message.alert('Upload failed: ' + response);
+                    return;
+                }
+                var uploadId = JSON.parse(response).uploadId;
+                sessionStorage.setItem(resumeKey, uploadId);
+                sendChunks(uploadId, missingChunks(''));
+            });
+    }
+
+    // Resume a previous upload of the same file when the server still knows it
+    var previousUploadId = sessionStorage.getItem(resumeKey);
+    if (!previousUploadId) {
+        start();
+        return;
+    }
+
+    send('GET', uploadsEndpoint + '/' + previousUploadId, {}, null, function(status, response) {
+        if (status !== 200) {
+            sessionStorage.removeItem(resumeKey);
+            start();
+            return;
+        }
+        sendChunks(previousUploadId, missingChunks(JSON.parse(response).received));
+    });
+}
+
 // Execute saveEmployee function
 saveEmployee();
@@ -5,7 +5,7 @@ DECLARE
     l_file      VARCHAR2(4000);
     l_url       VARCHAR2(4000);
 
-    c_fileserver CONSTANT VARCHAR2(200);
+    c_fileserver CONSTANT VARCHAR2(200) := 'http://weblogic_server:port/rest_token/AccessToDocumentV2/';
 BEGIN
     l_empno := apex_application.g_x01;
 
@@ -62,7 +62,7 @@ BEGIN
 
     BEGIN
         l_file := json_value(l_response,'$.file');
-        apex_debug.message('TEMP FILE=' || l_file);
+        apex_debug.message('DOWNLOAD TOKEN=' || l_file);
     EXCEPTION
         WHEN OTHERS THEN
             apex_json.open_object;
@@ -97,6 +97,74 @@ END;');
       p_access_method      => 'IN',
       p_comments           => NULL);
 
+  -- Batch variant: one POST validates many (session_id, emp_no, cs) tuples
+  -- and joins APEX_WORKSPACE_SESSIONS once for the whole batch.
+  -- Body:     {"items":[{"session_id":"...","emp_no":"...","cs":"..."},...]}
+  -- Response: {"items":[{"idx":1,"is_valid":"1"},...]} in request order
+  ORDS.DEFINE_TEMPLATE(
+      p_module_name    => 'session_validation',
+      p_pattern        => 'batch',
+      p_priority       => 0,
+      p_etag_type      => 'NONE',
+      p_etag_query     => NULL,
+      p_comments       => NULL);
+
+  ORDS.DEFINE_HANDLER(
+      p_module_name    => 'session_validation',
+      p_pattern        => 'batch',
+      p_method         => 'POST',
+      p_source_type    => 'plsql/block',
+      p_mimes_allowed  => 'application/json',
+      p_comments       => NULL,
+      p_source         => 
+'DECLARE
+  v_first BOOLEAN := TRUE;
+BEGIN
+  sys.htp.p(''{"items":['');
+
+  FOR r IN (
+    SELECT t.idx,
+           CASE
+             WHEN s.apex_session_id IS NULL THEN 0
+             WHEN t.cs IS NULL THEN 0
+             -- A bad emp_no fails its own row, not the whole batch
+             WHEN TO_NUMBER(t.emp_no DEFAULT NULL ON CONVERSION ERROR) IS NULL THEN 0
+             ELSE edu.CHECK_CS(TO_NUMBER(t.emp_no DEFAULT NULL ON CONVERSION ERROR), t.session_id, t.cs)
+           END AS is_valid
+    FROM   JSON_TABLE(:body_text, ''$.items[*]''
+             COLUMNS (idx        FOR ORDINALITY,
+                      session_id VARCHAR2(64)  PATH ''$.session_id'',
+                      emp_no     VARCHAR2(50)  PATH ''$.emp_no'',
+                      cs         VARCHAR2(64)  PATH ''$.cs'')) t
+    LEFT JOIN (SELECT DISTINCT TO_CHAR(apex_session_id) AS apex_session_id
+               FROM   APEX_WORKSPACE_SESSIONS
+               WHERE  session_life_timeout_on > SYSTIMESTAMP
+               AND    session_idle_timeout_on > SYSTIMESTAMP) s
+           ON s.apex_session_id = t.session_id
+    ORDER BY t.idx
+  ) LOOP
+    IF NOT v_first THEN
+      sys.htp.prn('','');
+    END IF;
+    v_first := FALSE;
+    sys.htp.prn(''{"idx":'' || r.idx || '',"is_valid":"'' || r.is_valid || ''"}'');
+  END LOOP;
+
+  sys.htp.p('']}'');
+  :status := 200;
+END;');
+
+  ORDS.DEFINE_PARAMETER(
+      p_module_name        => 'session_validation',
+      p_pattern            => 'batch',
+      p_method             => 'POST',
+      p_name               => 'X-APEX-STATUS-CODE',
+      p_bind_variable_name => 'status',
+      p_source_type        => 'HEADER',
+      p_param_type         => 'INT',
+      p_access_method      => 'OUT',
+      p_comments           => NULL);
+
     
         
 COMMIT;
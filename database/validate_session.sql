@@ -24,10 +24,10 @@ BEGIN
       -- Optional: Uncomment for workspace-specific validation
       -- AND s.workspace_id = p_app_id
       AND ROWNUM = 1; -- Optimize performance
-    IF p_app_cs IS NULL THEN
+    IF p_app_cs IS NULL OR v_is_valid = 0 THEN
       Return   v_is_valid;
     ELSE
-        -- Validate CS token if provided
+        -- Validate CS token if provided (session must also be alive)
 
         RETURN  check_cs(p_empno, p_session_id, p_app_cs);
     END IF;    
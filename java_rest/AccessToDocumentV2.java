@@ -1,221 +1,558 @@
 package tokenrest;
-/**
- *
- * @author Saeed Ahmadzad-Asl
- */
-import javax.ws.rs.Consumes;
+
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.OPTIONS;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.Properties;
 
+/**
+ * REST endpoint for reading stored documents with APEX session validation.
+ *
+ * @author Saeed Ahmadzad-Asl
+ */
+@Path("/AccessToDocumentV2")
+public class AccessToDocumentV2 {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(AccessToDocumentV2.class.getName());
+
+    // Response messages
+    private static final String RESPONSE_OK = "{\"status\":\"OK\",\"file\":\"%s\"}";
+    private static final String ERROR_MISSING_HEADERS = "{\"error\":\"Missing required headers\"}";
+    private static final String ERROR_INVALID_SESSION = "{\"error\":\"Invalid or expired APEX session\"}";
+    private static final String ERROR_INVALID_DOCTYPE = "{\"error\":\"Invalid document type\"}";
+    private static final String ERROR_NOT_FOUND = "{\"error\":\"Document not found\"}";
+    private static final String ERROR_INVALID_TOKEN = "{\"error\":\"Invalid or expired download token\"}";
+    private static final String ERROR_NO_PREVIEW = "{\"error\":\"No preview for this document\"}";
+    private static final String RESPONSE_PREVIEW_PENDING = "{\"status\":\"PENDING\"}";
+    private static final String ERROR_TEMPLATE = "{\"error\":\"%s\"}";
+    private static final String ERROR_VALIDATION_UNAVAILABLE = "{\"error\":\"Session validation unavailable, retry later\"}";
+    private static final String ERROR_BUSY = "{\"error\":\"Server busy, retry later\"}";
+
+    // HTTP header constants
+    private static final String HEADER_DOC_ID = "X-Doc-Id";
+    private static final String HEADER_FILE_NAME = "X-File-Name";
+    private static final String HEADER_DOC_TYPE = "X-Doc-Type";
+    private static final String HEADER_APP_ID = ApexSessionValidator.HEADER_APP_ID;
+    private static final String HEADER_SESSION_ID = ApexSessionValidator.HEADER_SESSION_ID;
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String DEFAULT_CONTENT_TYPE = MediaType.APPLICATION_OCTET_STREAM;
+    private static final String PREVIEW_CONTENT_TYPE = "image/jpeg";
+
+    // Previews are made within seconds of an upload
+    private static final int PREVIEW_RETRY_AFTER_SECONDS = 2;
+
+    // Documents are per-user: never store in shared caches, always revalidate with the ETag
+    private static final String CACHE_CONTROL = "private, no-cache";
+
+    // ============================================
+    // CORS PREFLIGHT HANDLER
+    // ============================================
 
-@Path("/SaveDocumentV2")
-public class SaveDocumentV2 {
+    @OPTIONS
+    public Response handleCorsPreflight() {
+        return Response.ok().build();
+    }
 
+    // ============================================
+    // TOKEN ISSUE ENDPOINT (download_process.sql)
+    // ============================================
+
+    /**
+     * Issues a short-lived download token for the stored document and returns it as "file".
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response prepareDocument(
+            @HeaderParam(HEADER_DOC_ID) String documentId,
+            @HeaderParam(HEADER_FILE_NAME) String fileName,
+            @HeaderParam(HEADER_DOC_TYPE) String documentType,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        boolean traced = RequestLog.isSampled(LOGGER);
+        if (traced) {
+            LOGGER.fine("========= AccessToDocumentV2 START =========");
+        }
 
+        try {
+            if (!validateHeaders(documentId, fileName, documentType, applicationId, sessionId)) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS);
+            }
 
+            if (!isSessionValid(applicationId, documentId, sessionId)) {
+                LOGGER.warning("❌ APEX session validation failed");
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
 
-private static final Logger logger =
-        Logger.getLogger(SaveDocumentV2.class.getName());
+            String basePath = SaveDocumentV2.resolveBasePath(documentType);
+            if (basePath == null) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+            }
 
+            if (resolveDocument(documentType, documentId, fileName) == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NOT_FOUND);
+            }
 
-private static final String PATH_FILE =
-        "/u01/oracle/config/document-paths.properties";
+            String token = DownloadTokenRegistry.getInstance().issue(documentType, documentId, fileName);
 
-private static final Properties PATHS = new Properties();
+            if (traced) {
+                LOGGER.fine("========= AccessToDocumentV2 END =========");
+            }
 
-static {
-    try {
-        File f = new File(PATH_FILE);
-        logger.info("Loading document paths from: " + f.getAbsolutePath());
+            return Response.ok(String.format(RESPONSE_OK, token)).build();
 
-        try (InputStream in = new FileInputStream(f)) {
-            PATHS.load(in);
-        }
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + e.getMessage());
+            return buildUnavailableResponse();
 
-        logger.info("Document paths loaded: " + PATHS);
+        } catch (ReplicationManager.FetchRejectedException e) {
+            LOGGER.warning(e.getMessage());
+            return buildBusyResponse();
 
-    } catch (Exception e) {
-        logger.severe("🔥 Cannot load " + PATH_FILE + " : " + e.getMessage());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Document access operation failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
     }
-}
 
+    // ============================================
+    // STREAMING DOWNLOAD ENDPOINTS
+    // ============================================
+
+    /**
+     * Streams the document bound to a download token issued by the POST endpoint.
+     */
+    @GET
+    @Path("{token}")
+    public Response streamByToken(
+            @PathParam("token") String token,
+            @Context Request request,
+            @HeaderParam(HEADER_RANGE) String range,
+            @HeaderParam(HEADER_IF_RANGE) String ifRange,
+            @HeaderParam(HEADER_ACCEPT_ENCODING) String acceptEncoding) {
+
+        try {
+            DownloadTokenRegistry.DownloadToken download = DownloadTokenRegistry.getInstance().resolve(token);
+            if (download == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_INVALID_TOKEN);
+            }
 
+            java.nio.file.Path document = resolveDocument(
+                    download.documentType, download.documentId, download.fileName);
+            if (document == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NOT_FOUND);
+            }
 
-    /* =========================
-       CORS PREFLIGHT (OPTIONS)
-       ========================= */
-    @OPTIONS
-    public Response corsPreflight() {
-        return Response.ok()
-                .build();
-    }
+            return buildStreamingResponse(document, SaveDocumentV2.sanitizeFileName(download.fileName),
+                    request, range, ifRange, acceptEncoding);
 
-    /* =========================
-       FILE UPLOAD (POST)
-       ========================= */
-@POST
-@Consumes(MediaType.APPLICATION_OCTET_STREAM)
-@Produces(MediaType.APPLICATION_JSON)
-public Response saveDocument(
-        InputStream body,
-        @HeaderParam("X-Doc-Id") String docId,
-        @HeaderParam("X-File-Name") String fileName,
-        @HeaderParam("X-Doc-Type") String docType,
-        @HeaderParam("p_app_id") String appId, //get app_CS to security_check
-        @HeaderParam("p_session_id") String sessionId
-) {
-    try {
-        logger.info("========= SaveDocumentV2 START =========");
-        logger.info("X-Doc-Id     = " + docId);
-        logger.info("X-File-Name  = " + fileName);
-        logger.info("X-Doc-Type  = " + docType);
-        logger.info("p_app_id    = " + appId);
-        logger.info("p_session_id= " + sessionId);
-
-        if (body == null || docId == null || fileName == null || docType == null
-                || appId == null || sessionId == null) {
-
-            logger.warning("❌ Missing headers");
-            return Response.status(Response.Status.BAD_REQUEST)
-                    .entity("{\"error\":\"Missing required headers\"}")
-                    .build();
+        } catch (ReplicationManager.FetchRejectedException e) {
+            LOGGER.warning(e.getMessage());
+            return buildBusyResponse();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Document streaming failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
         }
+    }
 
-        logger.info("✅ Headers OK — validating APEX session");
+    /**
+     * Streams the stored document straight from its doc-type base path.
+     */
+    @GET
+    @Path("{docType}/{docId}/{fileName}")
+    public Response streamDocument(
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @PathParam("fileName") String fileName,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId,
+            @Context Request request,
+            @HeaderParam(HEADER_RANGE) String range,
+            @HeaderParam(HEADER_IF_RANGE) String ifRange,
+            @HeaderParam(HEADER_ACCEPT_ENCODING) String acceptEncoding) {
+
+        try {
+            if (!validateHeaders(documentId, fileName, documentType, applicationId, sessionId)) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS);
+            }
 
-        if (!isApexSessionValid(appId,docId, sessionId)) {
-            logger.warning("❌ APEX session rejected");
-            return Response.status(Response.Status.UNAUTHORIZED)
-                    .entity("{\"error\":\"Invalid or expired APEX session\"}")
-                    .build();
+            if (!isSessionValid(applicationId, documentId, sessionId)) {
+                LOGGER.warning("❌ APEX session validation failed");
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
+
+            String basePath = SaveDocumentV2.resolveBasePath(documentType);
+            if (basePath == null) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+            }
+
+            java.nio.file.Path document = resolveDocument(documentType, documentId, fileName);
+            if (document == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NOT_FOUND);
+            }
+
+            return buildStreamingResponse(document, SaveDocumentV2.sanitizeFileName(fileName),
+                    request, range, ifRange, acceptEncoding);
+
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + e.getMessage());
+            return buildUnavailableResponse();
+
+        } catch (ReplicationManager.FetchRejectedException e) {
+            LOGGER.warning(e.getMessage());
+            return buildBusyResponse();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Document streaming failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
         }
+    }
 
-        logger.info("✅ APEX session VALID");
+    /**
+     * Serves the JPEG preview of an image or PDF. While it is being generated the answer is
+     * 202 with Retry-After, and 404 when the document has none, so list pages can show a
+     * placeholder icon instead of fetching the full document.
+     */
+    @GET
+    @Path("{docType}/{docId}/{fileName}/preview")
+    public Response streamPreview(
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @PathParam("fileName") String fileName,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId,
+            @Context Request request) {
+
+        try {
+            if (!validateHeaders(documentId, fileName, documentType, applicationId, sessionId)) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS);
+            }
 
-        String basePath = resolveBasePath(docType);
-        logger.info("Resolved basePath = " + basePath);
+            if (!isSessionValid(applicationId, documentId, sessionId)) {
+                LOGGER.warning("❌ APEX session validation failed");
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
 
-        if (basePath == null) {
-            return Response.status(Response.Status.BAD_REQUEST)
-                    .entity("{\"error\":\"Invalid document type\"}")
-                    .build();
+            String basePath = SaveDocumentV2.resolveBasePath(documentType);
+            if (basePath == null) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+            }
+
+            java.nio.file.Path document = resolveDocument(documentType, documentId, fileName);
+            if (document == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NOT_FOUND);
+            }
+
+            switch (PreviewPipeline.getInstance().state(document, fileName)) {
+                case READY:
+                    return buildPreviewResponse(PreviewPipeline.previewOf(document), request);
+                case PENDING:
+                    return Response.status(Response.Status.ACCEPTED)
+                            .type(MediaType.APPLICATION_JSON)
+                            .header("Retry-After", PREVIEW_RETRY_AFTER_SECONDS)
+                            .entity(RESPONSE_PREVIEW_PENDING)
+                            .build();
+                default:
+                    return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NO_PREVIEW);
+            }
+
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + e.getMessage());
+            return buildUnavailableResponse();
+
+        } catch (ReplicationManager.FetchRejectedException e) {
+            LOGGER.warning(e.getMessage());
+            return buildBusyResponse();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Preview streaming failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
         }
+    }
+
+    // ============================================
+    // VALIDATION METHODS
+    // ============================================
 
-        File saved = saveToFile(body, docId, fileName, basePath);
+    /**
+     * Validates that all required headers are present.
+     */
+    private boolean validateHeaders(
+            String documentId,
+            String fileName,
+            String documentType,
+            String applicationId,
+            String sessionId) {
+
+        return documentId != null && !documentId.trim().isEmpty() &&
+               fileName != null && !fileName.trim().isEmpty() &&
+               documentType != null && !documentType.trim().isEmpty() &&
+               applicationId != null && !applicationId.trim().isEmpty() &&
+               sessionId != null && !sessionId.trim().isEmpty();
+    }
+
+    private static boolean isSessionValid(String applicationId, String documentId, String sessionId) {
+        long started = System.nanoTime();
+        boolean valid = ApexSessionValidator.isApexSessionValid(applicationId, documentId, sessionId);
+        Metrics.recordStage(Metrics.Stage.SESSION_VALIDATION, started);
+        return valid;
+    }
 
-        logger.info("✅ File saved: " + saved.getAbsolutePath());
-        logger.info("========= SaveDocumentV2 END =========");
+    // ============================================
+    // PATH RESOLUTION
+    // ============================================
 
-        return Response.ok(
-                "{\"status\":\"OK\",\"file\":\"" + saved.getName() + "\"}"
-        ).build();
+    /**
+     * Resolves the stored file written by SaveDocumentV2, or null when it does not exist.
+     * With replication on, a document this node has not received yet is fetched from a peer.
+     */
+    static java.nio.file.Path resolveDocument(String documentType, String documentId, String fileName)
+            throws java.io.IOException {
 
-    } catch (Exception e) {
-        logger.severe("🔥 EXCEPTION: " + e.getMessage());
-        return Response.serverError()
-                .entity("{\"error\":\"" + e.getMessage() + "\"}")
-                .build();
+        long started = System.nanoTime();
+        java.nio.file.Path document = DocumentStore.getInstance().resolve(documentType, documentId, fileName);
+
+        ReplicationManager replication = ReplicationManager.getInstance();
+        if (document == null && replication.isEnabled()) {
+            document = replication.fetchFromReplica(documentType, documentId, fileName);
+        }
+        Metrics.recordStage(Metrics.Stage.PATH_RESOLUTION, started);
+
+        if (document == null) {
+            LOGGER.warning("Document not found: " + documentType + "/" + documentId + "/" + fileName);
+        }
+
+        return document;
     }
-}
 
+    // ============================================
+    // RESPONSE BUILDERS
+    // ============================================
+
+    /**
+     * Answers 304 when the client copy is current, 206 for satisfiable Range requests
+     * (multipart/byteranges for several ranges), 416 for unsatisfiable ones, else the full document.
+     * Compressed documents are sent as stored when the client accepts the encoding,
+     * otherwise decompressed while streaming (without Content-Length or Range support).
+     */
+    private Response buildStreamingResponse(java.nio.file.Path document, String fileName, Request request,
+                                            String range, String ifRange, String acceptEncoding)
+            throws Exception {
+
+        BasicFileAttributes attributes = Files.readAttributes(document, BasicFileAttributes.class);
+        long size = attributes.size();
+        // HTTP dates have second precision
+        Date lastModified = new Date(attributes.lastModifiedTime().to(TimeUnit.SECONDS) * 1000);
+
+        ContentEncoding storedEncoding = ContentEncoding.ofStoredFile(document);
+        ContentEncoding encoding = storedEncoding.isAcceptedBy(acceptEncoding) ? storedEncoding : ContentEncoding.NONE;
+        EntityTag entityTag = entityTag(document, attributes, encoding);
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, entityTag);
+        if (notModified != null) {
+            return withValidators(notModified, entityTag, lastModified, storedEncoding).build();
+        }
 
-private static final String ORDS_VALIDATE_SESSION = PATHS.getProperty("ORDS_VALIDATE_SESSION");
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        if (contentType == null) {
+            contentType = DEFAULT_CONTENT_TYPE;
+        }
+        String contentDisposition = "inline; filename=\"" + fileName.replace("\"", "_") + "\"";
+
+        if (storedEncoding != encoding) {
+            StreamingOutput decoded = output -> {
+                long started = System.nanoTime();
+                long sent = 0;
+
+                try (InputStream inputStream = storedEncoding.decode(Files.newInputStream(document))) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while ((bytesRead = inputStream.read(buffer)) != -1) {
+                        output.write(buffer, 0, bytesRead);
+                        sent += bytesRead;
+                    }
+                }
+                output.flush();
+
+                Metrics.addBytesOut(sent);
+                Metrics.recordStage(Metrics.Stage.TRANSFER, started);
+            };
+
+            return withValidators(Response.ok(decoded, contentType), entityTag, lastModified, storedEncoding)
+                    .header("Accept-Ranges", "none")
+                    .header("Content-Disposition", contentDisposition)
+                    .build();
+        }
 
-private boolean isApexSessionValid(String appId,String docId, String sessionId) {
-    try {
-        URL url = new URL(ORDS_VALIDATE_SESSION);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(50000);
-        conn.setReadTimeout(50000);
+        List<ByteRanges.Range> ranges = isIfRangeCurrent(ifRange, entityTag, lastModified)
+                ? ByteRanges.parse(range, size) : null;
 
-        conn.setRequestProperty("Accept", "application/json");
-        conn.setRequestProperty("p_app_id", appId); //Send app_cs mapped with p_app_id to security check
-        logger.severe("🔥 p_app_id: " + appId);
-        conn.setRequestProperty("p_session_id", sessionId);
-        conn.setRequestProperty("p_emp_no", docId);
-        logger.severe("🔥 p_emp_no: " + docId);
-        int status = conn.getResponseCode();
-        InputStream is = (status >= 200 && status < 300) ? conn.getInputStream() : conn.getErrorStream();
+        if (ranges != null && ranges.isEmpty()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", "bytes */" + size)
+                    .build();
+        }
 
-        StringBuilder sb = new StringBuilder();
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = is.read(buf)) != -1) {
-            sb.append(new String(buf, 0, len));
+        Response.ResponseBuilder builder;
+
+        if (ranges == null) {
+            builder = Response.ok(body(document, attributes, 0, size), contentType)
+                    .header("Content-Length", size);
+        } else if (ranges.size() == 1) {
+            ByteRanges.Range single = ranges.get(0);
+            builder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(body(document, attributes, single.start, single.length()))
+                    .type(contentType)
+                    .header("Content-Range", single.contentRange(size))
+                    .header("Content-Length", single.length());
+        } else {
+            ByteRanges.MultipartOutput multipart = new ByteRanges.MultipartOutput(document, size, contentType, ranges);
+            builder = Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(multipart)
+                    .type(multipart.mediaType())
+                    .header("Content-Length", multipart.contentLength());
         }
 
-        String json = sb.toString().trim();
-        logger.info("ORDS response: " + json);
+        if (encoding != ContentEncoding.NONE) {
+            builder.header("Content-Encoding", encoding.headerValue);
+        }
 
-        return json.contains("\"is_valid\":\"1\"") || json.contains("\"is_valid\":1");
-    } catch (Exception e) {
-        logger.severe("🔥 APEX validation error: " + e.getMessage());
-        return false;
+        return withValidators(builder, entityTag, lastModified, storedEncoding)
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Disposition", contentDisposition)
+                .build();
     }
-}
-    /* =========================
-       PATH RESOLVER
-       ========================= */
 
-private static String resolveBasePath(String docType) {
-    String path = PATHS.getProperty(docType);
+    private static Response buildPreviewResponse(java.nio.file.Path preview, Request request) throws Exception {
+        BasicFileAttributes attributes = Files.readAttributes(preview, BasicFileAttributes.class);
+        Date lastModified = new Date(attributes.lastModifiedTime().to(TimeUnit.SECONDS) * 1000);
+        EntityTag entityTag = entityTag(preview, attributes, ContentEncoding.NONE);
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, entityTag);
+        if (notModified != null) {
+            return withValidators(notModified, entityTag, lastModified, ContentEncoding.NONE).build();
+        }
 
-    if (path == null) {
-        logger.warning("❌ No path configured for docType=" + docType);
-    } else {
-        logger.info("Resolved docType " + docType + " → " + path);
+        return withValidators(Response.ok(body(preview, attributes, 0, attributes.size()), PREVIEW_CONTENT_TYPE),
+                entityTag, lastModified, ContentEncoding.NONE)
+                .header("Content-Length", attributes.size())
+                .build();
     }
 
-    return path;
-}
+    /**
+     * Serves hot documents from DocumentCache and everything else straight from disk.
+     */
+    private static StreamingOutput body(java.nio.file.Path document, BasicFileAttributes attributes,
+                                        long position, long count) throws java.io.IOException {
 
+        ByteBuffer cached = DocumentCache.getInstance().get(document, attributes);
+        return cached != null
+                ? new ByteBufferStreamingOutput(cached, position, count)
+                : new FileChannelStreamingOutput(document, position, count);
+    }
 
-    /* =========================
-       FILE WRITE LOGIC
-       ========================= */
-    private static File saveToFile(
-            InputStream body,
-            String docId,
-            String fileName,
-            String basePath
-    ) throws Exception {
+    /**
+     * Strong validator: the content hash for deduplicated blobs, otherwise size plus
+     * modification time, which changes on every save because writes are atomic renames.
+     * The compressed representation of a document gets its own tag.
+     */
+    private static EntityTag entityTag(java.nio.file.Path document, BasicFileAttributes attributes,
+                                       ContentEncoding encoding) {
+
+        String digest = DocumentStore.contentDigest(document);
+        if (digest != null) {
+            return new EntityTag(digest);
+        }
+        return new EntityTag(Long.toHexString(attributes.size()) + "-"
+                + Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                + (encoding == ContentEncoding.NONE ? "" : "-" + encoding.headerValue));
+    }
 
-        fileName = fileName.replaceAll("[\\/]", "_");
+    /**
+     * A Range is only honoured when If-Range is absent or still names the current representation.
+     */
+    private static boolean isIfRangeCurrent(String ifRange, EntityTag entityTag, Date lastModified) {
+        if (ifRange == null || ifRange.trim().isEmpty()) {
+            return true;
+        }
 
-        File dir = new File(basePath);
-        if (!dir.exists() && !dir.mkdirs()) {
-            throw new RuntimeException("Cannot create directory: " + basePath);
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            return value.equals(entityTag.toString());
         }
 
-        File targetFile = new File(dir, docId + "_" + fileName);
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                    == lastModified.getTime();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
 
-        try (OutputStream out = new FileOutputStream(targetFile)) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = body.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
+    private static Response.ResponseBuilder withValidators(Response.ResponseBuilder builder, EntityTag entityTag,
+                                                           Date lastModified, ContentEncoding storedEncoding) {
+        if (storedEncoding != ContentEncoding.NONE) {
+            builder.header("Vary", "Accept-Encoding");
         }
+        return builder.tag(entityTag)
+                .lastModified(lastModified)
+                .header("Cache-Control", CACHE_CONTROL);
+    }
 
-        return targetFile;
+    private Response buildErrorResponse(Response.Status status, String errorMessage) {
+        return Response.status(status)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(errorMessage)
+                .build();
     }
-    
-}
 
+    private Response buildUnavailableResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ERROR_VALIDATION_UNAVAILABLE)
+                .build();
+    }
+
+    private Response buildBusyResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ERROR_BUSY)
+                .build();
+    }
+}
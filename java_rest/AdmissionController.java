@@ -0,0 +1,362 @@
+package tokenrest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Per-doc-type limits for uploads, checked once the session is known to be valid and before
+ * the body is read, so an over-limit request is answered at once instead of being written:
+ *
+ * <ul>
+ *   <li>&lt;DOC_TYPE&gt;.MAX_SIZE_BYTES - largest document, from its declared length up front
+ *       and enforced again while streaming (chunked bodies have no length)</li>
+ *   <li>&lt;DOC_TYPE&gt;.QUOTA_BYTES - total bytes under the doc type's directory; usage is
+ *       rescanned every QUOTA_SCAN_INTERVAL_MS and counted up between scans, so it is approximate</li>
+ *   <li>&lt;DOC_TYPE&gt;.MAX_CONCURRENT - uploads of the doc type being written at once</li>
+ *   <li>&lt;DOC_TYPE&gt;.BYTES_PER_SECOND - aggregate write rate, as a token bucket charged with
+ *       the bytes actually read; an upload is turned away while the doc type is already more
+ *       than a burst behind its rate</li>
+ * </ul>
+ *
+ * A single upload is admitted with admit(); a tar of documents with admitArchive(), where the
+ * size limit applies to each entry and the quota to the archive as a whole.
+ * Limits follow configuration reloads; 0 or a missing key means unlimited.
+ */
+final class AdmissionController {
+
+    /**
+     * Outcome of an admission check.
+     */
+    enum Verdict {
+        ADMITTED,
+        TOO_LARGE,
+        QUOTA_EXCEEDED,
+        TOO_MANY_WRITES,
+        RATE_LIMITED
+    }
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getName());
+
+    private static final AdmissionController INSTANCE = new AdmissionController(
+            DocumentPaths.getLong("QUOTA_SCAN_INTERVAL_MS", 300000));
+
+    // Smallest rate-limit burst, so a limit below one read buffer still makes progress
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private final long scanIntervalMs;
+    private final ConcurrentHashMap<String, Limits> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
+
+    private final ExecutorService scanner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "quota-scanner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AdmissionController(long scanIntervalMs) {
+        this.scanIntervalMs = Math.max(1000, scanIntervalMs);
+    }
+
+    static AdmissionController getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // ADMISSION
+    // ============================================
+
+    /**
+     * Checks an upload against its doc type's limits; contentLength is -1 when unknown.
+     * An admitted upload must be closed when its write has finished or been abandoned.
+     * Unknown doc types are admitted without limits and rejected later by path resolution.
+     */
+    Admission admit(String documentType, long contentLength) {
+        return admit(documentType, contentLength, false);
+    }
+
+    /**
+     * Like admit() for a tar of documents of one doc type: MAX_SIZE_BYTES is not applied to
+     * the archive but to each entry (see Admission.admitsEntry), while the quota still
+     * applies to the archive as a whole.
+     */
+    Admission admitArchive(String documentType, long contentLength) {
+        return admit(documentType, contentLength, true);
+    }
+
+    private Admission admit(String documentType, long contentLength, boolean archive) {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
+        if (settings == null) {
+            return new Admission(Verdict.ADMITTED, 0, null, null, Long.MAX_VALUE, Verdict.TOO_LARGE, Long.MAX_VALUE);
+        }
+
+        long entryLimit = settings.maxSizeBytes > 0 ? settings.maxSizeBytes : Long.MAX_VALUE;
+        long declared = Math.max(0, contentLength);
+        if (!archive && declared > entryLimit) {
+            return rejected(Verdict.TOO_LARGE, 0);
+        }
+
+        long sizeLimit = archive ? Long.MAX_VALUE : entryLimit;
+        Verdict overLimit = Verdict.TOO_LARGE;
+        Usage used = null;
+        if (settings.quotaBytes > 0) {
+            used = usageOf(settings);
+            long free = used.bytes.get() < 0 ? Long.MAX_VALUE : settings.quotaBytes - used.bytes.get();
+            if (declared > free || free <= 0) {
+                return rejected(Verdict.QUOTA_EXCEEDED, 0);
+            }
+            if (free < sizeLimit) {
+                sizeLimit = free;
+                overLimit = Verdict.QUOTA_EXCEEDED;
+            }
+        }
+
+        Limits current = limitsOf(settings);
+        if (current.writes != null && !current.writes.tryAcquire()) {
+            return rejected(Verdict.TOO_MANY_WRITES, 1);
+        }
+
+        // Takes nothing: the body is charged as it is read
+        if (current.rate != null) {
+            long waitNanos = current.rate.tryAcquire(0);
+            if (waitNanos > 0) {
+                if (current.writes != null) {
+                    current.writes.release();
+                }
+                return rejected(Verdict.RATE_LIMITED, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999999999)));
+            }
+        }
+
+        return new Admission(Verdict.ADMITTED, 0, current, used, sizeLimit, overLimit, entryLimit);
+    }
+
+    private static Admission rejected(Verdict verdict, long retryAfterSeconds) {
+        return new Admission(verdict, retryAfterSeconds, null, null, 0, verdict, 0);
+    }
+
+    /**
+     * Semaphore and token bucket of a doc type, rebuilt when a reload changes its limits.
+     * Uploads admitted under the old ones release into the instance they acquired from.
+     */
+    private Limits limitsOf(DocumentPaths.DocumentType settings) {
+        Limits current = limits.get(settings.name);
+        if (current != null && current.matches(settings)) {
+            return current;
+        }
+        return limits.compute(settings.name,
+                (name, existing) -> existing != null && existing.matches(settings) ? existing : new Limits(settings));
+    }
+
+    private static final class Limits {
+        final int maxConcurrent;
+        final long bytesPerSecond;
+        final Semaphore writes;
+        final TokenBucket rate;
+
+        Limits(DocumentPaths.DocumentType settings) {
+            this.maxConcurrent = settings.maxConcurrent;
+            this.bytesPerSecond = settings.bytesPerSecond;
+            this.writes = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+            this.rate = bytesPerSecond > 0
+                    ? new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, MIN_BURST_BYTES)) : null;
+        }
+
+        boolean matches(DocumentPaths.DocumentType settings) {
+            return maxConcurrent == settings.maxConcurrent && bytesPerSecond == settings.bytesPerSecond;
+        }
+    }
+
+    /**
+     * One admitted (or rejected) upload. Closing it releases the write slot and adds the
+     * bytes recorded as stored to the doc type's quota usage.
+     */
+    static final class Admission implements AutoCloseable {
+        final Verdict verdict;
+        final long retryAfterSeconds;
+
+        private final Limits limits;
+        private final Usage usage;
+        private final long sizeLimit;
+        private final Verdict overLimit;
+        private final long entryLimit;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicLong consumed = new AtomicLong();
+
+        private volatile long stored;
+
+        private Admission(Verdict verdict, long retryAfterSeconds, Limits limits, Usage usage,
+                          long sizeLimit, Verdict overLimit, long entryLimit) {
+            this.verdict = verdict;
+            this.retryAfterSeconds = retryAfterSeconds;
+            this.limits = limits;
+            this.usage = usage;
+            this.sizeLimit = sizeLimit;
+            this.overLimit = overLimit;
+            this.entryLimit = entryLimit;
+        }
+
+        boolean admitted() {
+            return verdict == Verdict.ADMITTED;
+        }
+
+        /**
+         * Whether an archive entry of the given size is within MAX_SIZE_BYTES.
+         */
+        boolean admitsEntry(long size) {
+            return size <= entryLimit;
+        }
+
+        /**
+         * Wraps the body: fails with LimitExceededException past the size or quota limit and
+         * paces reads to the doc type's byte rate. A body read to the end is recorded as stored.
+         */
+        InputStream limit(InputStream inputStream) {
+            return meter(inputStream, true);
+        }
+
+        /**
+         * Wraps one chunk of an upload whose length was checked on admission: reads are
+         * paced to the byte rate, and the caller records the upload with stored() on commit.
+         */
+        InputStream throttle(InputStream inputStream) {
+            return meter(inputStream, false);
+        }
+
+        /**
+         * Records bytes that were stored, to be counted against the quota on close.
+         */
+        void stored(long bytes) {
+            stored = bytes;
+        }
+
+        private InputStream meter(InputStream inputStream, boolean limited) {
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int bytesRead = in.read(buffer, offset, length);
+                    if (bytesRead < 0) {
+                        if (limited) {
+                            stored(consumed.get());
+                        }
+                        return bytesRead;
+                    }
+                    consumed(bytesRead, limited);
+                    return bytesRead;
+                }
+            };
+        }
+
+        private void consumed(int bytesRead, boolean limited) throws IOException {
+            if (consumed.addAndGet(bytesRead) > sizeLimit && limited) {
+                throw new LimitExceededException(overLimit);
+            }
+
+            if (limits != null && limits.rate != null) {
+                try {
+                    limits.rate.acquire(bytesRead);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limited");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (limits != null && limits.writes != null) {
+                limits.writes.release();
+            }
+            if (usage != null && stored > 0) {
+                usage.bytes.addAndGet(stored);
+            }
+        }
+    }
+
+    /**
+     * Thrown while streaming a body that goes past its size or quota limit.
+     */
+    static final class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final Verdict verdict;
+
+        LimitExceededException(Verdict verdict) {
+            super("Upload exceeds the " + (verdict == Verdict.TOO_LARGE ? "size limit" : "quota") + " of its document type");
+            this.verdict = verdict;
+        }
+    }
+
+    // ============================================
+    // QUOTA USAGE
+    // ============================================
+
+    /**
+     * Bytes stored under a doc type; -1 until the first scan has finished, when the quota
+     * is not enforced yet.
+     */
+    private static final class Usage {
+        final AtomicLong bytes = new AtomicLong(-1);
+        final AtomicBoolean scanning = new AtomicBoolean();
+        volatile long scannedAt;
+    }
+
+    private Usage usageOf(DocumentPaths.DocumentType settings) {
+        Usage used = usage.computeIfAbsent(settings.name, name -> new Usage());
+
+        long now = System.currentTimeMillis();
+        if (now - used.scannedAt >= scanIntervalMs && used.scanning.compareAndSet(false, true)) {
+            scanner.execute(() -> scan(settings.name, Paths.get(settings.basePath), used));
+        }
+        return used;
+    }
+
+    private static void scan(String documentType, Path basePath, Usage used) {
+        long started = System.currentTimeMillis();
+        try (Stream<Path> files = Files.walk(basePath)) {
+            long total = files.filter(Files::isRegularFile).mapToLong(AdmissionController::sizeOf).sum();
+            used.bytes.set(total);
+            LOGGER.fine("Quota usage of " + documentType + ": " + total + " bytes");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not measure quota usage of " + documentType + " under " + basePath, e);
+        } finally {
+            used.scannedAt = started;
+            used.scanning.set(false);
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            // Removed while scanning
+            return 0;
+        }
+    }
+}
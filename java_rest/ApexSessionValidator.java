@@ -0,0 +1,181 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Validates APEX sessions against the ORDS session_validation module.
+ * Shared by the upload and download endpoints, which also share its result cache.
+ */
+final class ApexSessionValidator {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(ApexSessionValidator.class.getName());
+
+    // HTTP header constants (names expected by the ORDS handler)
+    static final String HEADER_APP_ID = "p_app_id";
+    static final String HEADER_SESSION_ID = "p_session_id";
+    static final String HEADER_EMP_NO = "p_emp_no";
+
+    // Result cache in front of ORDS
+    private static final SessionValidationCache CACHE = new SessionValidationCache(
+            DocumentPaths.getLong("SESSION_CACHE_TTL_MS", 60000),
+            DocumentPaths.getLong("SESSION_CACHE_NEGATIVE_TTL_MS", 5000),
+            (int) DocumentPaths.getLong("SESSION_CACHE_MAX_ENTRIES", 10000));
+
+    // Per-session liveness results used when the CS checksum is verified locally
+    private static final SessionValidationCache LIVENESS = new SessionValidationCache(
+            DocumentPaths.getLong("SESSION_LIVENESS_INTERVAL_MS", 60000),
+            DocumentPaths.getLong("SESSION_CACHE_NEGATIVE_TTL_MS", 5000),
+            (int) DocumentPaths.getLong("SESSION_CACHE_MAX_ENTRIES", 10000));
+
+    private ApexSessionValidator() {
+    }
+
+    static SessionValidationCache resultCache() {
+        return CACHE;
+    }
+
+    static SessionValidationCache livenessCache() {
+        return LIVENESS;
+    }
+
+    // ============================================
+    // VALIDATION
+    // ============================================
+
+    /**
+     * Validates APEX session, calling ORDS only when the cache has no live result.
+     * Throws ValidationUnavailableException when ORDS cannot answer; that is not cached.
+     * In local verify mode the CS checksum is checked in Java and ORDS is only asked,
+     * once per SESSION_LIVENESS_INTERVAL_MS, whether the session is still alive.
+     */
+    static boolean isApexSessionValid(String applicationId, String documentId, String sessionId) {
+        if (CsTokenVerifier.isEnabled()) {
+            if (!CsTokenVerifier.verify(applicationId, documentId, sessionId)) {
+                LOGGER.warning("CS checksum rejected locally for document " + documentId);
+                return false;
+            }
+            return LIVENESS.get(null, sessionId, null,
+                    () -> validateWithOrds(applicationId, documentId, sessionId));
+        }
+
+        return CACHE.get(applicationId, sessionId, documentId,
+                () -> validateWithOrds(applicationId, documentId, sessionId));
+    }
+
+    /**
+     * Non-blocking variant of isApexSessionValid() for suspended requests. Batched validations
+     * hold no thread while ORDS answers; single GETs run on the given executor. The future
+     * fails with ValidationUnavailableException when ORDS cannot answer.
+     */
+    static CompletableFuture<Boolean> isApexSessionValidAsync(String applicationId, String documentId,
+                                                              String sessionId, Executor executor) {
+        if (CsTokenVerifier.isEnabled()) {
+            if (!CsTokenVerifier.verify(applicationId, documentId, sessionId)) {
+                LOGGER.warning("CS checksum rejected locally for document " + documentId);
+                return CompletableFuture.completedFuture(false);
+            }
+            return LIVENESS.getAsync(null, sessionId, null,
+                    () -> validateWithOrdsAsync(applicationId, documentId, sessionId, executor));
+        }
+
+        return CACHE.getAsync(applicationId, sessionId, documentId,
+                () -> validateWithOrdsAsync(applicationId, documentId, sessionId, executor));
+    }
+
+    private static CompletableFuture<Boolean> validateWithOrdsAsync(String applicationId, String documentId,
+                                                                    String sessionId, Executor executor) {
+        if (SessionValidationBatcher.isEnabled()) {
+            return SessionValidationBatcher.getInstance().validateAsync(applicationId, documentId, sessionId);
+        }
+        return CompletableFuture.supplyAsync(() -> validateWithOrds(applicationId, documentId, sessionId), executor);
+    }
+
+    /**
+     * Validates APEX session by calling ORDS endpoint, batched when a batch endpoint is configured.
+     */
+    private static boolean validateWithOrds(String applicationId, String documentId, String sessionId) {
+        if (SessionValidationBatcher.isEnabled()) {
+            return SessionValidationBatcher.getInstance().validate(applicationId, documentId, sessionId);
+        }
+
+        String ordsEndpoint = DocumentPaths.get("ORDS_VALIDATE_SESSION");
+
+        if (ordsEndpoint == null || ordsEndpoint.trim().isEmpty()) {
+            LOGGER.severe("ORDS validation endpoint not configured");
+            return false;
+        }
+
+        OrdsClient.OrdsResponse response;
+        try {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(HEADER_APP_ID, applicationId);
+            headers.put(HEADER_SESSION_ID, sessionId);
+            headers.put(HEADER_EMP_NO, documentId);
+
+            response = OrdsClient.getInstance().get(ordsEndpoint, headers);
+
+        } catch (OrdsClient.OrdsUnavailableException e) {
+            LOGGER.warning("APEX session validation skipped: " + e.getMessage());
+            throw new ValidationUnavailableException(e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "APEX session validation error", e);
+            throw new ValidationUnavailableException("ORDS session validation failed", e);
+        }
+
+        LOGGER.fine("ORDS validation response: " + response.body);
+
+        // A rejection is a 401 with is_valid 0; a server error says nothing about the session
+        if (response.status >= 500) {
+            throw new ValidationUnavailableException("ORDS session validation returned HTTP " + response.status, null);
+        }
+        return isSessionValidResponse(response.body);
+    }
+
+    /**
+     * Checks if ORDS response indicates a valid session.
+     */
+    static boolean isSessionValidResponse(String jsonResponse) {
+        return jsonResponse.contains("\"is_valid\":\"1\"") ||
+               jsonResponse.contains("\"is_valid\":1");
+    }
+
+    /**
+     * Returns the ValidationUnavailableException behind a failed validation future, or null
+     * when the failure had another cause.
+     */
+    static ValidationUnavailableException unavailableCause(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof ValidationUnavailableException ? (ValidationUnavailableException) cause : null;
+    }
+
+    // ============================================
+    // ORDS UNAVAILABLE
+    // ============================================
+
+    /**
+     * ORDS could not answer a validation (circuit open, no capacity, error or timeout).
+     * Says nothing about the session: callers answer 503 and the result is never cached.
+     */
+    static final class ValidationUnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ValidationUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
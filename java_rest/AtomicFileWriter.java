@@ -0,0 +1,217 @@
+package tokenrest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes documents to a temp file in the target directory and renames them into place,
+ * so readers never see a partially written document and a crash never leaves a truncated one.
+ */
+final class AtomicFileWriter {
+
+    /**
+     * How much to force to disk before the rename: nothing, file data, or data plus metadata
+     * and the directory entry. Configured per doc type as &lt;DOC_TYPE&gt;.FSYNC.
+     */
+    enum FsyncPolicy {
+        NONE, DATA, FULL;
+
+        static FsyncPolicy forDocumentType(String documentType) {
+            String value = DocumentPaths.get(documentType + ".FSYNC");
+            if (value == null) {
+                value = DocumentPaths.get("FSYNC_POLICY");
+            }
+            if (value == null || value.trim().isEmpty()) {
+                return DATA;
+            }
+
+            try {
+                return parse(documentType + ".FSYNC", value);
+            } catch (IllegalArgumentException e) {
+                // DocumentPaths rejects such files; only reachable without a loaded snapshot
+                LOGGER.warning("Unknown fsync policy '" + value + "' for " + documentType + ", using DATA");
+                return DATA;
+            }
+        }
+
+        /**
+         * Parses a configured policy; throws IllegalArgumentException naming the key.
+         */
+        static FsyncPolicy parse(String key, String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid fsync policy for " + key + ": " + value);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AtomicFileWriter.class.getName());
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Copy buffer of every write; jmh/tokenrest/WriteBenchmarks measures the candidates
+    private static final int BUFFER_SIZE = (int) Math.max(512,
+            Math.min(MAX_BUFFER_SIZE, DocumentPaths.getLong("WRITE_BUFFER_BYTES", DEFAULT_BUFFER_SIZE)));
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AtomicFileWriter() {
+    }
+
+    // ============================================
+    // WRITES
+    // ============================================
+
+    /**
+     * Streams the input into a temp sibling of the target, then atomically replaces the target.
+     */
+    static void write(InputStream inputStream, Path target, FsyncPolicy policy) throws IOException {
+        write(inputStream, target, policy, ContentEncoding.NONE);
+    }
+
+    /**
+     * Like write(), but compresses the stream with the given encoding on its way to disk.
+     */
+    static void write(InputStream inputStream, Path target, FsyncPolicy policy, ContentEncoding encoding)
+            throws IOException {
+
+        Path tempFile = prepare(inputStream, target, policy, encoding);
+
+        try {
+            install(tempFile, target, policy);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the stream to a temp sibling of the target and forces it per the policy, without
+     * publishing it. The caller installs the returned file or deletes it. Splitting the slow
+     * write from the rename lets callers hold a document lock only around install().
+     */
+    static Path prepare(InputStream inputStream, Path target, FsyncPolicy policy, ContentEncoding encoding)
+            throws IOException {
+        return prepare(inputStream, target, policy, encoding, BUFFER_SIZE);
+    }
+
+    /**
+     * prepare() with an explicit copy buffer size instead of WRITE_BUFFER_BYTES.
+     */
+    static Path prepare(InputStream inputStream, Path target, FsyncPolicy policy, ContentEncoding encoding,
+                        int bufferSize) throws IOException {
+
+        Path tempFile = tempFileFor(target);
+
+        try {
+            if (encoding == ContentEncoding.NONE) {
+                try (FileOutputStream outputStream = new FileOutputStream(tempFile.toFile())) {
+                    copy(inputStream, outputStream, bufferSize);
+                    force(outputStream.getChannel(), policy);
+                }
+            } else {
+                // Closing the encoder flushes its trailer, so the file is forced afterwards
+                try (OutputStream outputStream = encoding.encode(Files.newOutputStream(tempFile))) {
+                    copy(inputStream, outputStream, bufferSize);
+                }
+                force(tempFile, policy);
+            }
+            return tempFile;
+
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes an already written file (e.g. a chunked upload part) under the target name.
+     */
+    static void commit(Path writtenFile, Path target, FsyncPolicy policy) throws IOException {
+        force(writtenFile, policy);
+        install(writtenFile, target, policy);
+    }
+
+    /**
+     * Forces a written file per the policy, ahead of install().
+     */
+    static void force(Path writtenFile, FsyncPolicy policy) throws IOException {
+        if (policy != FsyncPolicy.NONE) {
+            try (FileChannel channel = FileChannel.open(writtenFile, StandardOpenOption.WRITE)) {
+                force(channel, policy);
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the target with a file already forced by prepare() or force().
+     */
+    static void install(Path preparedFile, Path target, FsyncPolicy policy) throws IOException {
+        moveIntoPlace(preparedFile, target, policy);
+    }
+
+    /**
+     * Returns a unique hidden temp name next to the target, on the same file system.
+     */
+    static Path tempFileFor(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private static void copy(InputStream inputStream, OutputStream outputStream, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int bytesRead;
+
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+    }
+
+    private static void force(FileChannel channel, FsyncPolicy policy) throws IOException {
+        if (policy == FsyncPolicy.DATA) {
+            channel.force(false);
+        } else if (policy == FsyncPolicy.FULL) {
+            channel.force(true);
+        }
+    }
+
+    private static void moveIntoPlace(Path source, Path target, FsyncPolicy policy) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warning("Atomic move not supported for " + target + ", falling back to replace");
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (policy == FsyncPolicy.FULL) {
+            syncDirectory(target.getParent());
+        }
+    }
+
+    /**
+     * Persists the rename itself; not every platform allows opening a directory.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Directory fsync not supported for " + directory, e);
+        }
+    }
+}
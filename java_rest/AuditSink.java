@@ -0,0 +1,334 @@
+package tokenrest;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Audit trail of request outcomes (validation failures, uploads, downloads, with status and
+ * latency). Request threads only offer an event to a RingBuffer; the "audit-writer" thread
+ * drains it and writes batches to SESSION_ERROR_LOG (AUDIT_SINK=jdbc, through the
+ * AUDIT_DATASOURCE JNDI data source) or appends them to AUDIT_FILE (AUDIT_SINK=file).
+ * When the buffer is full, or a batch cannot be written, events are dropped and counted.
+ */
+final class AuditSink {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(AuditSink.class.getName());
+
+    private static final String SQL_INSERT =
+            "INSERT INTO SESSION_ERROR_LOG (EMP_NO, SESSION_ID, APP_ID, ERROR_CODE, ERROR_MESSAGE, ERROR_TIME) "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int MAX_MESSAGE_LENGTH = 4000;
+
+    // The only document type whose X-Doc-Id is an EMPNO
+    private static final String EMPLOYEE_DOCUMENT_TYPE = "EMP_DOC";
+
+    private static final AuditSink INSTANCE = new AuditSink(
+            DocumentPaths.get("AUDIT_SINK"),
+            (int) DocumentPaths.getLong("AUDIT_BUFFER_SIZE", 16384),
+            (int) DocumentPaths.getLong("AUDIT_BATCH_SIZE", 500),
+            DocumentPaths.getLong("AUDIT_FLUSH_INTERVAL_MS", 1000));
+
+    private final RingBuffer<Event> buffer;
+    private final Destination destination;
+    private final int batchSize;
+    private final long flushIntervalMs;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private AuditSink(String mode, int bufferSize, int batchSize, long flushIntervalMs) {
+        this.buffer = new RingBuffer<>(Math.max(16, bufferSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMs = Math.max(10, flushIntervalMs);
+        this.destination = destination(mode == null ? "" : mode.trim().toLowerCase(Locale.ROOT));
+
+        if (destination != null) {
+            Thread writer = new Thread(this::drain, "audit-writer");
+            writer.setDaemon(true);
+            writer.start();
+            LOGGER.info("Audit events: " + destination + ", buffer of " + buffer.capacity());
+        }
+    }
+
+    static AuditSink getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * One finished request.
+     */
+    static final class Event {
+        final long timeMillis;
+        final String endpoint;
+        final int status;
+        final long latencyNanos;
+        final String documentType;
+        final String documentId;
+        final String applicationId;
+        final String sessionId;
+
+        Event(long timeMillis, String endpoint, int status, long latencyNanos, String documentType,
+              String documentId, String applicationId, String sessionId) {
+            this.timeMillis = timeMillis;
+            this.endpoint = endpoint;
+            this.status = status;
+            this.latencyNanos = latencyNanos;
+            this.documentType = documentType;
+            this.documentId = documentId;
+            this.applicationId = applicationId;
+            this.sessionId = sessionId;
+        }
+
+        String message() {
+            return String.format(Locale.ROOT, "%s status=%d latency_ms=%.1f doc_type=%s doc_id=%s",
+                    endpoint, status, latencyNanos / 1e6, documentType, documentId);
+        }
+    }
+
+    // ============================================
+    // RECORDING
+    // ============================================
+
+    /**
+     * Queues an event without blocking; dropped when auditing is off or the buffer is full.
+     */
+    void record(Event event) {
+        if (destination != null && !buffer.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    boolean isEnabled() {
+        return destination != null;
+    }
+
+    long writtenCount() {
+        return written.sum();
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    // ============================================
+    // WRITER THREAD
+    // ============================================
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>(batchSize);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            int drained = buffer.drainTo(batch, batchSize);
+
+            if (drained > 0) {
+                try {
+                    destination.write(batch);
+                    written.add(drained);
+                } catch (Exception e) {
+                    dropped.add(drained);
+                    LOGGER.log(Level.WARNING, "Dropped " + drained + " audit events: " + e.getMessage(), e);
+                    destination.reset();
+                }
+                batch.clear();
+            }
+
+            // A full batch means more is probably waiting
+            if (drained < batchSize) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(flushIntervalMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // ============================================
+    // DESTINATIONS
+    // ============================================
+
+    private interface Destination {
+        void write(List<Event> batch) throws Exception;
+
+        /**
+         * Drops any connection or handle after a failure; the next batch reopens it.
+         */
+        void reset();
+    }
+
+    private static Destination destination(String mode) {
+        switch (mode) {
+            case "jdbc":
+                String dataSource = DocumentPaths.get("AUDIT_DATASOURCE");
+                if (dataSource == null || dataSource.isEmpty()) {
+                    LOGGER.warning("AUDIT_SINK=jdbc needs AUDIT_DATASOURCE; audit events are disabled");
+                    return null;
+                }
+                return new JdbcDestination(dataSource);
+            case "file":
+                String file = DocumentPaths.get("AUDIT_FILE");
+                if (file == null || file.isEmpty()) {
+                    LOGGER.warning("AUDIT_SINK=file needs AUDIT_FILE; audit events are disabled");
+                    return null;
+                }
+                return new FileDestination(Paths.get(file));
+            case "":
+            case "none":
+                return null;
+            default:
+                LOGGER.warning("Unknown AUDIT_SINK " + mode + "; audit events are disabled");
+                return null;
+        }
+    }
+
+    /**
+     * Batched inserts into SESSION_ERROR_LOG: one round trip per batch through JDBC batching.
+     */
+    private static final class JdbcDestination implements Destination {
+        private final String jndiName;
+        private Connection connection;
+
+        JdbcDestination(String jndiName) {
+            this.jndiName = jndiName;
+        }
+
+        @Override
+        public void write(List<Event> batch) throws SQLException, NamingException {
+            if (connection == null) {
+                connection = ((DataSource) new InitialContext().lookup(jndiName)).getConnection();
+                connection.setAutoCommit(false);
+            }
+
+            try (PreparedStatement insert = connection.prepareStatement(SQL_INSERT)) {
+                for (Event event : batch) {
+                    // EMP_NO holds employee numbers only; other types keep their id in the message
+                    setNumber(insert, 1, EMPLOYEE_DOCUMENT_TYPE.equals(event.documentType) ? event.documentId : null);
+                    setNumber(insert, 2, event.sessionId);
+                    setNumber(insert, 3, event.applicationId);
+                    insert.setInt(4, event.status);
+                    insert.setString(5, truncate(event.message()));
+                    insert.setTimestamp(6, new Timestamp(event.timeMillis));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+
+        @Override
+        public void reset() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    // Already broken
+                }
+                connection = null;
+            }
+        }
+
+        /**
+         * The table's id columns are NUMBER; anything that is not a number is stored as NULL.
+         */
+        private static void setNumber(PreparedStatement statement, int index, String value) throws SQLException {
+            if (value != null && value.matches("\\d{1,18}")) {
+                statement.setLong(index, Long.parseLong(value));
+            } else {
+                statement.setNull(index, Types.NUMERIC);
+            }
+        }
+
+        private static String truncate(String message) {
+            return message.length() <= MAX_MESSAGE_LENGTH ? message : message.substring(0, MAX_MESSAGE_LENGTH);
+        }
+
+        @Override
+        public String toString() {
+            return "SESSION_ERROR_LOG via " + jndiName;
+        }
+    }
+
+    /**
+     * Tab-separated lines appended to a local file, one write per batch; session ids masked.
+     */
+    private static final class FileDestination implements Destination {
+        private final Path file;
+        private Writer writer;
+
+        FileDestination(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(List<Event> batch) throws IOException {
+            if (writer == null) {
+                Path directory = file.toAbsolutePath().getParent();
+                if (directory != null) {
+                    Files.createDirectories(directory);
+                }
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+
+            StringBuilder lines = new StringBuilder(batch.size() * 128);
+            for (Event event : batch) {
+                lines.append(Instant.ofEpochMilli(event.timeMillis)).append('\t')
+                        .append(event.endpoint).append('\t')
+                        .append(event.status).append('\t')
+                        .append(String.format(Locale.ROOT, "%.1f", event.latencyNanos / 1e6)).append('\t')
+                        .append(field(event.documentType)).append('\t')
+                        .append(field(event.documentId)).append('\t')
+                        .append(field(event.applicationId)).append('\t')
+                        .append(field(RequestLog.mask(event.sessionId))).append('\n');
+            }
+            writer.write(lines.toString());
+            writer.flush();
+        }
+
+        @Override
+        public void reset() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Already broken
+                }
+                writer = null;
+            }
+        }
+
+        private static String field(String value) {
+            return value == null ? "-" : value.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        @Override
+        public String toString() {
+            return "appended to " + file;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package tokenrest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.OPTIONS;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * REST endpoints for multi-document operations on one document id: a tar upload that stores
+ * every file in it, and a ZIP download of an explicit list of files. The APEX session is
+ * validated once per batch instead of once per file.
+ *
+ * @author Saeed Ahmadzad-Asl
+ */
+@Path("/BulkDocumentsV2")
+public class BulkDocumentsV2 {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(BulkDocumentsV2.class.getName());
+
+    // Response messages
+    private static final String RESPONSE_BULK = "{\"status\":\"%s\",\"files\":[%s]}";
+    private static final String RESPONSE_BULK_REJECTED = "{\"status\":\"%s\",\"error\":\"%s\",\"files\":[%s]}";
+    private static final String RESPONSE_FILE_OK = "{\"name\":\"%s\",\"status\":\"OK\",\"file\":\"%s\"}";
+    private static final String RESPONSE_FILE_ERROR = "{\"name\":\"%s\",\"status\":\"ERROR\",\"error\":\"%s\"}";
+    private static final String ERROR_MISSING_HEADERS = "{\"error\":\"Missing required headers\"}";
+    private static final String ERROR_INVALID_SESSION = "{\"error\":\"Invalid or expired APEX session\"}";
+    private static final String ERROR_INVALID_DOCTYPE = "{\"error\":\"Invalid document type\"}";
+    private static final String ERROR_TOO_MANY_FILES = "{\"error\":\"At most %d files per request\"}";
+    private static final String ERROR_NOT_FOUND = "{\"error\":\"Document not found\",\"missing\":[%s]}";
+    private static final String ERROR_TEMPLATE = "{\"error\":\"%s\"}";
+    private static final String ERROR_BUSY = "{\"error\":\"Server busy, retry later\"}";
+    private static final String ERROR_VALIDATION_UNAVAILABLE = "{\"error\":\"Session validation unavailable, retry later\"}";
+
+    private static final String MEDIA_TYPE_TAR = "application/x-tar";
+    private static final String MEDIA_TYPE_ZIP = "application/zip";
+
+    // Files per upload or download request
+    private static final int MAX_FILES = (int) DocumentPaths.getLong("BULK_MAX_FILES", 500);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // HTTP header constants
+    private static final String HEADER_DOC_ID = "X-Doc-Id";
+    private static final String HEADER_DOC_TYPE = "X-Doc-Type";
+    private static final String HEADER_APP_ID = ApexSessionValidator.HEADER_APP_ID;
+    private static final String HEADER_SESSION_ID = ApexSessionValidator.HEADER_SESSION_ID;
+
+    /**
+     * Commits (fsync, compression, CAS hashing) of spooled tar entries. Separate from the
+     * UploadExecutor, whose thread is busy reading the archive, and caller-runs when full.
+     */
+    private static final ExecutorService COMMITS = newCommitExecutor(
+            (int) DocumentPaths.getLong("BULK_COMMIT_THREADS", 8));
+
+    /**
+     * Outcome of one tar entry: the stored file name, or the reason it was not stored.
+     */
+    private static final class FileResult {
+        final String name;
+        final CompletableFuture<String> storedName;
+
+        FileResult(String name, CompletableFuture<String> storedName) {
+            this.name = name;
+            this.storedName = storedName;
+        }
+    }
+
+    // ============================================
+    // CORS PREFLIGHT HANDLER
+    // ============================================
+
+    @OPTIONS
+    public Response handleCorsPreflight() {
+        return Response.ok().build();
+    }
+
+    // ============================================
+    // BULK UPLOAD ENDPOINT
+    // ============================================
+
+    /**
+     * Stores every regular file of the tar body as (X-Doc-Type, X-Doc-Id, entry file name) and
+     * answers with one result per entry. Entries are read in order and committed in parallel.
+     * When the archive turns out to be malformed or holds more than BULK_MAX_FILES entries,
+     * reading stops there and the answer carries the error along with the entries stored so far.
+     * The doc type's limits apply as for single uploads: MAX_SIZE_BYTES to each entry, the quota
+     * and byte rate to the archive, and the request takes one MAX_CONCURRENT write slot.
+     */
+    @POST
+    @Consumes(MEDIA_TYPE_TAR)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void saveDocuments(
+            InputStream archiveStream,
+            @HeaderParam(HEADER_DOC_ID) String documentId,
+            @HeaderParam(HEADER_DOC_TYPE) String documentType,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId,
+            @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long contentLength,
+            @Suspended AsyncResponse asyncResponse) {
+
+        long started = System.nanoTime();
+        boolean headersValid = archiveStream != null && validateHeaders(documentId, documentType, applicationId, sessionId);
+        Metrics.recordStage(Metrics.Stage.HEADER_VALIDATION, started);
+
+        if (!headersValid) {
+            asyncResponse.resume(buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS));
+            return;
+        }
+
+        UploadExecutor uploads = UploadExecutor.getInstance();
+        if (!uploads.tryReserve()) {
+            LOGGER.warning("❌ Bulk upload rejected — node at UPLOAD_MAX_CONCURRENT");
+            asyncResponse.resume(buildBusyResponse());
+            return;
+        }
+
+        long validationStarted = System.nanoTime();
+
+        try {
+            ApexSessionValidator.isApexSessionValidAsync(applicationId, documentId, sessionId, uploads.executor())
+                    .handleAsync((sessionValid, error) -> {
+                        Metrics.recordStage(Metrics.Stage.SESSION_VALIDATION, validationStarted);
+                        try {
+                            return asyncResponse.resume(error == null
+                                    ? completeBulkSave(Boolean.TRUE.equals(sessionValid), archiveStream,
+                                            contentLength, documentId, documentType)
+                                    : ApexSessionValidator.unavailableCause(error) != null
+                                    ? buildUnavailableResponse()
+                                    : buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                                            String.format(ERROR_TEMPLATE, jsonEscape(error.getMessage()))));
+                        } finally {
+                            uploads.release();
+                        }
+                    }, uploads.executor());
+
+        } catch (RuntimeException e) {
+            uploads.release();
+            LOGGER.log(Level.SEVERE, "Bulk document save failed", e);
+            asyncResponse.resume(buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, jsonEscape(e.getMessage()))));
+        }
+    }
+
+    private Response completeBulkSave(boolean sessionValid, InputStream archiveStream, long contentLength,
+                                      String documentId, String documentType) {
+        if (!sessionValid) {
+            LOGGER.warning("❌ APEX session validation failed");
+            return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+        }
+
+        if (SaveDocumentV2.resolveBasePath(documentType) == null) {
+            return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+        }
+
+        AdmissionController.Admission admission =
+                AdmissionController.getInstance().admitArchive(documentType, contentLength);
+        if (!admission.admitted()) {
+            LOGGER.warning("❌ Bulk upload rejected — " + documentType + " " + admission.verdict);
+            return SaveDocumentV2.buildRejectedResponse(admission.verdict, admission.retryAfterSeconds);
+        }
+
+        long writeStarted = System.nanoTime();
+        List<FileResult> results = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        long spooled = 0;
+
+        try {
+            java.nio.file.Path base = DocumentStore.basePath(documentType);
+            Files.createDirectories(base);
+            TarReader archive = new TarReader(Metrics.countingBytesIn(admission.limit(archiveStream)));
+            TarReader.Entry entry;
+
+            while ((entry = archive.next()) != null) {
+                if (results.size() >= MAX_FILES) {
+                    LOGGER.warning("Bulk upload stopped after " + MAX_FILES + " files");
+                    return buildRejectedResponse(Response.Status.BAD_REQUEST.getStatusCode(),
+                            "More than " + MAX_FILES + " files in archive", results);
+                }
+
+                String fileName = SaveDocumentV2.sanitizeFileName(baseName(entry.name));
+
+                if (fileName.isEmpty()) {
+                    results.add(new FileResult(entry.name, failed("Empty file name")));
+                    continue;
+                }
+                if (!names.add(fileName)) {
+                    results.add(new FileResult(fileName, failed("Duplicate file name in archive")));
+                    continue;
+                }
+                if (!admission.admitsEntry(entry.size)) {
+                    results.add(new FileResult(fileName, failed("Exceeds the size limit of its document type")));
+                    continue;
+                }
+
+                // Reading the body is sequential; everything after the spool runs in parallel
+                java.nio.file.Path spool = AtomicFileWriter.tempFileFor(
+                        base.resolve(SaveDocumentV2.storedFileName(documentId, fileName)));
+                try {
+                    Files.copy(archive.entryStream(), spool);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(spool);
+                    throw e;
+                }
+                spooled += entry.size;
+                results.add(new FileResult(fileName, CompletableFuture.supplyAsync(
+                        () -> publish(documentType, documentId, fileName, spool), COMMITS)));
+            }
+
+            String response = buildBulkResponse(results);
+            Metrics.recordStage(Metrics.Stage.DISK_WRITE, writeStarted);
+            return Response.ok(response).build();
+
+        } catch (AdmissionController.LimitExceededException e) {
+            LOGGER.warning("❌ Bulk upload of " + documentType + " stopped: " + e.getMessage());
+            return buildRejectedResponse(SaveDocumentV2.STATUS_INSUFFICIENT_STORAGE, e.getMessage(), results);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Bulk upload archive rejected", e);
+            return buildRejectedResponse(Response.Status.BAD_REQUEST.getStatusCode(),
+                    "Invalid tar archive: " + e.getMessage(), results);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Bulk document save failed", e);
+            return buildRejectedResponse(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                    e.getMessage(), results);
+        } finally {
+            // After the results are collected, so the write slot covers the parallel commits
+            admission.stored(spooled);
+            admission.close();
+        }
+    }
+
+    private static String publish(String documentType, String documentId, String fileName,
+                                  java.nio.file.Path spool) {
+        try {
+            DocumentStore.getInstance().publish(documentType, documentId, fileName, spool);
+            return SaveDocumentV2.storedFileName(documentId, fileName);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Bulk commit failed for " + fileName, e);
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException cleanup) {
+                LOGGER.log(Level.FINE, "Cannot remove " + spool, cleanup);
+            }
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    // ============================================
+    // ARCHIVE DOWNLOAD ENDPOINT
+    // ============================================
+
+    /**
+     * Streams the listed documents (?file=a.pdf&amp;file=b.pdf) as one ZIP, straight from disk.
+     * All files are resolved before the first byte is sent, so a missing one is a clean 404.
+     */
+    @GET
+    @Path("{docType}/{docId}")
+    @Produces({MEDIA_TYPE_ZIP, MediaType.APPLICATION_JSON})
+    public Response downloadArchive(
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @QueryParam("file") List<String> fileNames,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        try {
+            if (!validateHeaders(documentId, documentType, applicationId, sessionId)
+                    || fileNames == null || fileNames.isEmpty()) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS);
+            }
+
+            if (fileNames.size() > MAX_FILES) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, String.format(ERROR_TOO_MANY_FILES, MAX_FILES));
+            }
+
+            long validationStarted = System.nanoTime();
+            boolean sessionValid = ApexSessionValidator.isApexSessionValid(applicationId, documentId, sessionId);
+            Metrics.recordStage(Metrics.Stage.SESSION_VALIDATION, validationStarted);
+
+            if (!sessionValid) {
+                LOGGER.warning("❌ APEX session validation failed");
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
+
+            if (SaveDocumentV2.resolveBasePath(documentType) == null) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+            }
+
+            Map<String, java.nio.file.Path> documents = new LinkedHashMap<>();
+            List<String> missing = new ArrayList<>();
+
+            for (String fileName : new LinkedHashSet<>(fileNames)) {
+                java.nio.file.Path document = AccessToDocumentV2.resolveDocument(documentType, documentId, fileName);
+                if (document == null) {
+                    missing.add("\"" + jsonEscape(fileName) + "\"");
+                } else {
+                    documents.put(SaveDocumentV2.sanitizeFileName(fileName), document);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                return buildErrorResponse(Response.Status.NOT_FOUND,
+                        String.format(ERROR_NOT_FOUND, String.join(",", missing)));
+            }
+
+            String archiveName = SaveDocumentV2.sanitizeFileName(documentId).replace("\"", "_") + ".zip";
+            return Response.ok(zipOutput(documents), MEDIA_TYPE_ZIP)
+                    .header("Content-Disposition", "attachment; filename=\"" + archiveName + "\"")
+                    .header("Cache-Control", "private, no-cache")
+                    .build();
+
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            return buildUnavailableResponse();
+
+        } catch (ReplicationManager.FetchRejectedException e) {
+            LOGGER.warning(e.getMessage());
+            return buildBusyResponse();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Archive download failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, jsonEscape(e.getMessage())));
+        }
+    }
+
+    /**
+     * Writes each document as one entry, decoding stored compression; already compressed
+     * formats are stored without deflating them again.
+     */
+    private static StreamingOutput zipOutput(Map<String, java.nio.file.Path> documents) {
+        return output -> {
+            long started = System.nanoTime();
+            long sent = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+            for (Map.Entry<String, java.nio.file.Path> document : documents.entrySet()) {
+                zip.setLevel(ContentEncoding.isPrecompressed(document.getKey())
+                        ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+                zip.putNextEntry(new ZipEntry(document.getKey()));
+
+                java.nio.file.Path file = document.getValue();
+                try (InputStream inputStream = ContentEncoding.ofStoredFile(file).decode(Files.newInputStream(file))) {
+                    int bytesRead;
+                    while ((bytesRead = inputStream.read(buffer)) != -1) {
+                        zip.write(buffer, 0, bytesRead);
+                        sent += bytesRead;
+                    }
+                }
+                zip.closeEntry();
+            }
+
+            // finish() rather than close(): the container owns the response stream
+            zip.finish();
+            zip.flush();
+
+            Metrics.addBytesOut(sent);
+            Metrics.recordStage(Metrics.Stage.TRANSFER, started);
+        };
+    }
+
+    // ============================================
+    // VALIDATION METHODS
+    // ============================================
+
+    private boolean validateHeaders(String documentId, String documentType, String applicationId,
+                                    String sessionId) {
+        return documentId != null && !documentId.trim().isEmpty() &&
+               documentType != null && !documentType.trim().isEmpty() &&
+               applicationId != null && !applicationId.trim().isEmpty() &&
+               sessionId != null && !sessionId.trim().isEmpty();
+    }
+
+    // ============================================
+    // RESPONSE BUILDERS
+    // ============================================
+
+    /**
+     * Waits for every commit and lists the outcome per file; status is OK, PARTIAL or ERROR.
+     */
+    private static String buildBulkResponse(List<FileResult> results) {
+        List<String> files = new ArrayList<>(results.size());
+        int succeeded = collectResults(results, files);
+
+        String status = succeeded == results.size() ? "OK" : succeeded == 0 ? "ERROR" : "PARTIAL";
+        return String.format(RESPONSE_BULK, status, String.join(",", files));
+    }
+
+    /**
+     * An archive that could not be read to the end: the error, plus the outcome of every entry
+     * before it, which stay stored. Status is PARTIAL when any of them were stored.
+     */
+    private Response buildRejectedResponse(int status, String error, List<FileResult> results) {
+        List<String> files = new ArrayList<>(results.size());
+        int succeeded = collectResults(results, files);
+
+        return Response.status(status)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(String.format(RESPONSE_BULK_REJECTED,
+                        succeeded == 0 ? "ERROR" : "PARTIAL", jsonEscape(error), String.join(",", files)))
+                .build();
+    }
+
+    /**
+     * Adds one JSON result per entry and returns how many were stored.
+     */
+    private static int collectResults(List<FileResult> results, List<String> files) {
+        int succeeded = 0;
+
+        for (FileResult result : results) {
+            String name = jsonEscape(result.name);
+            try {
+                files.add(String.format(RESPONSE_FILE_OK, name, jsonEscape(result.storedName.join())));
+                succeeded++;
+            } catch (RuntimeException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                files.add(String.format(RESPONSE_FILE_ERROR, name, jsonEscape(cause.getMessage())));
+            }
+        }
+        return succeeded;
+    }
+
+    private Response buildErrorResponse(Response.Status status, String errorMessage) {
+        return Response.status(status)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(errorMessage)
+                .build();
+    }
+
+    private Response buildUnavailableResponse() {
+        LOGGER.warning("❌ APEX session validation unavailable");
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ERROR_VALIDATION_UNAVAILABLE)
+                .build();
+    }
+
+    private Response buildBusyResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ERROR_BUSY)
+                .build();
+    }
+
+    // ============================================
+    // UTILITY METHODS
+    // ============================================
+
+    private static CompletableFuture<String> failed(String message) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.completeExceptionally(new IllegalArgumentException(message));
+        return result;
+    }
+
+    /**
+     * Last path segment of a tar entry name; archives usually carry folders.
+     */
+    private static String baseName(String entryName) {
+        String name = entryName.endsWith("/") ? entryName.substring(0, entryName.length() - 1) : entryName;
+        return name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+    }
+
+    private static String jsonEscape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static ExecutorService newCommitExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        int size = Math.max(1, threads);
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(size * 4), runnable -> {
+                    Thread thread = new Thread(runnable, "bulk-commit-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,38 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams a region of a document held by DocumentCache, without copying it onto the heap.
+ */
+final class ByteBufferStreamingOutput implements StreamingOutput {
+
+    private final ByteBuffer data;
+
+    ByteBufferStreamingOutput(ByteBuffer data, long position, long count) {
+        ByteBuffer region = data.duplicate();
+        region.position((int) position);
+        region.limit((int) (position + count));
+        this.data = region.slice();
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        long started = System.nanoTime();
+        WritableByteChannel target = Channels.newChannel(output);
+        ByteBuffer region = data.duplicate();
+
+        while (region.hasRemaining()) {
+            target.write(region);
+        }
+
+        output.flush();
+        Metrics.addBytesOut(data.remaining());
+        Metrics.recordStage(Metrics.Stage.TRANSFER, started);
+    }
+}
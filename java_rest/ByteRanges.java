@@ -0,0 +1,193 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Parses HTTP Range headers (RFC 7233, bytes unit only) and streams multipart/byteranges bodies.
+ */
+final class ByteRanges {
+
+    // Overlapping or many tiny ranges are a classic amplification trick; past this we send 200
+    private static final int MAX_RANGES = 16;
+
+    private static final String CRLF = "\r\n";
+
+    private ByteRanges() {
+    }
+
+    /**
+     * One inclusive byte range of a document.
+     */
+    static final class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long size) {
+            return "bytes " + start + "-" + end + "/" + size;
+        }
+    }
+
+    // ============================================
+    // PARSING
+    // ============================================
+
+    /**
+     * Returns the satisfiable ranges of the header, sorted and coalesced; an empty list when none
+     * is satisfiable (416), or null when the header should be ignored and the full body sent.
+     */
+    static List<Range> parse(String header, long size) {
+        if (header == null || !header.trim().startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = header.trim().substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>(specs.length);
+
+        for (String spec : specs) {
+            String value = spec.trim();
+            int dash = value.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            try {
+                String first = value.substring(0, dash).trim();
+                String last = value.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new Range(Math.max(0, size - suffix), size - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (end < start) {
+                        // Syntactically invalid, so the whole header is ignored
+                        return null;
+                    }
+                    if (start < size) {
+                        ranges.add(new Range(start, Math.min(end, size - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return coalesce(ranges);
+    }
+
+    private static List<Range> coalesce(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        Collections.sort(ranges, Comparator.comparingLong(range -> range.start));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+
+        for (int i = 1; i < ranges.size(); i++) {
+            Range next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new Range(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+
+        return merged;
+    }
+
+    // ============================================
+    // MULTIPART BODY
+    // ============================================
+
+    /**
+     * multipart/byteranges body; every part is sent with a positional transferTo on one channel.
+     */
+    static final class MultipartOutput implements StreamingOutput {
+
+        private final Path file;
+        private final long size;
+        private final String contentType;
+        private final List<Range> ranges;
+        private final String boundary = UUID.randomUUID().toString().replace("-", "");
+
+        MultipartOutput(Path file, long size, String contentType, List<Range> ranges) {
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+            this.ranges = ranges;
+        }
+
+        String mediaType() {
+            return "multipart/byteranges; boundary=" + boundary;
+        }
+
+        /**
+         * Exact body length, so the response can carry a Content-Length.
+         */
+        long contentLength() {
+            long length = closing().length;
+            for (Range range : ranges) {
+                length += partHeader(range).length + range.length();
+            }
+            return length;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            long started = System.nanoTime();
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (Range range : ranges) {
+                    output.write(partHeader(range));
+                    FileChannelStreamingOutput.transfer(channel, range.start, range.length(), output);
+                }
+                output.write(closing());
+                output.flush();
+            }
+
+            Metrics.recordStage(Metrics.Stage.TRANSFER, started);
+        }
+
+        private byte[] partHeader(Range range) {
+            return (CRLF + "--" + boundary + CRLF
+                    + "Content-Type: " + contentType + CRLF
+                    + "Content-Range: " + range.contentRange(size) + CRLF
+                    + CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] closing() {
+            return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
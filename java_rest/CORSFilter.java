@@ -24,7 +24,12 @@ public class CORSFilter implements ContainerResponseFilter {
 
         responseContext.getHeaders().add(
                 "Access-Control-Allow-Headers",
-                "Content-Type, X-Doc-Id, X-File-Name, X-Doc-Type, p_app_id, p_session_id"
+                "Content-Type, Content-Range, Range, If-Range, If-None-Match, If-Modified-Since, X-Doc-Id, X-File-Name, X-Doc-Type, X-Upload-Length, p_app_id, p_session_id"
+        );
+
+        responseContext.getHeaders().add(
+                "Access-Control-Expose-Headers",
+                "Accept-Ranges, Content-Range, Content-Length, ETag, Last-Modified"
         );
 
         responseContext.getHeaders().add(
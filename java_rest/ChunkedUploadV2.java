@@ -0,0 +1,358 @@
+package tokenrest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.OPTIONS;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chunked, resumable upload API for SaveDocumentV2.
+ *
+ * <pre>
+ * POST /SaveDocumentV2/uploads                 init   (X-Upload-Length + the usual SaveDocumentV2 headers)
+ * PUT  /SaveDocumentV2/uploads/{id}            chunk  (Content-Range: bytes start-end/total)
+ * GET  /SaveDocumentV2/uploads/{id}            ranges received so far, for resuming
+ * POST /SaveDocumentV2/uploads/{id}/commit     move the completed part file into place
+ * DELETE /SaveDocumentV2/uploads/{id}          abort, deleting the part file
+ * </pre>
+ *
+ * X-Upload-Length is checked against the doc type's size and quota limits at init, and the
+ * upload holds one of its MAX_CONCURRENT write slots until it is committed or aborted
+ * (explicitly or after UPLOAD_IDLE_TIMEOUT_MS).
+ */
+@Path("/SaveDocumentV2/uploads")
+public class ChunkedUploadV2 {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkedUploadV2.class.getName());
+
+    // Response messages
+    private static final String RESPONSE_STARTED = "{\"status\":\"OK\",\"uploadId\":\"%s\"}";
+    private static final String RESPONSE_PROGRESS =
+            "{\"status\":\"OK\",\"uploadId\":\"%s\",\"length\":%d,\"received\":\"%s\",\"complete\":%b}";
+    private static final String RESPONSE_COMMITTED = "{\"status\":\"OK\",\"file\":\"%s\"}";
+    private static final String RESPONSE_ABORTED = "{\"status\":\"OK\",\"uploadId\":\"%s\"}";
+    private static final String ERROR_MISSING_HEADERS = "{\"error\":\"Missing required headers\"}";
+    private static final String ERROR_INVALID_SESSION = "{\"error\":\"Invalid or expired APEX session\"}";
+    private static final String ERROR_INVALID_DOCTYPE = "{\"error\":\"Invalid document type\"}";
+    private static final String ERROR_UNKNOWN_UPLOAD = "{\"error\":\"Unknown or expired upload\"}";
+    private static final String ERROR_INVALID_RANGE = "{\"error\":\"Invalid Content-Range\"}";
+    private static final String ERROR_INCOMPLETE = "{\"error\":\"Upload incomplete\",\"received\":\"%s\"}";
+    private static final String ERROR_TEMPLATE = "{\"error\":\"%s\"}";
+    private static final String ERROR_VALIDATION_UNAVAILABLE = "{\"error\":\"Session validation unavailable, retry later\"}";
+
+    // HTTP header constants
+    private static final String HEADER_DOC_ID = "X-Doc-Id";
+    private static final String HEADER_FILE_NAME = "X-File-Name";
+    private static final String HEADER_DOC_TYPE = "X-Doc-Type";
+    private static final String HEADER_UPLOAD_LENGTH = "X-Upload-Length";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_APP_ID = ApexSessionValidator.HEADER_APP_ID;
+    private static final String HEADER_SESSION_ID = ApexSessionValidator.HEADER_SESSION_ID;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
+    // ============================================
+    // CORS PREFLIGHT HANDLER
+    // ============================================
+
+    @OPTIONS
+    public Response handleCorsPreflight() {
+        return Response.ok().build();
+    }
+
+    @OPTIONS
+    @Path("{uploadId}")
+    public Response handleChunkCorsPreflight() {
+        return Response.ok().build();
+    }
+
+    // ============================================
+    // UPLOAD LIFECYCLE
+    // ============================================
+
+    /**
+     * Validates the session once, admits the declared length against the doc type's limits
+     * and opens a sparse part file for the upload.
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startUpload(
+            @HeaderParam(HEADER_DOC_ID) String documentId,
+            @HeaderParam(HEADER_FILE_NAME) String fileName,
+            @HeaderParam(HEADER_DOC_TYPE) String documentType,
+            @HeaderParam(HEADER_UPLOAD_LENGTH) Long uploadLength,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        try {
+            if (isBlank(documentId) || isBlank(fileName) || isBlank(documentType)
+                    || isBlank(applicationId) || isBlank(sessionId)
+                    || uploadLength == null || uploadLength <= 0) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_HEADERS);
+            }
+
+            if (!ApexSessionValidator.isApexSessionValid(applicationId, documentId, sessionId)) {
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
+
+            String basePath = SaveDocumentV2.resolveBasePath(documentType);
+            if (basePath == null) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+            }
+
+            AdmissionController.Admission admission = AdmissionController.getInstance().admit(documentType, uploadLength);
+            if (!admission.admitted()) {
+                LOGGER.warning("❌ Chunked upload rejected — " + documentType + " " + admission.verdict);
+                return SaveDocumentV2.buildRejectedResponse(admission.verdict, admission.retryAfterSeconds);
+            }
+
+            UploadSession upload = UploadSessionRegistry.getInstance().open(documentType, documentId,
+                    fileName, applicationId, sessionId, uploadLength, Paths.get(basePath), admission);
+
+            LOGGER.fine("Chunked upload " + upload.uploadId + " started for " + documentType
+                    + "/" + documentId + " (" + uploadLength + " bytes)");
+
+            return Response.status(Response.Status.CREATED)
+                    .entity(String.format(RESPONSE_STARTED, upload.uploadId))
+                    .build();
+
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + e.getMessage());
+            return buildUnavailableResponse();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Cannot start chunked upload", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    /**
+     * Writes one chunk at the offset given by its Content-Range header.
+     */
+    @PUT
+    @Path("{uploadId}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadChunk(
+            InputStream chunkStream,
+            @PathParam("uploadId") String uploadId,
+            @HeaderParam(HEADER_CONTENT_RANGE) String contentRange,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        try {
+            UploadSession upload = UploadSessionRegistry.getInstance().get(uploadId);
+            Response rejection = checkAccess(upload, applicationId, sessionId);
+            if (rejection != null) {
+                return rejection;
+            }
+
+            Matcher range = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.trim());
+            if (range == null || !range.matches()) {
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_RANGE);
+            }
+
+            long start = Long.parseLong(range.group(1));
+            long end = Long.parseLong(range.group(2));
+            long total = Long.parseLong(range.group(3));
+
+            if (total != upload.totalLength || end < start || end >= total) {
+                return buildErrorResponse(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE, ERROR_INVALID_RANGE);
+            }
+
+            upload.writeChunk(start, end - start + 1, chunkStream);
+
+            return buildProgressResponse(upload);
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Chunk write failed for upload " + uploadId, e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    /**
+     * Reports the ranges already stored so a client can resume after a failure.
+     */
+    @GET
+    @Path("{uploadId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getUploadStatus(
+            @PathParam("uploadId") String uploadId,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        UploadSession upload = UploadSessionRegistry.getInstance().get(uploadId);
+        Response rejection = checkAccess(upload, applicationId, sessionId);
+
+        return rejection != null ? rejection : buildProgressResponse(upload);
+    }
+
+    /**
+     * Publishes the completed part file as the docId_fileName document. A failed publish
+     * deletes the part file; the client starts the upload again.
+     */
+    @POST
+    @Path("{uploadId}/commit")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response commitUpload(
+            @PathParam("uploadId") String uploadId,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        try {
+            UploadSession upload = UploadSessionRegistry.getInstance().get(uploadId);
+            Response rejection = checkAccess(upload, applicationId, sessionId);
+            if (rejection != null) {
+                return rejection;
+            }
+
+            if (!upload.isComplete()) {
+                return buildErrorResponse(Response.Status.CONFLICT,
+                        String.format(ERROR_INCOMPLETE, upload.describeReceived()));
+            }
+
+            if (!UploadSessionRegistry.getInstance().remove(upload)) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_UNKNOWN_UPLOAD);
+            }
+
+            java.nio.file.Path stored;
+            try {
+                upload.close();
+                stored = DocumentStore.getInstance().publish(
+                        upload.documentType, upload.documentId, upload.fileName, upload.partFile);
+            } catch (IOException | RuntimeException e) {
+                // No longer registered, so the idle sweep would never delete the part file
+                discardQuietly(upload);
+                throw e;
+            }
+
+            upload.committed();
+            LOGGER.fine("Chunked upload " + uploadId + " committed: " + stored);
+
+            return Response.ok(String.format(RESPONSE_COMMITTED,
+                    SaveDocumentV2.storedFileName(upload.documentId, upload.fileName))).build();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Commit failed for upload " + uploadId, e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    /**
+     * Abandons the upload: deletes its part file and frees its write slot at once instead of
+     * after UPLOAD_IDLE_TIMEOUT_MS.
+     */
+    @DELETE
+    @Path("{uploadId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response abortUpload(
+            @PathParam("uploadId") String uploadId,
+            @HeaderParam(HEADER_APP_ID) String applicationId,
+            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+
+        try {
+            UploadSession upload = UploadSessionRegistry.getInstance().get(uploadId);
+            Response rejection = checkAccess(upload, applicationId, sessionId);
+            if (rejection != null) {
+                return rejection;
+            }
+
+            if (!UploadSessionRegistry.getInstance().remove(upload)) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_UNKNOWN_UPLOAD);
+            }
+            upload.discard();
+
+            LOGGER.fine("Chunked upload " + uploadId + " aborted");
+
+            return Response.ok(String.format(RESPONSE_ABORTED, uploadId)).build();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Abort failed for upload " + uploadId, e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    // ============================================
+    // VALIDATION METHODS
+    // ============================================
+
+    /**
+     * Checks that the upload exists and the caller presents the session it was started with.
+     */
+    private Response checkAccess(UploadSession upload, String applicationId, String sessionId) {
+        if (upload == null) {
+            return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_UNKNOWN_UPLOAD);
+        }
+
+        try {
+            if (!upload.applicationId.equals(applicationId) || !upload.sessionId.equals(sessionId)
+                    || !ApexSessionValidator.isApexSessionValid(applicationId, upload.documentId, sessionId)) {
+                return buildErrorResponse(Response.Status.UNAUTHORIZED, ERROR_INVALID_SESSION);
+            }
+        } catch (ApexSessionValidator.ValidationUnavailableException e) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + e.getMessage());
+            return buildUnavailableResponse();
+        }
+
+        return null;
+    }
+
+    private static void discardQuietly(UploadSession upload) {
+        try {
+            upload.discard();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete part file " + upload.partFile, e);
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    // ============================================
+    // RESPONSE BUILDERS
+    // ============================================
+
+    private Response buildProgressResponse(UploadSession upload) {
+        return Response.ok(String.format(RESPONSE_PROGRESS, upload.uploadId, upload.totalLength,
+                upload.describeReceived(), upload.isComplete())).build();
+    }
+
+    private Response buildErrorResponse(Response.Status status, String errorMessage) {
+        return Response.status(status)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(errorMessage)
+                .build();
+    }
+
+    private Response buildUnavailableResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(ERROR_VALIDATION_UNAVAILABLE)
+                .build();
+    }
+}
@@ -0,0 +1,70 @@
+package tokenrest;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consecutive-failure circuit breaker.
+ * After the failure threshold the circuit opens and calls fail fast; once the open
+ * interval has passed a single trial call is let through to probe the backend.
+ */
+final class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openIntervalMs;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private volatile long openedAt = -1;
+
+    CircuitBreaker(int failureThreshold, long openIntervalMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openIntervalMs = openIntervalMs;
+    }
+
+    /**
+     * Returns true when a call may proceed; callers must report the outcome.
+     */
+    boolean tryAcquire() {
+        State state = state();
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN) {
+            return trialInFlight.compareAndSet(false, true);
+        }
+        return false;
+    }
+
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+        openedAt = -1;
+        trialInFlight.set(false);
+    }
+
+    /**
+     * Releases an acquired call that never reached the backend.
+     */
+    void cancel() {
+        trialInFlight.set(false);
+    }
+
+    void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || trialInFlight.get()) {
+            openedAt = System.currentTimeMillis();
+        }
+        trialInFlight.set(false);
+    }
+
+    State state() {
+        long opened = openedAt;
+
+        if (opened < 0) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() - opened >= openIntervalMs ? State.HALF_OPEN : State.OPEN;
+    }
+}
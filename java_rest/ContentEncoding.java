@@ -0,0 +1,179 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to plain stored documents, configured per doc type as
+ * &lt;DOC_TYPE&gt;.COMPRESSION (none, gzip or deflate). The encoding is recorded as a suffix
+ * of the stored name (docId_fileName:gz) and maps directly onto HTTP Content-Encoding.
+ * sanitizeFileName() strips ':', so the suffix can never collide with an uploaded file name.
+ */
+enum ContentEncoding {
+
+    NONE(null, ""),
+    GZIP("gzip", ":gz"),
+    // zlib format, which is what HTTP calls "deflate"
+    DEFLATE("deflate", ":zz");
+
+    private static final Logger LOGGER = Logger.getLogger(ContentEncoding.class.getName());
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Compressing these again costs CPU for no gain
+    private static final Set<String> PRECOMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "7z", "rar", "bz2", "xz", "zst",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mov"));
+
+    final String headerValue;
+    final String suffix;
+
+    ContentEncoding(String headerValue, String suffix) {
+        this.headerValue = headerValue;
+        this.suffix = suffix;
+    }
+
+    // ============================================
+    // CONFIGURATION
+    // ============================================
+
+    /**
+     * Encoding for a new upload of the doc type; already compressed formats are stored as is.
+     */
+    static ContentEncoding forStoring(String documentType, String fileName) {
+        ContentEncoding configured = forDocumentType(documentType);
+        if (configured == NONE) {
+            return NONE;
+        }
+
+        return isPrecompressed(fileName) ? NONE : configured;
+    }
+
+    /**
+     * True for file types that are already compressed and would not shrink further.
+     */
+    static boolean isPrecompressed(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return PRECOMPRESSED_EXTENSIONS.contains(extension);
+    }
+
+    static ContentEncoding forDocumentType(String documentType) {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
+        return settings == null ? NONE : settings.compression;
+    }
+
+    /**
+     * Parses a &lt;DOC_TYPE&gt;.COMPRESSION value; rejects unknown names.
+     */
+    static ContentEncoding parse(String documentType, String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "none":
+                return NONE;
+            case "gzip":
+                return GZIP;
+            case "deflate":
+                return DEFLATE;
+            case "zstd":
+                // No zstd codec in the JDK; gzip keeps the same streaming behaviour
+                LOGGER.warning("zstd compression is not available for " + documentType + ", using gzip");
+                return GZIP;
+            default:
+                throw new IllegalArgumentException("Unknown compression for " + documentType + ": " + value);
+        }
+    }
+
+    /**
+     * Encodings to probe when resolving a document, most likely first.
+     */
+    static ContentEncoding[] searchOrder(String documentType) {
+        ContentEncoding preferred = forDocumentType(documentType);
+        ContentEncoding[] order = values();
+
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] == preferred) {
+                order[i] = order[0];
+                order[0] = preferred;
+                break;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Encoding of a stored file, from its suffix.
+     */
+    static ContentEncoding ofStoredFile(Path file) {
+        String name = file.getFileName().toString();
+        for (ContentEncoding encoding : values()) {
+            if (encoding != NONE && name.endsWith(encoding.suffix)) {
+                return encoding;
+            }
+        }
+        return NONE;
+    }
+
+    // ============================================
+    // STREAMS
+    // ============================================
+
+    OutputStream encode(OutputStream output) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(output, BUFFER_SIZE);
+            case DEFLATE:
+                return new DeflaterOutputStream(output);
+            default:
+                return output;
+        }
+    }
+
+    InputStream decode(InputStream input) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(input, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(input);
+            default:
+                return input;
+        }
+    }
+
+    /**
+     * True when the Accept-Encoding header allows this encoding (q=0 excludes it).
+     */
+    boolean isAcceptedBy(String acceptEncoding) {
+        if (this == NONE) {
+            return true;
+        }
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        boolean wildcard = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean refused = parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+
+            if (coding.equals(headerValue)) {
+                return !refused;
+            }
+            if (coding.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+}
@@ -0,0 +1,74 @@
+package tokenrest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Recomputes the GENERATE_CS checksum (database/function_generate_cs.sql) in Java:
+ * UPPER(HEX(SHA-256(session_id || secret || biz_id))).
+ * Lets the endpoints reject a bad p_app_id header without an ORDS round trip.
+ */
+final class CsTokenVerifier {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    });
+
+    private CsTokenVerifier() {
+    }
+
+    // ============================================
+    // VERIFICATION
+    // ============================================
+
+    /**
+     * Returns true when CS_LOCAL_VERIFY is on and a CS_SECRET is configured.
+     */
+    static boolean isEnabled() {
+        String secret = DocumentPaths.get("CS_SECRET");
+        return "true".equalsIgnoreCase(DocumentPaths.get("CS_LOCAL_VERIFY"))
+                && secret != null && !secret.isEmpty();
+    }
+
+    /**
+     * Checks the p_app_id checksum against the session and business id in constant time.
+     */
+    static boolean verify(String checksum, String businessId, String sessionId) {
+        if (checksum == null || businessId == null || sessionId == null) {
+            return false;
+        }
+
+        String expected = generate(businessId, sessionId, DocumentPaths.get("CS_SECRET"));
+        return MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.US_ASCII),
+                checksum.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Same result as GENERATE_CS(P_BIZ_ID, P_SESSION_ID) for the given secret.
+     */
+    static String generate(String businessId, String sessionId, String secret) {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+
+        byte[] hash = digest.digest((sessionId + secret + businessId).getBytes(StandardCharsets.UTF_8));
+
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
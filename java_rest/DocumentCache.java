@@ -0,0 +1,301 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded cache of small and medium documents held in direct (off-heap) ByteBuffers.
+ * Eviction is LRU; admission is TinyLFU: a new document only displaces the LRU victims when a
+ * frequency sketch says it has been requested more often than they have, so one-off downloads
+ * of large archives cannot flush the hot policy PDFs and current invoices.
+ * Entries are keyed by resolved file and checked against its size and mtime on every hit.
+ * Hits take no lock: the entries live in a concurrent map, record their last access in the
+ * entry, and count in a lock-free sketch. Only a miss that needs room orders the entries by
+ * last access, under the eviction lock.
+ */
+final class DocumentCache {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentCache.class.getName());
+
+    // Direct memory is limited by -XX:MaxDirectMemorySize, which must be at least this
+    private static final long MAX_BYTES = DocumentPaths.getLong("DOC_CACHE_MAX_BYTES", 0);
+    private static final long MAX_ENTRY_BYTES = DocumentPaths.getLong("DOC_CACHE_MAX_ENTRY_BYTES", 4L * 1024 * 1024);
+
+    private static final DocumentCache INSTANCE = new DocumentCache(MAX_BYTES, MAX_ENTRY_BYTES);
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>(256);
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    // Serialises admissions, so victims are chosen against a stable set of entries
+    private final Object evictionLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    DocumentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+    }
+
+    static DocumentCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static final class Entry {
+        final ByteBuffer data;
+        final long lastModified;
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(ByteBuffer data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // ============================================
+    // CACHE OPERATIONS
+    // ============================================
+
+    /**
+     * Returns a read-only view of the document contents, loading it when the admission policy
+     * accepts it, or null when the document should be streamed from disk.
+     */
+    ByteBuffer get(Path document, BasicFileAttributes attributes) throws IOException {
+        if (maxBytes <= 0) {
+            return null;
+        }
+
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        sketch.increment(document);
+
+        Entry entry = entries.get(document);
+        if (entry != null) {
+            if (entry.lastModified == lastModified && entry.data.capacity() == size) {
+                entry.lastAccess = System.nanoTime();
+                hits.increment();
+                return entry.data.asReadOnlyBuffer();
+            }
+            remove(document, entry);
+        }
+
+        misses.increment();
+
+        if (size == 0 || size > maxEntryBytes || size > maxBytes || !canAdmit(document, size)) {
+            return null;
+        }
+
+        ByteBuffer data = load(document, (int) size);
+        if (data == null) {
+            return null;
+        }
+
+        synchronized (evictionLock) {
+            if (!entries.containsKey(document) && makeRoom(document, size)) {
+                entries.put(document, new Entry(data, lastModified));
+                usedBytes.addAndGet(size);
+            }
+        }
+
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops the cached copy of a file that has just been overwritten.
+     */
+    void invalidate(Path document) {
+        Entry removed = entries.remove(document);
+        if (removed != null) {
+            usedBytes.addAndGet(-removed.data.capacity());
+        }
+    }
+
+    long usedBytes() {
+        return usedBytes.get();
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    // ============================================
+    // ADMISSION AND EVICTION
+    // ============================================
+
+    private boolean canAdmit(Path candidate, long size) {
+        if (usedBytes.get() + size <= maxBytes) {
+            return true;
+        }
+        synchronized (evictionLock) {
+            return selectVictims(candidate, size) != null;
+        }
+    }
+
+    /**
+     * Evicts the LRU victims needed for the candidate, unless one of them is used more often.
+     * Called with the eviction lock held.
+     */
+    private boolean makeRoom(Path candidate, long size) {
+        List<Map.Entry<Path, Entry>> victims = selectVictims(candidate, size);
+        if (victims == null) {
+            return false;
+        }
+
+        for (Map.Entry<Path, Entry> victim : victims) {
+            remove(victim.getKey(), victim.getValue());
+        }
+        return true;
+    }
+
+    private List<Map.Entry<Path, Entry>> selectVictims(Path candidate, long size) {
+        long needed = usedBytes.get() + size - maxBytes;
+        if (needed <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Map.Entry<Path, Entry>> lru = new ArrayList<>(entries.entrySet());
+        lru.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+
+        List<Map.Entry<Path, Entry>> victims = new ArrayList<>();
+        int candidateFrequency = sketch.frequency(candidate);
+
+        for (Map.Entry<Path, Entry> victim : lru) {
+            if (needed <= 0) {
+                break;
+            }
+            if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                return null;
+            }
+            victims.add(victim);
+            needed -= victim.getValue().data.capacity();
+        }
+
+        return needed > 0 ? null : victims;
+    }
+
+    private void remove(Path document, Entry entry) {
+        if (entries.remove(document, entry)) {
+            usedBytes.addAndGet(-entry.data.capacity());
+        }
+    }
+
+    private static ByteBuffer load(Path document, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+
+        try (FileChannel channel = FileChannel.open(document, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    // Replaced or truncated since it was stat'ed; serve it from disk instead
+                    LOGGER.fine("Document changed while caching: " + document);
+                    return null;
+                }
+            }
+        }
+
+        data.flip();
+        return data;
+    }
+
+    // ============================================
+    // FREQUENCY SKETCH
+    // ============================================
+
+    /**
+     * Count-min sketch of 4-bit-style counters (capped at 15) with periodic halving,
+     * so popularity ages out instead of accumulating forever. Counters are updated with CAS;
+     * a halving that races with increments loses at most those few counts.
+     */
+    static final class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0x5a6f1b8d, 0x2c1b3c6d, 0x7feb352d};
+
+        private final AtomicIntegerArray table;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+        private final AtomicBoolean resetting = new AtomicBoolean();
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+            this.table = new AtomicIntegerArray(size);
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+
+            for (int seed : SEEDS) {
+                int index = indexOf(hash, seed);
+                int count;
+                while ((count = table.get(index)) < MAX_COUNT) {
+                    if (table.compareAndSet(index, count, count + 1)) {
+                        added = true;
+                        break;
+                    }
+                }
+            }
+
+            if (added && additions.incrementAndGet() >= sampleSize && resetting.compareAndSet(false, true)) {
+                try {
+                    for (int i = 0; i < table.length(); i++) {
+                        table.getAndUpdate(i, count -> count >>> 1);
+                    }
+                    additions.set(additions.get() / 2);
+                } finally {
+                    resetting.set(false);
+                }
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, table.get(indexOf(hash, seed)));
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int seed) {
+            int h = hash * seed;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            int h = hash * 0x9e3779b9;
+            return h ^ (h >>> 15);
+        }
+    }
+}
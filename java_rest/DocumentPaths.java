@@ -0,0 +1,314 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared access to document-paths.properties for the tokenrest endpoints.
+ *
+ * The file is parsed into an immutable snapshot that readers use without locking. A watcher
+ * thread reloads it when the file changes; a file that fails validation is rejected and the
+ * last good snapshot stays in use. Settings read per request (doc types, paths, layouts,
+ * compression, ORDS endpoints) follow reloads; pool and cache sizes are read once at startup.
+ */
+final class DocumentPaths {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentPaths.class.getName());
+    static final String PATH_CONFIG_FILE = System.getProperty("tokenrest.config",
+            "/u01/oracle/config/document-paths.properties");
+
+    // Editors and config management write in several steps; wait for them to settle
+    private static final long RELOAD_SETTLE_MS = 200;
+
+    // Top-level keys that hold a path but are not doc types, so X-Doc-Type can never select them
+    private static final Set<String> RESERVED_KEYS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("TEMP_BASE_PATH", "AUDIT_FILE", "REPLICATION_LOG_DIR")));
+
+    private static volatile Snapshot current = Snapshot.EMPTY;
+
+    // ============================================
+    // STATIC INITIALIZATION
+    // ============================================
+
+    static {
+        reload();
+        startWatcher();
+    }
+
+    private DocumentPaths() {
+    }
+
+    // ============================================
+    // SNAPSHOT
+    // ============================================
+
+    /**
+     * Typed settings of one doc type: &lt;DOC_TYPE&gt;=path plus its optional .QUOTA_BYTES,
+     * .MAX_SIZE_BYTES, .MAX_CONCURRENT, .BYTES_PER_SECOND and .COMPRESSION keys
+     * (0 means unlimited).
+     */
+    static final class DocumentType {
+        final String name;
+        final String basePath;
+        final long quotaBytes;
+        final long maxSizeBytes;
+        final int maxConcurrent;
+        final long bytesPerSecond;
+        final ContentEncoding compression;
+
+        DocumentType(String name, String basePath, long quotaBytes, long maxSizeBytes,
+                     int maxConcurrent, long bytesPerSecond, ContentEncoding compression) {
+            this.name = name;
+            this.basePath = basePath;
+            this.quotaBytes = quotaBytes;
+            this.maxSizeBytes = maxSizeBytes;
+            this.maxConcurrent = maxConcurrent;
+            this.bytesPerSecond = bytesPerSecond;
+            this.compression = compression;
+        }
+    }
+
+    /**
+     * One validated version of the file; never modified after construction.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(
+                Collections.<String, String>emptyMap(), Collections.<String, DocumentType>emptyMap());
+
+        final Map<String, String> values;
+        final Map<String, DocumentType> documentTypes;
+
+        Snapshot(Map<String, String> values, Map<String, DocumentType> documentTypes) {
+            this.values = values;
+            this.documentTypes = documentTypes;
+        }
+    }
+
+    /**
+     * Parses and validates the properties; throws IllegalArgumentException naming the bad key.
+     */
+    private static Snapshot parse(Properties properties) {
+        Map<String, String> values = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key).trim());
+        }
+
+        Map<String, DocumentType> documentTypes = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String name = entry.getKey();
+            if (name.indexOf('.') >= 0 || RESERVED_KEYS.contains(name) || !isPath(entry.getValue())) {
+                continue;
+            }
+
+            Path basePath;
+            try {
+                basePath = Paths.get(entry.getValue());
+            } catch (InvalidPathException e) {
+                throw new IllegalArgumentException("Invalid path for " + name + ": " + entry.getValue());
+            }
+
+            String compression = values.get(name + ".COMPRESSION");
+            documentTypes.put(name, new DocumentType(name, basePath.normalize().toString(),
+                    nonNegative(values, name + ".QUOTA_BYTES"),
+                    nonNegative(values, name + ".MAX_SIZE_BYTES"),
+                    (int) Math.min(Integer.MAX_VALUE, nonNegative(values, name + ".MAX_CONCURRENT")),
+                    nonNegative(values, name + ".BYTES_PER_SECOND"),
+                    compression == null || compression.isEmpty() ?
+                            ContentEncoding.NONE : ContentEncoding.parse(name, compression)));
+        }
+
+        if (documentTypes.isEmpty()) {
+            throw new IllegalArgumentException("No document types configured");
+        }
+
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key.endsWith(".STORAGE") && !value.matches("(?i)plain|cas")) {
+                throw new IllegalArgumentException("Invalid storage mode for " + key + ": " + value);
+            }
+            // A typo here would silently write new files where readers do not look
+            if (key.endsWith(".LAYOUT") && !value.isEmpty()) {
+                try {
+                    PathStrategy.Registry.parse(value);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid layout for " + key + ": " + value);
+                }
+            }
+            if ((key.endsWith(".FSYNC") || key.equals("FSYNC_POLICY")) && !value.isEmpty()) {
+                AtomicFileWriter.FsyncPolicy.parse(key, value);
+            }
+        }
+
+        return new Snapshot(Collections.unmodifiableMap(values), Collections.unmodifiableMap(documentTypes));
+    }
+
+    private static boolean isPath(String value) {
+        return value.startsWith("/") || value.matches("[A-Za-z]:[\\\\/].*");
+    }
+
+    private static long nonNegative(Map<String, String> values, String key) {
+        String value = values.get(key);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+    }
+
+    // ============================================
+    // LOADING AND RELOADING
+    // ============================================
+
+    /**
+     * Loads the file and swaps in the new snapshot; keeps the current one when loading fails.
+     */
+    static boolean reload() {
+        Path configFile = Paths.get(PATH_CONFIG_FILE).toAbsolutePath();
+        LOGGER.info("Loading document paths from: " + configFile);
+
+        try (InputStream inputStream = Files.newInputStream(configFile)) {
+            Properties properties = new Properties();
+            properties.load(inputStream);
+
+            Snapshot snapshot = parse(properties);
+            current = snapshot;
+
+            // Not the values themselves: the file holds secrets (CS_SECRET)
+            LOGGER.info("Document paths loaded successfully: " + properties.size() + " keys");
+            LOGGER.info("Document types: " + new TreeSet<>(snapshot.documentTypes.keySet()));
+            return true;
+
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Rejected configuration file " + PATH_CONFIG_FILE
+                    + (current == Snapshot.EMPTY ? "; no document types are available" : "; keeping the previous settings"), e);
+            return false;
+        }
+    }
+
+    private static void startWatcher() {
+        Path configFile = Paths.get(PATH_CONFIG_FILE).toAbsolutePath();
+        Path directory = configFile.getParent();
+        if (directory == null || !Files.isDirectory(directory)) {
+            LOGGER.warning("Not watching " + configFile + " for changes: directory does not exist");
+            return;
+        }
+
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Not watching " + configFile + " for changes", e);
+            return;
+        }
+
+        Thread watcher = new Thread(() -> watch(watchService, configFile.getFileName()), "document-paths-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void watch(WatchService watchService, Path fileName) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+                }
+
+                if (changed) {
+                    TimeUnit.MILLISECONDS.sleep(RELOAD_SETTLE_MS);
+                    // Events raised while settling belong to the same change
+                    key.pollEvents();
+                    reload();
+                }
+
+                if (!key.reset()) {
+                    LOGGER.warning("Configuration directory is no longer watched; reloads stopped");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ============================================
+    // ACCESSORS
+    // ============================================
+
+    /**
+     * Returns the raw value for a key, or null when it is not configured.
+     */
+    static String get(String key) {
+        return current.values.get(key);
+    }
+
+    /**
+     * Returns a numeric setting, falling back to the default when missing or malformed.
+     */
+    static long getLong(String key, long defaultValue) {
+        String value = current.values.get(key);
+
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid numeric value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Names of the configured doc types.
+     */
+    static Set<String> documentTypeNames() {
+        return current.documentTypes.keySet();
+    }
+
+    /**
+     * Settings of a configured doc type, or null when the name is not a doc type.
+     */
+    static DocumentType documentType(String name) {
+        return name == null ? null : current.documentTypes.get(name);
+    }
+}
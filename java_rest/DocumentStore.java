@@ -0,0 +1,635 @@
+package tokenrest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage layer behind the upload and download endpoints.
+ * Documents are addressed by (docType, docId, fileName) and stored either as a plain
+ * docId_fileName file in the doc-type directory, or, when &lt;DOC_TYPE&gt;.STORAGE=cas,
+ * as one content-addressed blob per unique SHA-256 plus a small pointer in the index.
+ * Plain files may be compressed per &lt;DOC_TYPE&gt;.COMPRESSION, marked by a suffix (see ContentEncoding).
+ * Plain files and index pointers are placed by the doc type's PathStrategy; reads fall back
+ * to the flat location so directories can be migrated while the server is running.
+ *
+ * <pre>
+ * &lt;base&gt;/[shard/]docId_fileName[:gz|:zz]         plain mode
+ * &lt;base&gt;/.cas/blobs/ab/cd/abcd...              cas mode: one blob per unique digest
+ * &lt;base&gt;/.cas/index/[shard/]docId_fileName      cas mode: file holding the blob digest
+ * </pre>
+ *
+ * Blobs no index entry points at any more (replaced revisions) are deleted by a mark-and-sweep
+ * every CAS_SWEEP_INTERVAL_MS, once they are older than CAS_BLOB_GRACE_MS. Reusing a blob
+ * restarts its grace period, so a blob linked while a sweep is running is kept.
+ *
+ * Bodies are written to private temp files with no lock held, so unrelated and same-document
+ * uploads stream in parallel. Publishing (rename plus cleanup of replaced copies) and lookups
+ * take a per-document striped lock: concurrent writers of one document commit one at a time,
+ * the last commit wins, and a reader never observes a document half-replaced.
+ *
+ * The modification time of the plain file or index entry is the document's commit time, which
+ * replication compares across nodes: a local commit is dated later than the copy it replaces,
+ * and a copy from a peer keeps the commit time it had there.
+ */
+final class DocumentStore {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentStore.class.getName());
+
+    private static final String CAS_DIRECTORY = ".cas";
+    private static final String BLOB_DIRECTORY = "blobs";
+    private static final String INDEX_DIRECTORY = "index";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int DEFAULT_LOCK_STRIPES = 1024;
+    private static final long DEFAULT_SWEEP_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DEFAULT_BLOB_GRACE_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final DocumentStore INSTANCE = new DocumentStore();
+
+    private final StripedLocks locks =
+            new StripedLocks((int) DocumentPaths.getLong("DOCUMENT_LOCK_STRIPES", DEFAULT_LOCK_STRIPES));
+
+    private final long blobGraceMs = DocumentPaths.getLong("CAS_BLOB_GRACE_MS", DEFAULT_BLOB_GRACE_MS);
+
+    private DocumentStore() {
+        long sweepIntervalMs = DocumentPaths.getLong("CAS_SWEEP_INTERVAL_MS", DEFAULT_SWEEP_INTERVAL_MS);
+        if (sweepIntervalMs > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cas-blob-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::reclaimBlobs, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static DocumentStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Storage mode of a doc type, from &lt;DOC_TYPE&gt;.STORAGE (plain unless set to cas).
+     */
+    static boolean isContentAddressed(String documentType) {
+        String storage = DocumentPaths.get(documentType + ".STORAGE");
+        return storage != null && "cas".equalsIgnoreCase(storage.trim());
+    }
+
+    // ============================================
+    // WRITES
+    // ============================================
+
+    /**
+     * Stores the stream as the given document and returns the file a reader will be served.
+     * The commit is logged for replication to the peer nodes, if any, before this returns.
+     */
+    Path store(String documentType, String documentId, String fileName, InputStream inputStream)
+            throws IOException {
+
+        Path stored = write(documentType, documentId, fileName, inputStream);
+        ReplicationManager.getInstance().committed(documentType, documentId, fileName);
+        return stored;
+    }
+
+    private Path write(String documentType, String documentId, String fileName, InputStream inputStream)
+            throws IOException {
+
+        Path base = basePath(documentType);
+        String storedName = SaveDocumentV2.storedFileName(documentId, fileName);
+        AtomicFileWriter.FsyncPolicy policy = AtomicFileWriter.FsyncPolicy.forDocumentType(documentType);
+
+        PathStrategy layout = PathStrategy.forDocumentType(documentType);
+
+        if (!isContentAddressed(documentType)) {
+            ContentEncoding encoding = ContentEncoding.forStoring(documentType, fileName);
+            Path target = prepareTarget(layout, base, storedName + encoding.suffix);
+            Path prepared = AtomicFileWriter.prepare(inputStream, target, policy, encoding);
+
+            try {
+                install(documentType, layout, base, storedName, prepared, target, policy, null);
+                return target;
+            } finally {
+                Files.deleteIfExists(prepared);
+            }
+        }
+
+        // Hash while writing; the blob name is only known once the stream is consumed
+        Path blobRoot = Files.createDirectories(base.resolve(CAS_DIRECTORY).resolve(BLOB_DIRECTORY));
+        Path tempFile = AtomicFileWriter.tempFileFor(blobRoot.resolve("upload"));
+        DigestInputStream digestStream = new DigestInputStream(inputStream, newSha256());
+
+        try {
+            // Forced once, by link(), when the blob is committed
+            AtomicFileWriter.write(digestStream, tempFile, AtomicFileWriter.FsyncPolicy.NONE);
+            return link(documentType, layout, base, storedName,
+                    toHex(digestStream.getMessageDigest().digest()), tempFile, policy, null);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Publishes a fully written file (e.g. a committed chunked upload) as the given document
+     * and logs it for replication.
+     */
+    Path publish(String documentType, String documentId, String fileName, Path writtenFile)
+            throws IOException {
+
+        Path stored = publishFile(documentType, documentId, fileName, writtenFile, null);
+        ReplicationManager.getInstance().committed(documentType, documentId, fileName);
+        return stored;
+    }
+
+    /**
+     * Publishes a copy received from a peer node, dated with the time it was committed there;
+     * unlike publish() it is not replicated again. Returns null, leaving the local copy, when
+     * that copy was committed later.
+     */
+    Path publishReplica(String documentType, String documentId, String fileName, Path writtenFile,
+                        FileTime committedAt) throws IOException {
+        return publishFile(documentType, documentId, fileName, writtenFile, committedAt);
+    }
+
+    /**
+     * Publishes the file as a local commit when committedAt is null, as a replica otherwise.
+     */
+    private Path publishFile(String documentType, String documentId, String fileName, Path writtenFile,
+                             FileTime committedAt) throws IOException {
+
+        Path base = basePath(documentType);
+        String storedName = SaveDocumentV2.storedFileName(documentId, fileName);
+        AtomicFileWriter.FsyncPolicy policy = AtomicFileWriter.FsyncPolicy.forDocumentType(documentType);
+
+        PathStrategy layout = PathStrategy.forDocumentType(documentType);
+
+        if (!isContentAddressed(documentType)) {
+            ContentEncoding encoding = ContentEncoding.forStoring(documentType, fileName);
+            Path target = prepareTarget(layout, base, storedName + encoding.suffix);
+
+            if (encoding == ContentEncoding.NONE) {
+                AtomicFileWriter.force(writtenFile, policy);
+                return install(documentType, layout, base, storedName, writtenFile, target, policy, committedAt)
+                        ? target : null;
+            }
+
+            Path prepared;
+            try (InputStream inputStream = Files.newInputStream(writtenFile)) {
+                prepared = AtomicFileWriter.prepare(inputStream, target, policy, encoding);
+            }
+
+            boolean installed;
+            try {
+                installed = install(documentType, layout, base, storedName, prepared, target, policy, committedAt);
+            } finally {
+                Files.deleteIfExists(prepared);
+            }
+            Files.delete(writtenFile);
+            return installed ? target : null;
+        }
+
+        try {
+            return link(documentType, layout, base, storedName, digestOf(writtenFile), writtenFile, policy,
+                    committedAt);
+        } finally {
+            Files.deleteIfExists(writtenFile);
+        }
+    }
+
+    /**
+     * Moves the written file to its blob location unless an identical blob already exists,
+     * then points the index entry of the document at that blob; null when a replica lost to
+     * a later local commit.
+     */
+    private Path link(String documentType, PathStrategy layout, Path base, String storedName, String digest,
+                      Path writtenFile, AtomicFileWriter.FsyncPolicy policy, FileTime committedAt)
+            throws IOException {
+
+        Path blob = blobPath(base, digest);
+
+        // Under the blob's lock, so a sweep cannot delete a blob this commit is about to reuse
+        Lock blobLock = locks.get(blobLockKey(documentType, digest)).writeLock();
+        blobLock.lock();
+        try {
+            if (Files.exists(blob)) {
+                LOGGER.fine("Duplicate content for " + storedName + ", reusing blob " + digest);
+                Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                Files.createDirectories(blob.getParent());
+                AtomicFileWriter.commit(writtenFile, blob, policy);
+            }
+        } finally {
+            blobLock.unlock();
+        }
+
+        Path indexRoot = base.resolve(CAS_DIRECTORY).resolve(INDEX_DIRECTORY);
+        Path indexEntry = prepareTarget(layout, indexRoot, storedName);
+        Path prepared = AtomicFileWriter.prepare(new ByteArrayInputStream(digest.getBytes(StandardCharsets.US_ASCII)),
+                indexEntry, policy, ContentEncoding.NONE);
+
+        try {
+            return install(documentType, layout, indexRoot, storedName, prepared, indexEntry, policy, committedAt)
+                    ? blob : null;
+        } finally {
+            Files.deleteIfExists(prepared);
+        }
+    }
+
+    /**
+     * Renames the prepared file over the target and drops the copies it replaces, under the
+     * document's lock so concurrent commits of the same document apply one after the other.
+     * A local commit (committedAt null) is dated now, or just after the copy it replaces when
+     * that one comes from a node whose clock is ahead. A replica keeps its commit time and is
+     * not installed, returning false, when the local copy was committed later.
+     */
+    private boolean install(String documentType, PathStrategy layout, Path root, String storedName, Path prepared,
+                            Path target, AtomicFileWriter.FsyncPolicy policy, FileTime committedAt)
+            throws IOException {
+
+        Lock lock = locks.get(lockKey(documentType, storedName)).writeLock();
+        lock.lock();
+        try {
+            FileTime current = committedAt(layout, root, storedName);
+            FileTime version = committedAt;
+
+            if (version == null) {
+                long now = System.currentTimeMillis();
+                version = FileTime.fromMillis(current == null ? now : Math.max(now, current.toMillis() + 1));
+            } else if (current != null && current.toMillis() > version.toMillis()) {
+                return false;
+            }
+
+            Files.setLastModifiedTime(prepared, version);
+            AtomicFileWriter.install(prepared, target, policy);
+            DocumentCache.getInstance().invalidate(target);
+            removeOtherCopies(layout, root, storedName, target);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ============================================
+    // READS
+    // ============================================
+
+    /**
+     * Returns the readable file for the document, or null when it does not exist.
+     * In cas mode a plain file written before the switch is still found.
+     */
+    Path resolve(String documentType, String documentId, String fileName) throws IOException {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
+        if (settings == null) {
+            return null;
+        }
+
+        Path base = Paths.get(settings.basePath).toAbsolutePath().normalize();
+        String storedName = SaveDocumentV2.storedFileName(documentId, fileName);
+        PathStrategy layout = PathStrategy.forDocumentType(documentType);
+
+        Lock lock = locks.get(lockKey(documentType, storedName)).readLock();
+        lock.lock();
+        try {
+            if (isContentAddressed(documentType)) {
+                Path indexEntry = find(layout, base.resolve(CAS_DIRECTORY).resolve(INDEX_DIRECTORY), storedName);
+                if (indexEntry != null) {
+                    String digest = new String(Files.readAllBytes(indexEntry), StandardCharsets.US_ASCII).trim();
+                    Path blob = blobPath(base, digest);
+                    return Files.isRegularFile(blob) ? blob : null;
+                }
+            }
+
+            for (ContentEncoding encoding : ContentEncoding.searchOrder(documentType)) {
+                Path document = find(layout, base, storedName + encoding.suffix);
+                if (document != null) {
+                    return document;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * When the current version of the document was committed, on whichever node wrote it;
+     * null when the document does not exist.
+     */
+    FileTime committedAt(String documentType, String documentId, String fileName) throws IOException {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
+        if (settings == null) {
+            return null;
+        }
+
+        Path base = Paths.get(settings.basePath).toAbsolutePath().normalize();
+        String storedName = SaveDocumentV2.storedFileName(documentId, fileName);
+        PathStrategy layout = PathStrategy.forDocumentType(documentType);
+
+        Lock lock = locks.get(lockKey(documentType, storedName)).readLock();
+        lock.lock();
+        try {
+            if (isContentAddressed(documentType)) {
+                FileTime indexed = committedAt(layout, base.resolve(CAS_DIRECTORY).resolve(INDEX_DIRECTORY), storedName);
+                if (indexed != null) {
+                    return indexed;
+                }
+            }
+            return committedAt(layout, base, storedName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Latest modification time of the copies of a stored name under any compression suffix.
+     */
+    private static FileTime committedAt(PathStrategy layout, Path root, String storedName) throws IOException {
+        FileTime latest = null;
+
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            Path copy = find(layout, root, storedName + encoding.suffix);
+            if (copy != null) {
+                FileTime modified = Files.getLastModifiedTime(copy);
+                if (latest == null || modified.compareTo(latest) > 0) {
+                    latest = modified;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Returns the SHA-256 of a file returned by resolve() when it is a content-addressed blob,
+     * or null for a plain file.
+     */
+    static String contentDigest(Path file) {
+        Path parent = file.getParent();
+        String name = file.getFileName().toString();
+
+        if (parent != null && name.matches("[0-9a-f]{64}")
+                && parent.getParent() != null && parent.getParent().getParent() != null
+                && BLOB_DIRECTORY.equals(String.valueOf(parent.getParent().getParent().getFileName()))) {
+            return name;
+        }
+        return null;
+    }
+
+    /**
+     * Looks for the stored name at its layout location, then at the flat location.
+     */
+    private static Path find(PathStrategy layout, Path root, String storedName) {
+        Path located = layout.locate(root, storedName).normalize();
+        if (located.startsWith(root) && Files.isRegularFile(located)) {
+            return located;
+        }
+
+        if (!layout.isFlat()) {
+            Path flat = root.resolve(storedName).normalize();
+            if (flat.startsWith(root) && Files.isRegularFile(flat)) {
+                return flat;
+            }
+
+            // ShardMigrator runs in another process and may have linked and unlinked in between
+            if (located.startsWith(root) && Files.isRegularFile(located)) {
+                return located;
+            }
+        }
+
+        return null;
+    }
+
+    // ============================================
+    // BLOB RECLAMATION
+    // ============================================
+
+    private void reclaimBlobs() {
+        for (String documentType : DocumentPaths.documentTypeNames()) {
+            if (!isContentAddressed(documentType)) {
+                continue;
+            }
+            try {
+                int deleted = reclaimBlobs(documentType);
+                if (deleted > 0) {
+                    LOGGER.info("Removed " + deleted + " unreferenced blobs of " + documentType);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Blob sweep failed for " + documentType, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the blobs of a cas doc type that no index entry points at and that have not been
+     * written or reused within CAS_BLOB_GRACE_MS; returns how many were deleted.
+     */
+    int reclaimBlobs(String documentType) throws IOException {
+        Path base = basePath(documentType);
+        Path blobRoot = base.resolve(CAS_DIRECTORY).resolve(BLOB_DIRECTORY);
+        if (!Files.isDirectory(blobRoot)) {
+            return 0;
+        }
+
+        // Listed before the blobs, so any blob linked after this is younger than the grace period
+        Set<String> referenced = referencedDigests(base.resolve(CAS_DIRECTORY).resolve(INDEX_DIRECTORY));
+        long cutoff = System.currentTimeMillis() - blobGraceMs;
+        int[] deleted = new int[1];
+
+        Files.walkFileTree(blobRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                return PreviewPipeline.PREVIEW_DIRECTORY.equals(String.valueOf(directory.getFileName()))
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path blob, BasicFileAttributes attributes) throws IOException {
+                String digest = blob.getFileName().toString();
+                if (attributes.isRegularFile() && digest.matches("[0-9a-f]{64}") && !referenced.contains(digest)
+                        && attributes.lastModifiedTime().toMillis() < cutoff && deleteBlob(documentType, blob, cutoff)) {
+                    deleted[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Removed while the sweep was running
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted[0];
+    }
+
+    private static Set<String> referencedDigests(Path indexRoot) throws IOException {
+        Set<String> referenced = new HashSet<>();
+        if (!Files.isDirectory(indexRoot)) {
+            return referenced;
+        }
+
+        Files.walkFileTree(indexRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path entry, BasicFileAttributes attributes) throws IOException {
+                // Pending temp entries count too; they hold the digest of a commit in progress
+                if (attributes.isRegularFile() && attributes.size() <= 128) {
+                    try {
+                        referenced.add(new String(Files.readAllBytes(entry), StandardCharsets.US_ASCII).trim());
+                    } catch (NoSuchFileException e) {
+                        // Replaced or migrated while the index was listed
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return referenced;
+    }
+
+    /**
+     * Deletes the blob unless a commit reused it since it was found unreferenced.
+     */
+    private boolean deleteBlob(String documentType, Path blob, long cutoff) throws IOException {
+        Lock lock = locks.get(blobLockKey(documentType, blob.getFileName().toString())).writeLock();
+        lock.lock();
+        try {
+            if (!Files.isRegularFile(blob) || Files.getLastModifiedTime(blob).toMillis() >= cutoff) {
+                return false;
+            }
+            Files.delete(blob);
+            DocumentCache.getInstance().invalidate(blob);
+            PreviewPipeline.discard(blob);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private static String lockKey(String documentType, String storedName) {
+        return documentType + '/' + storedName;
+    }
+
+    /**
+     * Stored names never contain '/', so blob keys cannot share a document's key.
+     */
+    private static String blobLockKey(String documentType, String digest) {
+        return documentType + '/' + CAS_DIRECTORY + '/' + digest;
+    }
+
+    private static Path prepareTarget(PathStrategy layout, Path root, String storedName) throws IOException {
+        Path target = layout.locate(root, storedName).normalize();
+        if (!target.startsWith(root)) {
+            throw new IOException("Stored name escapes its directory: " + storedName);
+        }
+        Files.createDirectories(target.getParent());
+        return target;
+    }
+
+    /**
+     * Drops copies of the document that the one just written replaces, with their previews:
+     * a pre-migration flat copy, or a copy stored under a different compression suffix before
+     * the policy changed.
+     */
+    private static void removeOtherCopies(PathStrategy layout, Path root, String storedName, Path written)
+            throws IOException {
+
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            String name = storedName + encoding.suffix;
+            Path located = layout.locate(root, name).normalize();
+
+            if (!located.equals(written) && located.startsWith(root)) {
+                Files.deleteIfExists(located);
+                DocumentCache.getInstance().invalidate(located);
+                PreviewPipeline.discard(located);
+            }
+
+            if (!layout.isFlat()) {
+                Path flat = root.resolve(name).normalize();
+                if (!flat.equals(written) && flat.startsWith(root)) {
+                    Files.deleteIfExists(flat);
+                    DocumentCache.getInstance().invalidate(flat);
+                    PreviewPipeline.discard(flat);
+                }
+            }
+        }
+    }
+
+    static Path basePath(String documentType) throws IOException {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
+        if (settings == null) {
+            throw new IOException("No path configured for document type: " + documentType);
+        }
+        return Paths.get(settings.basePath).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Blob location sharded by the first two bytes of the digest: blobs/ab/cd/abcd...
+     */
+    private static Path blobPath(Path base, String digest) throws IOException {
+        if (!digest.matches("[0-9a-f]{64}")) {
+            throw new IOException("Corrupt content index entry: " + digest);
+        }
+        return base.resolve(CAS_DIRECTORY).resolve(BLOB_DIRECTORY)
+                .resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+    }
+
+    private static String digestOf(Path file) throws IOException {
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
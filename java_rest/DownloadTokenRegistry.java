@@ -0,0 +1,218 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signed, short-lived download tokens that any node can check without shared state.
+ * A token carries its expiry and the (docType, docId, fileName) it grants, signed with
+ * DOWNLOAD_TOKEN_SECRET, so a token issued by one node is honoured by every node configured with
+ * the same secret and issuing costs no disk or memory. A token stays valid for
+ * DOWNLOAD_TOKEN_TTL_MS so viewers can keep sending Range requests for the same document; the
+ * expiry is checked against the local clock. Without a secret a random key is used and tokens
+ * only work on the node that issued them, which then needs sticky routing.
+ */
+final class DownloadTokenRegistry {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadTokenRegistry.class.getName());
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_BYTES = 16;
+    private static final String FIELD_SEPARATOR = "\n";
+
+    private static final long DEFAULT_TOKEN_TTL_MS = 600000;
+    private static final long DEFAULT_TEMP_FILE_EXPIRATION_MS = 3000;
+    private static final long DEFAULT_SWEEP_INTERVAL_MS = 60000;
+
+    private static final DownloadTokenRegistry INSTANCE = new DownloadTokenRegistry(
+            DocumentPaths.get("DOWNLOAD_TOKEN_SECRET"),
+            DocumentPaths.getLong("DOWNLOAD_TOKEN_TTL_MS", DEFAULT_TOKEN_TTL_MS),
+            DocumentPaths.getLong("TEMP_FILE_EXPIRATION_MS", DEFAULT_TEMP_FILE_EXPIRATION_MS),
+            DocumentPaths.getLong("TEMP_SWEEP_INTERVAL_MS", DEFAULT_SWEEP_INTERVAL_MS));
+
+    private final byte[] signingKey;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+    private final long tokenTtlMs;
+    private final long tempFileExpirationMs;
+
+    private DownloadTokenRegistry(String secret, long tokenTtlMs, long tempFileExpirationMs, long sweepIntervalMs) {
+        this.tokenTtlMs = tokenTtlMs;
+        this.tempFileExpirationMs = tempFileExpirationMs;
+
+        if (secret != null && !secret.trim().isEmpty()) {
+            this.signingKey = secret.trim().getBytes(StandardCharsets.UTF_8);
+        } else {
+            this.signingKey = new byte[32];
+            new SecureRandom().nextBytes(signingKey);
+            LOGGER.warning("DOWNLOAD_TOKEN_SECRET is not set: download tokens are only valid on this node");
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "temp-file-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweepTempFiles,
+                sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    static DownloadTokenRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // TOKEN LIFECYCLE
+    // ============================================
+
+    /**
+     * Issues a new token for the document; nothing is stored.
+     */
+    String issue(String documentType, String documentId, String fileName) {
+        long expiresAt = System.currentTimeMillis() + tokenTtlMs;
+        byte[] payload = (expiresAt + FIELD_SEPARATOR + documentType + FIELD_SEPARATOR
+                + documentId + FIELD_SEPARATOR + fileName).getBytes(StandardCharsets.UTF_8);
+        return encode(payload) + "." + encode(sign(payload));
+    }
+
+    /**
+     * Returns the document bound to a token, or null when it is forged, malformed or expired.
+     */
+    DownloadToken resolve(String token) {
+        if (token == null) {
+            return null;
+        }
+        int separator = token.indexOf('.');
+        if (separator <= 0) {
+            return null;
+        }
+
+        byte[] payload;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, separator));
+            if (!MessageDigest.isEqual(sign(payload), decoder.decode(token.substring(separator + 1)))) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split(FIELD_SEPARATOR, -1);
+        if (fields.length != 4) {
+            return null;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+
+        return new DownloadToken(token, fields[1], fields[2], fields[3], expiresAt);
+    }
+
+    // ============================================
+    // SIGNATURES
+    // ============================================
+
+    private byte[] sign(byte[] payload) {
+        return Arrays.copyOf(macs.get().doFinal(payload), SIGNATURE_BYTES);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(signingKey, HMAC_ALGORITHM));
+            return mac;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot initialise download token signer", e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // ============================================
+    // TEMP DIRECTORY SWEEPER
+    // ============================================
+
+    /**
+     * Deletes leftover temp copies older than TEMP_FILE_EXPIRATION_MS.
+     */
+    private void sweepTempFiles() {
+        String tempBasePath = DocumentPaths.get("TEMP_BASE_PATH");
+        if (tempBasePath == null || tempBasePath.trim().isEmpty()) {
+            return;
+        }
+
+        Path tempDirectory = Paths.get(tempBasePath);
+        if (!Files.isDirectory(tempDirectory)) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - tempFileExpirationMs;
+        int deleted = 0;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDirectory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && Files.getLastModifiedTime(file).toMillis() < cutoff
+                        && Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Temp directory sweep failed: " + tempDirectory, e);
+        }
+
+        if (deleted > 0) {
+            LOGGER.info("Removed " + deleted + " expired temp files from " + tempDirectory);
+        }
+    }
+
+    // ============================================
+    // TOKEN ENTRY
+    // ============================================
+
+    /**
+     * Document bound to a download token.
+     */
+    static final class DownloadToken {
+
+        final String token;
+        final String documentType;
+        final String documentId;
+        final String fileName;
+        final long expiresAt;
+
+        DownloadToken(String token, String documentType, String documentId, String fileName, long expiresAt) {
+            this.token = token;
+            this.documentType = documentType;
+            this.documentId = documentId;
+            this.fileName = fileName;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
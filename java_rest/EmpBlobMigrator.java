@@ -0,0 +1,565 @@
+package tokenrest;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-shot tool that moves legacy documents out of EMP.EMP_DOC BLOBs into the file store.
+ * Each row is streamed over JDBC into DocumentStore (the SaveDocumentV2 naming, layout and
+ * compression rules for the doc type), read back and compared by SHA-256, and only then is
+ * EMP.FILENAME set so download_process.sql finds the file.
+ *
+ * The EMPNO range is split into partitions that run in parallel. Progress is checkpointed
+ * per partition, so an interrupted run resumes where it stopped; rows that already have a
+ * FILENAME and a stored file are skipped. Rows that fail are recorded in the checkpoint with
+ * their partition and retried first when the migration is run again. A shared byte-rate limit keeps the load on the
+ * database and the disks predictable during business hours.
+ *
+ * <pre>
+ * MIGRATE_JDBC_PASSWORD=... java -cp tokenrest.jar:ojdbc8.jar \
+ *      -Dmigrate.jdbc.url=jdbc:oracle:thin:@//db:1521/EDU -Dmigrate.jdbc.user=EDU \
+ *      -Dmigrate.threads=4 -Dmigrate.bytes.per.second=20971520 tokenrest.EmpBlobMigrator
+ * </pre>
+ *
+ * Other settings: migrate.partitions (threads x 4), migrate.doc.type (EMP_DOC),
+ * migrate.checkpoint (file, default &lt;doc-type dir&gt;/.migration/emp_doc.checkpoint) and
+ * migrate.clear.blobs (false; true also sets EMP_DOC to NULL once a row is verified).
+ *
+ * On a replicating node the migrated documents are appended to the node's replication logs
+ * and shipped by the file server when it next starts, so the migration runs while the server
+ * is stopped. With migrate.replicate=false it can run alongside the server; the documents are
+ * then not logged, and the peers fetch each one from this node when it is first downloaded there.
+ */
+public final class EmpBlobMigrator {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(EmpBlobMigrator.class.getName());
+
+    private static final String SQL_KEY_RANGE =
+            "SELECT MIN(EMPNO), MAX(EMPNO) FROM EMP WHERE EMP_DOC IS NOT NULL";
+    private static final String SQL_SELECT_ROWS =
+            "SELECT EMPNO, FILENAME, MIME_TYPE, EMP_DOC FROM EMP "
+            + "WHERE EMPNO > ? AND EMPNO <= ? AND EMP_DOC IS NOT NULL ORDER BY EMPNO";
+    private static final String SQL_SELECT_ROW =
+            "SELECT EMPNO, FILENAME, MIME_TYPE, EMP_DOC FROM EMP WHERE EMPNO = ? AND EMP_DOC IS NOT NULL";
+    private static final String SQL_SET_FILENAME = "UPDATE EMP SET FILENAME = ? WHERE EMPNO = ?";
+    private static final String SQL_SET_FILENAME_CLEAR_BLOB =
+            "UPDATE EMP SET FILENAME = ?, EMP_DOC = NULL WHERE EMPNO = ?";
+
+    // BLOB rows are large; keep the driver from prefetching many of them
+    private static final int FETCH_SIZE = 16;
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Names for rows stored without a FILENAME
+    private static final Map<String, String> EXTENSIONS = new HashMap<>();
+
+    static {
+        EXTENSIONS.put("application/pdf", ".pdf");
+        EXTENSIONS.put("image/jpeg", ".jpg");
+        EXTENSIONS.put("image/png", ".png");
+        EXTENSIONS.put("image/gif", ".gif");
+        EXTENSIONS.put("image/tiff", ".tif");
+        EXTENSIONS.put("text/plain", ".txt");
+        EXTENSIONS.put("text/csv", ".csv");
+        EXTENSIONS.put("application/msword", ".doc");
+        EXTENSIONS.put("application/vnd.openxmlformats-officedocument.wordprocessingml.document", ".docx");
+        EXTENSIONS.put("application/vnd.ms-excel", ".xls");
+        EXTENSIONS.put("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", ".xlsx");
+        EXTENSIONS.put("application/zip", ".zip");
+    }
+
+    /**
+     * Opens a JDBC connection; DriverManager in production, an embedded database in tests.
+     */
+    interface ConnectionSource {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionSource connections;
+    private final String documentType;
+    private final Path checkpointFile;
+    private final TokenBucket rateLimit;
+    private final boolean clearBlobs;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    EmpBlobMigrator(ConnectionSource connections, String documentType, Path checkpointFile,
+                    long bytesPerSecond, boolean clearBlobs) {
+        this.connections = connections;
+        this.documentType = documentType;
+        this.checkpointFile = checkpointFile;
+        this.rateLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, BUFFER_SIZE)) : null;
+        this.clearBlobs = clearBlobs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("migrate.jdbc.url");
+        if (url == null) {
+            System.err.println("Usage: java -Dmigrate.jdbc.url=<jdbc-url> -Dmigrate.jdbc.user=<user> "
+                    + "[-Dmigrate.threads=4] [-Dmigrate.bytes.per.second=0] tokenrest.EmpBlobMigrator "
+                    + "(password in MIGRATE_JDBC_PASSWORD)");
+            System.exit(2);
+        }
+
+        String user = System.getProperty("migrate.jdbc.user");
+        String password = System.getenv("MIGRATE_JDBC_PASSWORD");
+        String documentType = System.getProperty("migrate.doc.type", "EMP_DOC");
+        int threads = Integer.getInteger("migrate.threads", 4);
+        int partitions = Integer.getInteger("migrate.partitions", threads * 4);
+
+        String checkpoint = System.getProperty("migrate.checkpoint");
+        Path checkpointFile = checkpoint != null ? Paths.get(checkpoint)
+                : DocumentStore.basePath(documentType).resolve(".migration")
+                        .resolve(documentType.toLowerCase(Locale.ROOT) + ".checkpoint");
+
+        try {
+            ReplicationManager.initializeForTool(
+                    Boolean.parseBoolean(System.getProperty("migrate.replicate", "true")));
+        } catch (IOException e) {
+            System.err.println(e.getMessage() + ": stop the file server first, or run with "
+                    + "-Dmigrate.replicate=false to leave the peers to fetch the documents on demand");
+            System.exit(2);
+        }
+
+        EmpBlobMigrator migrator = new EmpBlobMigrator(
+                () -> DriverManager.getConnection(url, user, password),
+                documentType, checkpointFile,
+                Long.getLong("migrate.bytes.per.second", 0),
+                Boolean.getBoolean("migrate.clear.blobs"));
+
+        migrator.run(threads, partitions);
+        System.exit(migrator.failed.get() == 0 ? 0 : 1);
+    }
+
+    // ============================================
+    // MIGRATION
+    // ============================================
+
+    /**
+     * Migrates every row with a BLOB, resuming from the checkpoint when there is one.
+     */
+    void run(int threads, int partitionCount) throws IOException, SQLException, InterruptedException {
+        List<Partition> partitions = loadCheckpoint();
+        if (partitions == null) {
+            partitions = plan(partitionCount);
+            saveCheckpoint(partitions);
+        }
+
+        List<Partition> pending = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (partition.last < partition.high || !partition.failedRows.isEmpty()) {
+                pending.add(partition);
+            }
+        }
+
+        LOGGER.info("Migrating " + documentType + " BLOBs: " + pending.size() + " of " + partitions.size()
+                + " partitions pending, " + threads + " threads"
+                + (rateLimit != null ? ", rate limited" : "") + ", checkpoint " + checkpointFile);
+
+        long started = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> results = new ArrayList<>();
+        List<Partition> all = partitions;
+
+        try {
+            for (Partition partition : pending) {
+                results.add(executor.submit(() -> {
+                    migratePartition(partition, all);
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    // The partition stops at its checkpoint; a re-run continues from there
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Partition aborted", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            saveCheckpoint(partitions);
+        }
+
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+        LOGGER.info("Migration of " + documentType + " finished: migrated=" + migrated + " skipped=" + skipped
+                + " failed=" + failed + " bytes=" + bytes + " (" + bytes.get() / seconds / 1024 + " KB/s)");
+    }
+
+    private void migratePartition(Partition partition, List<Partition> all)
+            throws SQLException, IOException, InterruptedException {
+
+        try (Connection reader = connections.open();
+             Connection writer = connections.open()) {
+
+            writer.setAutoCommit(true);
+
+            try (PreparedStatement select = reader.prepareStatement(SQL_SELECT_ROWS);
+                 PreparedStatement update = writer.prepareStatement(
+                         clearBlobs ? SQL_SET_FILENAME_CLEAR_BLOB : SQL_SET_FILENAME)) {
+
+                retryFailedRows(partition, all, reader, update);
+
+                select.setFetchSize(FETCH_SIZE);
+                select.setLong(1, partition.last);
+                select.setLong(2, partition.high);
+
+                int sinceCheckpoint = 0;
+
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException();
+                        }
+
+                        long employeeNumber = rows.getLong(1);
+                        if (!migrateRow(employeeNumber, rows.getString(2), rows.getString(3), rows, update, false)) {
+                            partition.failedRows.add(employeeNumber);
+                        }
+                        partition.last = employeeNumber;
+
+                        if (++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                            saveCheckpoint(all);
+                            sinceCheckpoint = 0;
+                        }
+                    }
+                }
+            }
+        }
+
+        partition.last = partition.high;
+        saveCheckpoint(all);
+    }
+
+    /**
+     * Tries the rows that failed in earlier runs again; those that fail again stay recorded.
+     */
+    private void retryFailedRows(Partition partition, List<Partition> all, Connection reader,
+                                 PreparedStatement update) throws SQLException, IOException, InterruptedException {
+        if (partition.failedRows.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info("Retrying " + partition.failedRows.size() + " failed rows in (" + partition.low + ", "
+                + partition.high + "]");
+
+        try (PreparedStatement select = reader.prepareStatement(SQL_SELECT_ROW)) {
+            for (Long employeeNumber : new ArrayList<>(partition.failedRows)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+
+                select.setLong(1, employeeNumber);
+                try (ResultSet rows = select.executeQuery()) {
+                    // A row without a BLOB any more has nothing left to migrate
+                    if (!rows.next()
+                            || migrateRow(employeeNumber, rows.getString(2), rows.getString(3), rows, update, true)) {
+                        partition.failedRows.remove(employeeNumber);
+                    }
+                }
+            }
+        }
+
+        saveCheckpoint(all);
+    }
+
+    /**
+     * Stores one BLOB, verifies the stored copy and records the file name on the row; returns
+     * false when the row failed, which is logged and counted, and the partition moves on.
+     * A retry stores the row again even when a file with its FILENAME exists, since that file
+     * may be the copy that failed verification.
+     */
+    private boolean migrateRow(long employeeNumber, String existingName, String mimeType, ResultSet rows,
+                               PreparedStatement update, boolean retry) throws SQLException, InterruptedException {
+
+        String documentId = String.valueOf(employeeNumber);
+        boolean named = existingName != null && !existingName.trim().isEmpty();
+        String fileName = named ? existingName.trim() : "document_" + documentId + extensionFor(mimeType);
+        DocumentStore store = DocumentStore.getInstance();
+
+        try {
+            if (!retry && named && store.resolve(documentType, documentId, fileName) != null) {
+                // Migrated by an earlier run that stopped before its checkpoint
+                skipped.incrementAndGet();
+                return true;
+            }
+
+            MessageDigest sourceDigest = newSha256();
+            long length;
+
+            try (InputStream blob = rows.getBinaryStream(4)) {
+                if (blob == null) {
+                    skipped.incrementAndGet();
+                    return true;
+                }
+
+                CountingInputStream counted = new CountingInputStream(new DigestInputStream(blob, sourceDigest));
+                store.store(documentType, documentId, fileName, counted);
+                length = counted.count;
+            }
+
+            Path stored = store.resolve(documentType, documentId, fileName);
+            String expected = DocumentStore.toHex(sourceDigest.digest());
+            String actual = stored == null ? null : digestOf(stored);
+
+            if (!expected.equals(actual)) {
+                failed.incrementAndGet();
+                LOGGER.severe("Checksum mismatch for EMPNO " + documentId + ": source " + expected
+                        + ", stored " + actual + "; FILENAME not updated");
+                return false;
+            }
+
+            update.setString(1, fileName);
+            update.setLong(2, employeeNumber);
+            update.executeUpdate();
+
+            bytes.addAndGet(length);
+            long done = migrated.incrementAndGet();
+            if (done % PROGRESS_INTERVAL == 0) {
+                LOGGER.info("Migrated " + done + " documents, " + bytes.get() / (1024 * 1024) + " MB");
+            }
+            return true;
+
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            // Stopped while storing; not a failure of the row
+            throw new InterruptedException("Interrupted while migrating EMPNO " + documentId);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Cannot migrate EMPNO " + documentId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Splits [MIN(EMPNO), MAX(EMPNO)] into contiguous ranges (low, high].
+     */
+    private List<Partition> plan(int partitionCount) throws SQLException {
+        long min;
+        long max;
+
+        try (Connection connection = connections.open();
+             PreparedStatement statement = connection.prepareStatement(SQL_KEY_RANGE);
+             ResultSet range = statement.executeQuery()) {
+
+            range.next();
+            min = range.getLong(1);
+            if (range.wasNull()) {
+                return new ArrayList<>();
+            }
+            max = range.getLong(2);
+        }
+
+        int count = (int) Math.max(1, Math.min(partitionCount, max - min + 1));
+        long span = (max - min + count) / count;
+        List<Partition> partitions = new ArrayList<>(count);
+
+        for (long low = min - 1; low < max; low += span) {
+            partitions.add(new Partition(low, Math.min(max, low + span), low));
+        }
+        return partitions;
+    }
+
+    // ============================================
+    // CHECKPOINT
+    // ============================================
+
+    /**
+     * One key range (low, high]; last is the highest EMPNO already handled, and failedRows
+     * the EMPNOs up to it that still have to be migrated.
+     */
+    static final class Partition {
+        final long low;
+        final long high;
+        volatile long last;
+        final Set<Long> failedRows = new ConcurrentSkipListSet<>();
+
+        Partition(long low, long high, long last) {
+            this.low = low;
+            this.high = high;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Checkpoint written atomically: partition.N=low,high,last and, when rows of the partition
+     * failed, failed.N=empno,empno,...
+     */
+    private synchronized void saveCheckpoint(List<Partition> partitions) throws IOException {
+        StringBuilder content = new StringBuilder("# EMP BLOB migration of ").append(documentType).append('\n');
+        for (int i = 0; i < partitions.size(); i++) {
+            Partition partition = partitions.get(i);
+            content.append("partition.").append(i).append('=')
+                    .append(partition.low).append(',').append(partition.high).append(',').append(partition.last)
+                    .append('\n');
+            if (!partition.failedRows.isEmpty()) {
+                content.append("failed.").append(i).append('=');
+                String separator = "";
+                for (Long employeeNumber : partition.failedRows) {
+                    content.append(separator).append(employeeNumber);
+                    separator = ",";
+                }
+                content.append('\n');
+            }
+        }
+
+        Files.createDirectories(checkpointFile.toAbsolutePath().getParent());
+        AtomicFileWriter.write(new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.US_ASCII)),
+                checkpointFile, AtomicFileWriter.FsyncPolicy.DATA);
+    }
+
+    private List<Partition> loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(checkpointFile)) {
+            properties.load(inputStream);
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        for (int i = 0; properties.containsKey("partition." + i); i++) {
+            String[] values = properties.getProperty("partition." + i).split(",");
+            try {
+                Partition partition = new Partition(Long.parseLong(values[0].trim()), Long.parseLong(values[1].trim()),
+                        Long.parseLong(values[2].trim()));
+                String failedRows = properties.getProperty("failed." + i, "").trim();
+                if (!failedRows.isEmpty()) {
+                    for (String employeeNumber : failedRows.split(",")) {
+                        partition.failedRows.add(Long.parseLong(employeeNumber.trim()));
+                    }
+                }
+                partitions.add(partition);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Corrupt checkpoint " + checkpointFile + " at partition." + i, e);
+            }
+        }
+
+        LOGGER.info("Resuming from checkpoint " + checkpointFile);
+        return partitions;
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private static String extensionFor(String mimeType) {
+        if (mimeType == null) {
+            return ".bin";
+        }
+        String extension = EXTENSIONS.get(mimeType.trim().toLowerCase(Locale.ROOT));
+        return extension != null ? extension : ".bin";
+    }
+
+    /**
+     * SHA-256 of the document as a client would download it (stored compression removed).
+     */
+    private static String digestOf(Path stored) throws IOException {
+        String contentDigest = DocumentStore.contentDigest(stored);
+        if (contentDigest != null) {
+            return contentDigest;
+        }
+
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = ContentEncoding.ofStoredFile(stored).decode(Files.newInputStream(stored))) {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return DocumentStore.toHex(digest.digest());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Counts the bytes read and applies the shared rate limit.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                consumed(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int bytesRead = super.read(buffer, offset, Math.min(length, BUFFER_SIZE));
+            if (bytesRead > 0) {
+                consumed(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        private void consumed(int bytesRead) throws IOException {
+            count += bytesRead;
+            if (rateLimit == null) {
+                return;
+            }
+            try {
+                rateLimit.acquire(bytesRead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams a region of a stored document to the response with FileChannel.transferTo,
+ * so the file is read once, sequentially, and never copied to a temp location.
+ */
+final class FileChannelStreamingOutput implements StreamingOutput {
+
+    private final Path file;
+    private final long position;
+    private final long count;
+
+    FileChannelStreamingOutput(Path file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        long started = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(channel, position, count, output);
+        }
+
+        Metrics.recordStage(Metrics.Stage.TRANSFER, started);
+    }
+
+    /**
+     * Transfers count bytes starting at position from the channel to the output.
+     */
+    static void transfer(FileChannel channel, long position, long count, OutputStream output)
+            throws IOException {
+
+        WritableByteChannel target = Channels.newChannel(output);
+        long offset = position;
+        long remaining = count;
+
+        while (remaining > 0) {
+            long transferred = channel.transferTo(offset, remaining, target);
+            if (transferred <= 0) {
+                // File was truncated underneath us
+                throw new IOException("Unexpected end of file: " + offset);
+            }
+            offset += transferred;
+            remaining -= transferred;
+        }
+
+        Metrics.addBytesOut(count);
+
+        output.flush();
+    }
+}
@@ -0,0 +1,96 @@
+package tokenrest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear latency histogram in the style of HdrHistogram: 64 linear sub-buckets
+ * per power of two of microseconds, so every recorded value is kept to within about 1.6%
+ * from 1 microsecond up to several hours, in a fixed 18 KB of counters.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    // ============================================
+    // RECORDING
+    // ============================================
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(indexOf(Math.min(micros, (1L << MAX_MAGNITUDE) - 1)));
+        totalCount.increment();
+        totalMicros.add(micros);
+    }
+
+    /**
+     * Records the time elapsed since a System.nanoTime() reading.
+     */
+    void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    // ============================================
+    // READING
+    // ============================================
+
+    long count() {
+        return totalCount.sum();
+    }
+
+    double sumSeconds() {
+        return totalMicros.sum() / 1e6;
+    }
+
+    /**
+     * Value at the quantile (0..1), in seconds; the upper edge of the bucket that holds it.
+     */
+    double quantileSeconds(double quantile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueAt(i) / 1e6;
+            }
+        }
+        return highestValueAt(counts.length() - 1) / 1e6;
+    }
+
+    // ============================================
+    // BUCKETING
+    // ============================================
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
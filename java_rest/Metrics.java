@@ -0,0 +1,206 @@
+package tokenrest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide request metrics, rendered by MetricsResource in the Prometheus text format.
+ * Latencies are kept per stage so a slow upload can be attributed to the client, ORDS or disk.
+ */
+final class Metrics {
+
+    /**
+     * Request stages timed separately.
+     */
+    enum Stage {
+        HEADER_VALIDATION,
+        SESSION_VALIDATION,
+        PATH_RESOLUTION,
+        DISK_WRITE,
+        TRANSFER,
+        RESPONSE;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final String PREFIX = "tokenrest_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<Stage, LatencyHistogram> STAGES = new EnumMap<>(Stage.class);
+    private static final ConcurrentHashMap<String, LatencyHistogram> REQUESTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> RESPONSES = new ConcurrentHashMap<>();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+
+    static {
+        for (Stage stage : Stage.values()) {
+            STAGES.put(stage, new LatencyHistogram());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // ============================================
+    // RECORDING
+    // ============================================
+
+    /**
+     * Records the time spent in a stage since a System.nanoTime() reading.
+     */
+    static void recordStage(Stage stage, long startNanos) {
+        STAGES.get(stage).recordSince(startNanos);
+    }
+
+    /**
+     * Records a finished request of an endpoint (resource method) with its status code.
+     */
+    static void recordResponse(String endpoint, int status, long startNanos) {
+        REQUESTS.computeIfAbsent(endpoint, key -> new LatencyHistogram()).recordSince(startNanos);
+        RESPONSES.computeIfAbsent(endpoint + "\u0000" + status, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Wraps an upload body so the bytes actually read are counted as bytes in.
+     */
+    static InputStream countingBytesIn(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value != -1) {
+                    BYTES_IN.increment();
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int bytesRead = super.read(buffer, offset, length);
+                if (bytesRead > 0) {
+                    BYTES_IN.add(bytesRead);
+                }
+                return bytesRead;
+            }
+        };
+    }
+
+    static void addBytesIn(long bytes) {
+        BYTES_IN.add(bytes);
+    }
+
+    static void addBytesOut(long bytes) {
+        BYTES_OUT.add(bytes);
+    }
+
+    // ============================================
+    // PROMETHEUS EXPOSITION
+    // ============================================
+
+    /**
+     * Renders every metric in the Prometheus text exposition format (version 0.0.4).
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "stage_latency_seconds", "summary", "Latency of each request stage");
+        for (Map.Entry<Stage, LatencyHistogram> stage : STAGES.entrySet()) {
+            summary(out, "stage_latency_seconds", "stage=\"" + stage.getKey().label + "\"", stage.getValue());
+        }
+
+        header(out, "request_latency_seconds", "summary", "End-to-end latency per endpoint");
+        for (Map.Entry<String, LatencyHistogram> request : new TreeMap<>(REQUESTS).entrySet()) {
+            summary(out, "request_latency_seconds", "endpoint=\"" + request.getKey() + "\"", request.getValue());
+        }
+
+        header(out, "responses_total", "counter", "Responses per endpoint and status code");
+        for (Map.Entry<String, LongAdder> response : new TreeMap<>(RESPONSES).entrySet()) {
+            String[] key = response.getKey().split("\u0000");
+            sample(out, "responses_total", "endpoint=\"" + key[0] + "\",code=\"" + key[1] + "\"",
+                    response.getValue().sum());
+        }
+
+        header(out, "bytes_in_total", "counter", "Document bytes received");
+        sample(out, "bytes_in_total", null, BYTES_IN.sum());
+        header(out, "bytes_out_total", "counter", "Document bytes sent");
+        sample(out, "bytes_out_total", null, BYTES_OUT.sum());
+
+        header(out, "session_cache_requests_total", "counter", "Session validation cache lookups");
+        cacheSamples(out, "validation", ApexSessionValidator.resultCache());
+        cacheSamples(out, "liveness", ApexSessionValidator.livenessCache());
+
+        header(out, "document_cache_requests_total", "counter", "Hot document cache lookups");
+        sample(out, "document_cache_requests_total", "result=\"hit\"", DocumentCache.getInstance().hitCount());
+        sample(out, "document_cache_requests_total", "result=\"miss\"", DocumentCache.getInstance().missCount());
+        header(out, "document_cache_bytes", "gauge", "Bytes held by the hot document cache");
+        sample(out, "document_cache_bytes", null, DocumentCache.getInstance().usedBytes());
+
+        header(out, "ords_circuit_open", "gauge", "1 while the ORDS circuit breaker rejects calls");
+        sample(out, "ords_circuit_open", null,
+                OrdsClient.getInstance().circuitState() == CircuitBreaker.State.OPEN ? 1 : 0);
+
+        header(out, "uploads_in_flight", "gauge", "Uploads holding an UploadExecutor slot");
+        sample(out, "uploads_in_flight", null, UploadExecutor.getInstance().inFlight());
+
+        header(out, "previews_total", "counter", "Document previews generated, impossible or not queued");
+        sample(out, "previews_total", "result=\"generated\"", PreviewPipeline.getInstance().generatedCount());
+        sample(out, "previews_total", "result=\"unavailable\"", PreviewPipeline.getInstance().unavailableCount());
+        sample(out, "previews_total", "result=\"dropped\"", PreviewPipeline.getInstance().droppedCount());
+        header(out, "previews_pending", "gauge", "Previews queued or being generated");
+        sample(out, "previews_pending", null, PreviewPipeline.getInstance().pendingCount());
+
+        header(out, "replication_lag", "gauge", "Commits not yet acknowledged by each peer node");
+        for (Map.Entry<String, Long> peer : ReplicationManager.getInstance().lag().entrySet()) {
+            sample(out, "replication_lag", "peer=\"" + peer.getKey() + "\"", peer.getValue());
+        }
+
+        header(out, "audit_events_total", "counter", "Audit events written or dropped");
+        sample(out, "audit_events_total", "result=\"written\"", AuditSink.getInstance().writtenCount());
+        sample(out, "audit_events_total", "result=\"dropped\"", AuditSink.getInstance().droppedCount());
+
+        return out.toString();
+    }
+
+    private static void cacheSamples(StringBuilder out, String cache, SessionValidationCache source) {
+        sample(out, "session_cache_requests_total", "cache=\"" + cache + "\",result=\"hit\"", source.hitCount());
+        sample(out, "session_cache_requests_total", "cache=\"" + cache + "\",result=\"miss\"", source.missCount());
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            sample(out, name, labels + ",quantile=\"" + quantile + "\"", histogram.quantileSeconds(quantile));
+        }
+        sample(out, name + "_sum", labels, histogram.sumSeconds());
+        sample(out, name + "_count", labels, histogram.count());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
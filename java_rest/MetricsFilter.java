@@ -0,0 +1,78 @@
+package tokenrest;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+
+/**
+ * Times every request and counts responses per resource method and status code; each
+ * response is also handed to the AuditSink. For streamed downloads the time is to the
+ * response headers, not to the last byte.
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+
+    // Doc type and id come from headers on uploads and from the path on downloads
+    private static final String HEADER_DOC_ID = "X-Doc-Id";
+    private static final String HEADER_DOC_TYPE = "X-Doc-Type";
+    private static final String PATH_DOC_ID = "docId";
+    private static final String PATH_DOC_TYPE = "docType";
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    @Override
+    public void filter(
+            ContainerRequestContext requestContext,
+            ContainerResponseContext responseContext
+    ) throws IOException {
+
+        Object start = requestContext.getProperty(START_PROPERTY);
+        if (start instanceof Long) {
+            String endpoint = endpoint();
+            Metrics.recordResponse(endpoint, responseContext.getStatus(), (Long) start);
+            audit(requestContext, endpoint, responseContext.getStatus(), System.nanoTime() - (Long) start);
+        }
+    }
+
+    private static void audit(ContainerRequestContext requestContext, String endpoint, int status, long latencyNanos) {
+        AuditSink sink = AuditSink.getInstance();
+        if (!sink.isEnabled()) {
+            return;
+        }
+
+        MultivaluedMap<String, String> pathParameters = requestContext.getUriInfo().getPathParameters();
+        sink.record(new AuditSink.Event(System.currentTimeMillis(), endpoint, status, latencyNanos,
+                firstOf(requestContext.getHeaderString(HEADER_DOC_TYPE), pathParameters.getFirst(PATH_DOC_TYPE)),
+                firstOf(requestContext.getHeaderString(HEADER_DOC_ID), pathParameters.getFirst(PATH_DOC_ID)),
+                requestContext.getHeaderString(ApexSessionValidator.HEADER_APP_ID),
+                requestContext.getHeaderString(ApexSessionValidator.HEADER_SESSION_ID)));
+    }
+
+    private static String firstOf(String value, String fallback) {
+        return value != null ? value : fallback;
+    }
+
+    /**
+     * Resource class and method, e.g. SaveDocumentV2.saveDocument; bounded, unlike the raw path.
+     */
+    private String endpoint() {
+        if (resourceInfo == null || resourceInfo.getResourceMethod() == null) {
+            return "unmatched";
+        }
+        return resourceInfo.getResourceClass().getSimpleName() + "." + resourceInfo.getResourceMethod().getName();
+    }
+}
@@ -0,0 +1,24 @@
+package tokenrest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * Prometheus scrape endpoint; disabled with METRICS_ENABLED=false.
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @GET
+    @Produces(CONTENT_TYPE)
+    public Response scrape() {
+        if ("false".equalsIgnoreCase(String.valueOf(DocumentPaths.get("METRICS_ENABLED")).trim())) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(Metrics.scrape(), CONTENT_TYPE).build();
+    }
+}
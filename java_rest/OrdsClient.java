@@ -0,0 +1,229 @@
+package tokenrest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared HTTP/1.1 client for every ORDS call made by tokenrest.
+ * Connections are kept alive and reused by the JDK keep-alive cache; calls are bounded
+ * per host and globally, use millisecond timeouts, and fail fast while the circuit is open.
+ * The JDK keeps at most http.maxConnections (default 5) idle connections per host; start the
+ * server with -Dhttp.maxConnections equal to ORDS_MAX_CONNECTIONS_PER_HOST so none are dropped.
+ */
+final class OrdsClient {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(OrdsClient.class.getName());
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final OrdsClient INSTANCE = new OrdsClient(
+            (int) DocumentPaths.getLong("ORDS_CONNECT_TIMEOUT_MS", 1000),
+            (int) DocumentPaths.getLong("ORDS_READ_TIMEOUT_MS", 3000),
+            (int) DocumentPaths.getLong("ORDS_MAX_CONCURRENCY", 50),
+            (int) DocumentPaths.getLong("ORDS_MAX_CONNECTIONS_PER_HOST", 20),
+            DocumentPaths.getLong("ORDS_ACQUIRE_TIMEOUT_MS", 100),
+            new CircuitBreaker(
+                    (int) DocumentPaths.getLong("ORDS_BREAKER_FAILURES", 5),
+                    DocumentPaths.getLong("ORDS_BREAKER_OPEN_MS", 10000)));
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int maxConnectionsPerHost;
+    private final long acquireTimeoutMs;
+    private final Semaphore bulkhead;
+    private final ConcurrentHashMap<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+    private final CircuitBreaker breaker;
+
+    OrdsClient(int connectTimeoutMs, int readTimeoutMs, int maxConcurrency,
+               int maxConnectionsPerHost, long acquireTimeoutMs, CircuitBreaker breaker) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.bulkhead = new Semaphore(Math.max(1, maxConcurrency));
+        this.breaker = breaker;
+    }
+
+    static OrdsClient getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // REQUESTS
+    // ============================================
+
+    /**
+     * Sends a GET with the given headers and returns status and body.
+     */
+    OrdsResponse get(String endpoint, Map<String, String> headers) throws IOException {
+        return execute("GET", endpoint, headers, null);
+    }
+
+    /**
+     * Sends a JSON POST with the given headers and returns status and body.
+     */
+    OrdsResponse post(String endpoint, Map<String, String> headers, byte[] jsonBody) throws IOException {
+        return execute("POST", endpoint, headers, jsonBody);
+    }
+
+    private OrdsResponse execute(String method, String endpoint, Map<String, String> headers, byte[] body)
+            throws IOException {
+
+        URL url = new URL(endpoint);
+
+        if (!breaker.tryAcquire()) {
+            throw new OrdsUnavailableException("ORDS circuit open: " + url.getHost());
+        }
+
+        Semaphore hostLimit = hostLimits.computeIfAbsent(url.getHost() + ":" + url.getPort(),
+                host -> new Semaphore(maxConnectionsPerHost));
+
+        if (!acquire(bulkhead)) {
+            breaker.cancel();
+            throw new OrdsUnavailableException("ORDS bulkhead full");
+        }
+
+        try {
+            if (!acquire(hostLimit)) {
+                breaker.cancel();
+                throw new OrdsUnavailableException("ORDS connection limit reached: " + url.getHost());
+            }
+
+            try {
+                OrdsResponse response = send(url, method, headers, body);
+
+                if (response.status >= 500) {
+                    breaker.recordFailure();
+                } else {
+                    breaker.recordSuccess();
+                }
+                return response;
+
+            } catch (IOException | RuntimeException e) {
+                // Any failure ends a half-open trial, or the breaker would never admit another
+                breaker.recordFailure();
+                throw e;
+            } finally {
+                hostLimit.release();
+            }
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    private OrdsResponse send(URL url, String method, Map<String, String> headers, byte[] body)
+            throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", "application/json");
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream outputStream = connection.getOutputStream()) {
+                    outputStream.write(body);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            return new OrdsResponse(status, readFully(connection, status));
+
+        } catch (IOException e) {
+            // Broken connection must not go back to the keep-alive cache
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Drains and closes the response so the connection can be reused.
+     */
+    private static String readFully(HttpURLConnection connection, int status) throws IOException {
+        try (InputStream inputStream = status >= 200 && status < 300 ?
+                connection.getInputStream() : connection.getErrorStream()) {
+
+            if (inputStream == null) {
+                return "";
+            }
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                response.write(buffer, 0, bytesRead);
+            }
+
+            return new String(response.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    private boolean acquire(Semaphore semaphore) {
+        try {
+            return semaphore.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.FINE, "Interrupted waiting for ORDS capacity", e);
+            return false;
+        }
+    }
+
+    CircuitBreaker.State circuitState() {
+        return breaker.state();
+    }
+
+    // ============================================
+    // RESULT TYPES
+    // ============================================
+
+    /**
+     * Status code and body of an ORDS response.
+     */
+    static final class OrdsResponse {
+
+        final int status;
+        final String body;
+
+        OrdsResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Raised when ORDS is not called because the circuit is open or capacity is exhausted.
+     */
+    static final class OrdsUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OrdsUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package tokenrest;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Decides where a stored document lives below its doc-type directory.
+ * Configured per doc type as &lt;DOC_TYPE&gt;.LAYOUT: "flat" (default), "hashed",
+ * or the class name of a custom PathStrategy with a public no-argument constructor;
+ * DocumentPaths rejects a file naming any other layout.
+ */
+interface PathStrategy {
+
+    /**
+     * Returns the location of the stored file name below the directory.
+     */
+    Path locate(Path directory, String storedName);
+
+    /**
+     * Returns true when the layout places files directly in the directory.
+     */
+    boolean isFlat();
+
+    // ============================================
+    // CONFIGURATION
+    // ============================================
+
+    /**
+     * Strategy configured for the doc type; flat when none is configured.
+     */
+    static PathStrategy forDocumentType(String documentType) {
+        String layout = DocumentPaths.get(documentType + ".LAYOUT");
+        if (layout == null || layout.trim().isEmpty()) {
+            return Flat.INSTANCE;
+        }
+        return Registry.lookup(layout.trim());
+    }
+
+    // ============================================
+    // BUILT-IN LAYOUTS
+    // ============================================
+
+    /**
+     * Every file directly in the doc-type directory (the original layout).
+     */
+    final class Flat implements PathStrategy {
+
+        static final Flat INSTANCE = new Flat();
+
+        @Override
+        public Path locate(Path directory, String storedName) {
+            return directory.resolve(storedName);
+        }
+
+        @Override
+        public boolean isFlat() {
+            return true;
+        }
+    }
+
+    /**
+     * Two levels of 256 directories from the SHA-256 of the stored name: ab/cd/docId_fileName.
+     * Keeps directories small at millions of files without needing a lookup to resolve.
+     */
+    final class Hashed implements PathStrategy {
+
+        static final Hashed INSTANCE = new Hashed();
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        });
+
+        @Override
+        public Path locate(Path directory, String storedName) {
+            MessageDigest digest = SHA256.get();
+            digest.reset();
+            byte[] hash = digest.digest(storedName.getBytes(StandardCharsets.UTF_8));
+
+            return directory.resolve(hex(hash[0])).resolve(hex(hash[1])).resolve(storedName);
+        }
+
+        @Override
+        public boolean isFlat() {
+            return false;
+        }
+
+        private static String hex(byte value) {
+            return new String(new char[] {HEX_DIGITS[(value >> 4) & 0x0F], HEX_DIGITS[value & 0x0F]});
+        }
+    }
+
+    /**
+     * Resolves layout names, instantiating custom strategies once.
+     */
+    final class Registry {
+
+        private static final Logger LOGGER = Logger.getLogger(PathStrategy.class.getName());
+        private static final ConcurrentHashMap<String, PathStrategy> CUSTOM = new ConcurrentHashMap<>();
+
+        private Registry() {
+        }
+
+        static PathStrategy lookup(String layout) {
+            try {
+                return parse(layout);
+            } catch (IllegalArgumentException e) {
+                // DocumentPaths rejects such files; only reachable without a loaded snapshot
+                LOGGER.warning("Unknown path layout '" + layout + "', using flat");
+                return Flat.INSTANCE;
+            }
+        }
+
+        /**
+         * Resolves a layout name; throws IllegalArgumentException when it names no strategy.
+         */
+        static PathStrategy parse(String layout) {
+            switch (layout.toLowerCase(Locale.ROOT)) {
+                case "flat":
+                    return Flat.INSTANCE;
+                case "hashed":
+                    return Hashed.INSTANCE;
+                default:
+                    return CUSTOM.computeIfAbsent(layout, Registry::instantiate);
+            }
+        }
+
+        private static PathStrategy instantiate(String className) {
+            try {
+                return (PathStrategy) Class.forName(className).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                throw new IllegalArgumentException("Unknown path layout: " + className, e);
+            }
+        }
+    }
+}
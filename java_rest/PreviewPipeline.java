@@ -0,0 +1,430 @@
+package tokenrest;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates small JPEG previews of stored images and PDFs after they are committed, so list
+ * pages can show a thumbnail instead of downloading the document.
+ *
+ * The preview of a stored file is written to the reserved .previews directory beside it, under the
+ * same name, so it never shares the document namespace: layouts, migrations and stored-name
+ * lookups only see documents. An empty preview file records that none can be made. Work runs on a
+ * ForkJoinPool of PREVIEW_THREADS; a document already queued is not queued again, at most
+ * PREVIEW_MAX_PENDING are queued, and failed attempts are retried PREVIEW_MAX_ATTEMPTS times
+ * with a growing delay. Documents stored before this pipeline get their preview on first request.
+ *
+ * PDFs are previewed from their first embedded JPEG (DCTDecode) image, which is how scanners
+ * store pages; PDFs without one get no preview.
+ */
+final class PreviewPipeline {
+
+    /**
+     * What the preview endpoint can serve for a document.
+     */
+    enum State {
+        READY,
+        PENDING,
+        UNAVAILABLE
+    }
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(PreviewPipeline.class.getName());
+
+    static final String PREVIEW_DIRECTORY = ".previews";
+
+    // Name previews had when they were written next to the document; ShardMigrator drops them
+    static final String LEGACY_PREVIEW_SUFFIX = ":preview";
+
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "bmp"));
+    private static final String PDF_EXTENSION = "pdf";
+
+    private static final byte[] DCT_DECODE = "/DCTDecode".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STREAM = "stream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_STREAM = "endstream".getBytes(StandardCharsets.US_ASCII);
+
+    private static final PreviewPipeline INSTANCE = new PreviewPipeline(
+            (int) DocumentPaths.getLong("PREVIEW_THREADS", 2),
+            (int) DocumentPaths.getLong("PREVIEW_MAX_PENDING", 1000),
+            (int) DocumentPaths.getLong("PREVIEW_MAX_DIMENSION", 256),
+            (int) DocumentPaths.getLong("PREVIEW_MAX_ATTEMPTS", 3),
+            DocumentPaths.getLong("PREVIEW_RETRY_DELAY_MS", 2000),
+            DocumentPaths.getLong("PREVIEW_MAX_SOURCE_BYTES", 32 * 1024 * 1024));
+
+    private final ForkJoinPool pool;
+    private final ScheduledExecutorService retries;
+    private final int maxPending;
+    private final int maxDimension;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+    private final long maxSourceBytes;
+
+    // Documents queued or being generated; the dedup set and the queue bound
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private PreviewPipeline(int threads, int maxPending, int maxDimension, int maxAttempts,
+                            long retryDelayMs, long maxSourceBytes) {
+        this.pool = new ForkJoinPool(Math.max(1, threads), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("preview-worker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+        this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "preview-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPending = Math.max(1, maxPending);
+        this.maxDimension = Math.max(16, maxDimension);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = Math.max(0, retryDelayMs);
+        this.maxSourceBytes = maxSourceBytes;
+    }
+
+    static PreviewPipeline getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // QUEUEING
+    // ============================================
+
+    /**
+     * Queues a preview of a stored document (the file returned by DocumentStore); a no-op
+     * for other file types, for documents already queued and when the queue is full.
+     */
+    void submit(Path document, String fileName) {
+        if (!isPreviewable(fileName)) {
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            dropped.increment();
+            return;
+        }
+        if (pending.add(document)) {
+            pool.execute(() -> generate(document, fileName, 1));
+        }
+    }
+
+    /**
+     * Whether the preview of a resolved document can be served; queues it when it is missing
+     * or older than the document.
+     */
+    State state(Path document, String fileName) throws IOException {
+        if (!isPreviewable(fileName)) {
+            return State.UNAVAILABLE;
+        }
+
+        Path preview = previewOf(document);
+        BasicFileAttributes previewAttributes = attributesOrNull(preview);
+        BasicFileAttributes documentAttributes = attributesOrNull(document);
+
+        if (previewAttributes != null && documentAttributes != null
+                && previewAttributes.lastModifiedTime().compareTo(documentAttributes.lastModifiedTime()) >= 0) {
+            return previewAttributes.size() > 0 ? State.READY : State.UNAVAILABLE;
+        }
+
+        submit(document, fileName);
+        return State.PENDING;
+    }
+
+    static Path previewOf(Path document) {
+        return document.resolveSibling(PREVIEW_DIRECTORY).resolve(document.getFileName().toString());
+    }
+
+    /**
+     * Deletes the preview of a document copy that is being removed.
+     */
+    static void discard(Path document) throws IOException {
+        Files.deleteIfExists(previewOf(document));
+    }
+
+    /**
+     * Moves the preview along with a document that moved, keeping one already at the destination.
+     */
+    static void relocate(Path from, Path to) throws IOException {
+        Path source = previewOf(from);
+        if (!Files.exists(source)) {
+            return;
+        }
+
+        Path target = previewOf(to);
+        if (Files.exists(target)) {
+            Files.deleteIfExists(source);
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static boolean isPreviewable(String fileName) {
+        String extension = extensionOf(fileName);
+        return IMAGE_EXTENSIONS.contains(extension) || PDF_EXTENSION.equals(extension);
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    long generatedCount() {
+        return generated.sum();
+    }
+
+    long unavailableCount() {
+        return unavailable.sum();
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    // ============================================
+    // GENERATION
+    // ============================================
+
+    private void generate(Path document, String fileName, int attempt) {
+        boolean finished = true;
+        FileTime version = null;
+
+        try {
+            version = Files.getLastModifiedTime(document);
+            BufferedImage image = PDF_EXTENSION.equals(extensionOf(fileName))
+                    ? readPdfImage(document) : readImage(openDecoded(document));
+
+            writePreview(document, image == null ? new byte[0] : encode(scale(image)), version);
+
+            if (image == null) {
+                unavailable.increment();
+                LOGGER.fine("No preview possible for " + document);
+            } else {
+                generated.increment();
+            }
+
+        } catch (NoSuchFileException e) {
+            // Replaced or removed since it was queued; the next request queues it again
+            LOGGER.fine("Document gone before its preview was made: " + document);
+
+        } catch (IOException | RuntimeException e) {
+            if (attempt < maxAttempts) {
+                finished = false;
+                long delay = retryDelayMs << (attempt - 1);
+                LOGGER.log(Level.FINE, "Preview of " + document + " failed, retrying in " + delay + " ms", e);
+                retries.schedule(() -> pool.execute(() -> generate(document, fileName, attempt + 1)),
+                        delay, TimeUnit.MILLISECONDS);
+            } else {
+                LOGGER.log(Level.WARNING, "Giving up on the preview of " + document + " after " + attempt + " attempts", e);
+                unavailable.increment();
+                markUnavailable(document, version);
+            }
+
+        } finally {
+            if (finished) {
+                pending.remove(document);
+            }
+        }
+    }
+
+    /**
+     * Dated as the version it was made from, so a document replaced meanwhile reads as newer.
+     */
+    private static void writePreview(Path document, byte[] preview, FileTime version) throws IOException {
+        Path previewFile = previewOf(document);
+        Files.createDirectories(previewFile.getParent());
+        AtomicFileWriter.write(new ByteArrayInputStream(preview), previewFile, AtomicFileWriter.FsyncPolicy.NONE);
+        Files.setLastModifiedTime(previewFile, version);
+    }
+
+    /**
+     * Records the failure as an empty preview, so requests stop queueing this version again.
+     */
+    private static void markUnavailable(Path document, FileTime version) {
+        if (version == null) {
+            return;
+        }
+        try {
+            writePreview(document, new byte[0], version);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot record the missing preview of " + document, e);
+        }
+    }
+
+    private static InputStream openDecoded(Path document) throws IOException {
+        return ContentEncoding.ofStoredFile(document).decode(Files.newInputStream(document));
+    }
+
+    /**
+     * Decodes an image, subsampled while reading so a large scan never exists in memory at
+     * full resolution; null when no ImageIO reader understands it.
+     */
+    private BufferedImage readImage(InputStream source) throws IOException {
+        try (InputStream inputStream = source;
+             ImageInputStream imageStream = ImageIO.createImageInputStream(inputStream)) {
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageStream, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, longest / (maxDimension * 2));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * First embedded JPEG of the PDF that decodes, looking at most maxSourceBytes in.
+     */
+    private BufferedImage readPdfImage(Path document) throws IOException {
+        byte[] pdf;
+        try (InputStream inputStream = openDecoded(document)) {
+            pdf = readAtMost(inputStream, maxSourceBytes);
+        }
+
+        int position = 0;
+        while ((position = indexOf(pdf, DCT_DECODE, position)) >= 0) {
+            position += DCT_DECODE.length;
+
+            int streamStart = indexOf(pdf, STREAM, position);
+            if (streamStart < 0) {
+                break;
+            }
+            int dataStart = streamStart + STREAM.length;
+            // The keyword is followed by CRLF or LF
+            if (dataStart < pdf.length && pdf[dataStart] == '\r') {
+                dataStart++;
+            }
+            if (dataStart < pdf.length && pdf[dataStart] == '\n') {
+                dataStart++;
+            }
+
+            int dataEnd = indexOf(pdf, END_STREAM, dataStart);
+            if (dataEnd < 0) {
+                break;
+            }
+
+            BufferedImage image = readImage(new ByteArrayInputStream(pdf, dataStart, dataEnd - dataStart));
+            if (image != null) {
+                return image;
+            }
+            position = dataEnd;
+        }
+        return null;
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        double factor = Math.min(1.0, (double) maxDimension / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+
+        // JPEG has no alpha channel
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(16 * 1024);
+        if (!ImageIO.write(image, "jpg", output)) {
+            throw new IOException("No JPEG writer available");
+        }
+        return output.toByteArray();
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private static String extensionOf(String fileName) {
+        int dot = fileName == null ? -1 : fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static BasicFileAttributes attributesOrNull(Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readAtMost(InputStream inputStream, long limit) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int bytesRead;
+
+        while (total < limit && (bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) != -1) {
+            output.write(buffer, 0, bytesRead);
+            total += bytesRead;
+        }
+        return output.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = Math.max(0, from); i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
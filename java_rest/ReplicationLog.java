@@ -0,0 +1,218 @@
+package tokenrest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable queue of committed documents still to be shipped to one peer: an append-only
+ * &lt;peer&gt;.log of "sequence TAB docType TAB docId TAB fileName" lines (fields URL-encoded) and a
+ * &lt;peer&gt;.cursor holding the last acknowledged sequence and its end offset. A peer that is
+ * down simply falls behind and catches up from its cursor; the log is truncated whenever the
+ * peer has acknowledged all of it. Commits are appended in batches, forced to disk once per batch.
+ */
+final class ReplicationLog {
+
+    private static final int READ_CHUNK = 256 * 1024;
+
+    /**
+     * One logged commit; nextOffset is where the following entry starts.
+     */
+    static final class Entry {
+        final long sequence;
+        final String documentType;
+        final String documentId;
+        final String fileName;
+        final long nextOffset;
+
+        Entry(long sequence, String documentType, String documentId, String fileName, long nextOffset) {
+            this.sequence = sequence;
+            this.documentType = documentType;
+            this.documentId = documentId;
+            this.fileName = fileName;
+            this.nextOffset = nextOffset;
+        }
+
+        String key() {
+            return documentType + '/' + SaveDocumentV2.storedFileName(documentId, fileName);
+        }
+    }
+
+    /**
+     * A commit to be logged.
+     */
+    static final class Commit {
+        final String documentType;
+        final String documentId;
+        final String fileName;
+
+        Commit(String documentType, String documentId, String fileName) {
+            this.documentType = documentType;
+            this.documentId = documentId;
+            this.fileName = fileName;
+        }
+    }
+
+    private final Path cursorFile;
+    private final FileChannel channel;
+
+    private long nextSequence;
+    private long ackedSequence;
+    private long ackedOffset;
+
+    /**
+     * Opens or creates the log of a peer, dropping a line left half written by a crash.
+     */
+    ReplicationLog(Path directory, String peer) throws IOException {
+        Files.createDirectories(directory);
+        this.cursorFile = directory.resolve(peer + ".cursor");
+        this.channel = FileChannel.open(directory.resolve(peer + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (Files.exists(cursorFile)) {
+            String[] cursor = new String(Files.readAllBytes(cursorFile), StandardCharsets.US_ASCII).trim().split(" ");
+            ackedSequence = Long.parseLong(cursor[0]);
+            ackedOffset = Long.parseLong(cursor[1]);
+        }
+        // Truncated after the last acknowledgement, before the cursor was rewritten
+        ackedOffset = Math.min(ackedOffset, channel.size());
+
+        long end = ackedOffset;
+        long lastSequence = ackedSequence;
+        List<Entry> entries;
+        while (!(entries = readFrom(end, Integer.MAX_VALUE)).isEmpty()) {
+            Entry last = entries.get(entries.size() - 1);
+            lastSequence = last.sequence;
+            end = last.nextOffset;
+        }
+        if (channel.size() > end) {
+            channel.truncate(end);
+        }
+        nextSequence = lastSequence + 1;
+    }
+
+    // ============================================
+    // APPEND AND READ
+    // ============================================
+
+    /**
+     * Records the commits in order with one write; when force is set they are on disk
+     * when this returns.
+     */
+    synchronized void append(List<Commit> commits, boolean force) throws IOException {
+        StringBuilder lines = new StringBuilder(commits.size() * 96);
+        long sequence = nextSequence;
+        for (Commit commit : commits) {
+            lines.append(sequence++).append('\t').append(encode(commit.documentType))
+                    .append('\t').append(encode(commit.documentId))
+                    .append('\t').append(encode(commit.fileName)).append('\n');
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        long start = channel.size();
+        long position = start;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // Drop a partly written batch so the next one does not follow a broken line
+            channel.truncate(start);
+            throw e;
+        }
+
+        nextSequence = sequence;
+    }
+
+    /**
+     * Up to max entries after the acknowledged one, oldest first.
+     */
+    synchronized List<Entry> read(int max) throws IOException {
+        return readFrom(ackedOffset, max);
+    }
+
+    /**
+     * Marks everything up to and including the entry as shipped.
+     */
+    synchronized void acknowledge(Entry entry) throws IOException {
+        ackedSequence = entry.sequence;
+        ackedOffset = entry.nextOffset;
+
+        if (ackedOffset == channel.size()) {
+            // Fully caught up: start the file over
+            channel.truncate(0);
+            ackedOffset = 0;
+        }
+
+        byte[] cursor = (ackedSequence + " " + ackedOffset + "\n").getBytes(StandardCharsets.US_ASCII);
+        AtomicFileWriter.write(new ByteArrayInputStream(cursor), cursorFile, AtomicFileWriter.FsyncPolicy.DATA);
+    }
+
+    /**
+     * Commits logged but not yet acknowledged by the peer.
+     */
+    synchronized long lag() {
+        return nextSequence - 1 - ackedSequence;
+    }
+
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private List<Entry> readFrom(long offset, int max) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = channel.size();
+        long position = offset;
+
+        while (entries.size() < max && position < size) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_CHUNK, size - position));
+            channel.read(buffer, position);
+            byte[] data = buffer.array();
+
+            int lineStart = 0;
+            for (int i = 0; i < buffer.position() && entries.size() < max; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String[] fields = new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8).split("\t");
+                lineStart = i + 1;
+                if (fields.length == 4) {
+                    entries.add(new Entry(Long.parseLong(fields[0]), decode(fields[1]), decode(fields[2]),
+                            decode(fields[3]), position + lineStart));
+                }
+            }
+
+            if (lineStart == 0) {
+                // Only a partial line left
+                break;
+            }
+            position += lineStart;
+        }
+        return entries;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+}
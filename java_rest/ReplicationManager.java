@@ -0,0 +1,925 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional replication of committed documents to peer file servers.
+ *
+ * Every commit is appended to a ReplicationLog per peer before the upload returns. Commits
+ * arriving while a batch is being written are appended together by the next caller, with one
+ * write and one force per log, so concurrent uploads share the cost of the fsync. The logs
+ * belong to one process, which holds a lock on REPLICATION_LOG_DIR; command line tools that
+ * store documents log their commits without shipping them (see initializeForTool).
+ *
+ * One shipper thread per peer sends the current version of each logged document to that
+ * peer's ReplicationV2 endpoint, in log order, retrying with backoff while the peer is down.
+ * A download of a document missing locally (a new or lagging node) is fetched from the first
+ * peer that has it, verified and stored before it is served. Such fetches are bounded so that
+ * misses cannot tie up the request threads: a short read timeout, one fetch per document with
+ * concurrent readers waiting for it, a brief memory of documents no peer had, and a cap on
+ * fetches in flight beyond which the download is answered 503.
+ *
+ * A version is the commit time of the document on the node that wrote it, with the SHA-256 of
+ * the decoded content as tie-break and checksum. A peer that already has the version, or a
+ * later one, is not sent the body; a receiver installs a copy only when its checksum matches
+ * and it is later than the local one. Replication is eventually consistent: until a peer has
+ * caught up it may serve the previous version, and concurrent writes of one document on two
+ * nodes converge on the last one written, as far as the node clocks agree.
+ *
+ * Configuration: REPLICATION_NODE_ID, REPLICATION_PEERS (node2=http://host2:7001/tokenrest/api,...;
+ * empty disables replication), REPLICATION_SECRET (shared by all nodes), REPLICATION_LOG_DIR,
+ * REPLICATION_CONNECT_TIMEOUT_MS, REPLICATION_READ_TIMEOUT_MS (shipping), REPLICATION_RETRY_MS,
+ * REPLICATION_FETCH_TIMEOUT_MS, REPLICATION_FETCH_NEGATIVE_TTL_MS and REPLICATION_MAX_CONCURRENT_FETCHES.
+ */
+final class ReplicationManager {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicationManager.class.getName());
+
+    static final String HEADER_TOKEN = "X-Replication-Token";
+    static final String HEADER_NODE = "X-Replication-Node";
+    static final String HEADER_SEQUENCE = "X-Replication-Sequence";
+    static final String HEADER_CONTENT_SHA256 = "X-Content-SHA256";
+    static final String HEADER_VERSION = "X-Replication-Version";
+    static final String RESOURCE_PATH = "ReplicationV2";
+
+    private static final int BATCH_SIZE = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_RETRY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_CACHED_VERSIONS = 10000;
+    private static final String LOCK_FILE = ".lock";
+
+    private static final int DEFAULT_FETCH_TIMEOUT_MS = 2000;
+    private static final long DEFAULT_FETCH_NEGATIVE_TTL_MS = 5000;
+    private static final int DEFAULT_MAX_CONCURRENT_FETCHES = 8;
+    private static final int MAX_MISSING_ENTRIES = 10000;
+
+    private static volatile ReplicationManager instance;
+
+    /**
+     * Where replicated documents are read from and installed; DocumentStore on a file server,
+     * a plain directory in the in-process test cluster.
+     */
+    interface ReplicaStore {
+        /**
+         * The stored file of the document, or null.
+         */
+        Path resolve(String documentType, String documentId, String fileName) throws IOException;
+
+        /**
+         * When the stored document was committed, in epoch milliseconds, or -1 without one.
+         */
+        long committedAt(String documentType, String documentId, String fileName) throws IOException;
+
+        /**
+         * Opens the document's content as uploaded (decompressed).
+         */
+        InputStream open(Path stored) throws IOException;
+
+        /**
+         * A new file on the same file system as the document, for spooling a received copy.
+         */
+        Path tempFile(String documentType, String documentId, String fileName) throws IOException;
+
+        /**
+         * Publishes a verified, fully written copy committed at the given time as the document;
+         * the file is consumed. Returns false, keeping the stored document, when that one was
+         * committed later.
+         */
+        boolean install(String documentType, String documentId, String fileName, Path writtenFile, long committedAt)
+                throws IOException;
+    }
+
+    /**
+     * Thrown when a document would have to be fetched from a peer while the maximum number of
+     * fetches is already in flight; answered 503 with Retry-After.
+     */
+    static final class FetchRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FetchRejectedException(String key) {
+            super("Too many replica fetches in flight, not fetching " + key);
+        }
+    }
+
+    /**
+     * Outcome of a replication request received from a peer.
+     */
+    enum Received {
+        STORED,
+        UNCHANGED,
+        SUPERSEDED,
+        CHECKSUM_MISMATCH
+    }
+
+    /**
+     * The local copy of a document and its version.
+     */
+    static final class Version {
+        final Path file;
+        final String sha256;
+        final long committedAt;
+
+        Version(Path file, String sha256, long committedAt) {
+            this.file = file;
+            this.sha256 = sha256;
+            this.committedAt = committedAt;
+        }
+
+        /**
+         * Whether a version committed at the given time with the given checksum replaces this one.
+         */
+        boolean isOlderThan(long otherCommittedAt, String otherSha256) {
+            return otherCommittedAt > committedAt
+                    || (otherCommittedAt == committedAt && otherSha256.compareToIgnoreCase(sha256) > 0);
+        }
+    }
+
+    private final String nodeId;
+    private final String secret;
+    private final ReplicaStore store;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final long retryMs;
+    private final int fetchTimeoutMs;
+    private final long fetchNegativeTtlMs;
+    private final Semaphore fetchPermits;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+
+    // Commits not yet in the logs; whoever holds appendLock appends all of them
+    private final ConcurrentLinkedQueue<PendingCommit> pending = new ConcurrentLinkedQueue<>();
+    private final Object appendLock = new Object();
+    private final FileLock directoryLock;
+
+    // Fetches from the peers in flight, one per document; other readers wait for its result
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> fetches = new ConcurrentHashMap<>();
+    // Documents no peer could supply, until when they are not asked for again
+    private final ConcurrentHashMap<String, Long> missing = new ConcurrentHashMap<>();
+
+    // Digests of plain files, by path; entries are dropped when the size or time changes
+    private final ConcurrentHashMap<Path, CachedVersion> versions = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    ReplicationManager(String nodeId, Map<String, String> peerUrls, Path logDirectory, String secret,
+                       ReplicaStore store, int connectTimeoutMs, int readTimeoutMs, long retryMs) throws IOException {
+        this(nodeId, peerUrls, logDirectory, secret, store, connectTimeoutMs, readTimeoutMs, retryMs,
+                DEFAULT_FETCH_TIMEOUT_MS, DEFAULT_FETCH_NEGATIVE_TTL_MS, DEFAULT_MAX_CONCURRENT_FETCHES, true);
+    }
+
+    /**
+     * Without ship, commits are only logged; the process that next opens the logs with
+     * shipping sends them.
+     */
+    private ReplicationManager(String nodeId, Map<String, String> peerUrls, Path logDirectory, String secret,
+                               ReplicaStore store, int connectTimeoutMs, int readTimeoutMs, long retryMs,
+                               int fetchTimeoutMs, long fetchNegativeTtlMs, int maxConcurrentFetches,
+                               boolean ship) throws IOException {
+        this.nodeId = nodeId;
+        this.secret = secret;
+        this.store = store;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.retryMs = Math.max(10, retryMs);
+        this.fetchTimeoutMs = fetchTimeoutMs;
+        this.fetchNegativeTtlMs = fetchNegativeTtlMs;
+        this.fetchPermits = new Semaphore(Math.max(1, maxConcurrentFetches));
+
+        // Before opening the logs: opening one drops a half written last line
+        this.directoryLock = peerUrls.isEmpty() ? null : lockDirectory(logDirectory);
+        try {
+            for (Map.Entry<String, String> peer : peerUrls.entrySet()) {
+                String baseUrl = peer.getValue().endsWith("/") ? peer.getValue() : peer.getValue() + "/";
+                peers.put(peer.getKey(), new Peer(peer.getKey(), baseUrl,
+                        new ReplicationLog(logDirectory, peer.getKey())));
+            }
+        } catch (IOException e) {
+            closeLogs();
+            throw e;
+        }
+
+        if (ship) {
+            for (Peer peer : peers.values()) {
+                peer.thread.start();
+            }
+        }
+    }
+
+    /**
+     * Takes the lock that makes this process the only writer of the logs in the directory.
+     */
+    private static FileLock lockDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another manager in this JVM
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        throw new IOException("Replication logs in " + directory + " are in use by another process");
+    }
+
+    /**
+     * The node's manager, built from document-paths.properties on first use; without
+     * REPLICATION_PEERS it has no peers and every call is a no-op.
+     */
+    static ReplicationManager getInstance() {
+        ReplicationManager manager = instance;
+        if (manager == null) {
+            synchronized (ReplicationManager.class) {
+                if (instance == null) {
+                    instance = fromConfiguration();
+                }
+                manager = instance;
+            }
+        }
+        return manager;
+    }
+
+    private static ReplicationManager fromConfiguration() {
+        Map<String, String> peerUrls = parsePeers(DocumentPaths.get("REPLICATION_PEERS"));
+        String logDirectory = DocumentPaths.get("REPLICATION_LOG_DIR");
+        String secret = DocumentPaths.get("REPLICATION_SECRET");
+
+        if (!peerUrls.isEmpty() && (logDirectory == null || secret == null || secret.isEmpty())) {
+            LOGGER.severe("REPLICATION_PEERS needs REPLICATION_LOG_DIR and REPLICATION_SECRET; replication is disabled");
+            peerUrls = Collections.emptyMap();
+        }
+
+        try {
+            ReplicationManager manager = new ReplicationManager(
+                    DocumentPaths.get("REPLICATION_NODE_ID"), peerUrls,
+                    logDirectory == null ? null : Paths.get(logDirectory), secret, new DocumentStoreReplicas(),
+                    (int) DocumentPaths.getLong("REPLICATION_CONNECT_TIMEOUT_MS", 1000),
+                    (int) DocumentPaths.getLong("REPLICATION_READ_TIMEOUT_MS", 30000),
+                    DocumentPaths.getLong("REPLICATION_RETRY_MS", 1000),
+                    (int) DocumentPaths.getLong("REPLICATION_FETCH_TIMEOUT_MS", DEFAULT_FETCH_TIMEOUT_MS),
+                    DocumentPaths.getLong("REPLICATION_FETCH_NEGATIVE_TTL_MS", DEFAULT_FETCH_NEGATIVE_TTL_MS),
+                    (int) DocumentPaths.getLong("REPLICATION_MAX_CONCURRENT_FETCHES", DEFAULT_MAX_CONCURRENT_FETCHES),
+                    true);
+            if (!peerUrls.isEmpty()) {
+                LOGGER.info("Replicating as " + manager.nodeId + " to " + peerUrls.keySet());
+            }
+            return manager;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot open the replication logs in " + logDirectory + "; replication is disabled", e);
+            return new ReplicationManager(secret);
+        }
+    }
+
+    /**
+     * A manager without peers.
+     */
+    private ReplicationManager(String secret) {
+        this.nodeId = null;
+        this.secret = secret;
+        this.store = new DocumentStoreReplicas();
+        this.connectTimeoutMs = 0;
+        this.readTimeoutMs = 0;
+        this.retryMs = 0;
+        this.fetchTimeoutMs = 0;
+        this.fetchNegativeTtlMs = 0;
+        this.fetchPermits = new Semaphore(0);
+        this.directoryLock = null;
+    }
+
+    /**
+     * Sets up replication for a command line tool that stores documents, before its first
+     * commit. With logCommits the commits are appended to the node's replication logs but not
+     * shipped; the file server sends them when it next starts. This needs the logs to
+     * itself and fails while the file server runs. Without logCommits nothing is replicated,
+     * and peers fetch the documents from this node when they are first downloaded there.
+     */
+    static void initializeForTool(boolean logCommits) throws IOException {
+        synchronized (ReplicationManager.class) {
+            if (instance != null) {
+                throw new IllegalStateException("Replication is already initialized");
+            }
+
+            Map<String, String> peerUrls = parsePeers(DocumentPaths.get("REPLICATION_PEERS"));
+            String logDirectory = DocumentPaths.get("REPLICATION_LOG_DIR");
+            String secret = DocumentPaths.get("REPLICATION_SECRET");
+
+            if (!logCommits || peerUrls.isEmpty()) {
+                instance = new ReplicationManager(secret);
+                return;
+            }
+            if (logDirectory == null) {
+                throw new IOException("REPLICATION_PEERS needs REPLICATION_LOG_DIR");
+            }
+
+            instance = new ReplicationManager(DocumentPaths.get("REPLICATION_NODE_ID"), peerUrls,
+                    Paths.get(logDirectory), secret, new DocumentStoreReplicas(), 0, 0, 0, 0, 0, 0, false);
+            LOGGER.info("Logging commits for " + peerUrls.keySet() + " without shipping them");
+        }
+    }
+
+    /**
+     * Parses "node2=http://host2/api,node3=http://host3/api".
+     */
+    static Map<String, String> parsePeers(String value) {
+        Map<String, String> peerUrls = new LinkedHashMap<>();
+        if (value == null) {
+            return peerUrls;
+        }
+        for (String peer : value.split(",")) {
+            int equals = peer.indexOf('=');
+            if (equals > 0) {
+                peerUrls.put(peer.substring(0, equals).trim(), peer.substring(equals + 1).trim());
+            }
+        }
+        return peerUrls;
+    }
+
+    boolean isEnabled() {
+        return !peers.isEmpty();
+    }
+
+    /**
+     * Checks the shared secret of a replication request; always false when none is configured.
+     */
+    boolean isAuthorized(String token) {
+        return secret != null && !secret.isEmpty() && token != null
+                && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ============================================
+    // OUTBOUND: LOG AND SHIP
+    // ============================================
+
+    /**
+     * Logs a committed document for every peer and returns once it is in the logs, forced to
+     * disk unless its document type is stored without fsync. Throws when it could not be
+     * logged, so the client retries the upload rather than leave the peers without it.
+     */
+    void committed(String documentType, String documentId, String fileName) throws IOException {
+        if (peers.isEmpty()) {
+            return;
+        }
+
+        PendingCommit commit = new PendingCommit(new ReplicationLog.Commit(documentType, documentId, fileName));
+        pending.add(commit);
+
+        synchronized (appendLock) {
+            // Appended by the caller that held the lock before, along with its own commit
+            if (!commit.logged) {
+                List<PendingCommit> batch = new ArrayList<>();
+                PendingCommit next;
+                while ((next = pending.poll()) != null) {
+                    batch.add(next);
+                }
+                appendToLogs(batch);
+            }
+            if (commit.failure != null) {
+                throw new IOException("Cannot log " + documentType + "/" + documentId + "/" + fileName
+                        + " for replication", commit.failure);
+            }
+        }
+    }
+
+    /**
+     * Commits not yet acknowledged, per peer.
+     */
+    Map<String, Long> lag() {
+        Map<String, Long> lag = new LinkedHashMap<>();
+        for (Peer peer : peers.values()) {
+            lag.put(peer.name, peer.log.lag());
+        }
+        return lag;
+    }
+
+    void shutdown() {
+        running = false;
+        for (Peer peer : peers.values()) {
+            peer.thread.interrupt();
+            try {
+                peer.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (appendLock) {
+            closeLogs();
+        }
+    }
+
+    private void closeLogs() {
+        try {
+            for (Peer peer : peers.values()) {
+                peer.log.close();
+            }
+            if (directoryLock != null) {
+                directoryLock.channel().close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Closing the replication logs", e);
+        }
+    }
+
+    /**
+     * One write and one force per log for the whole batch; a failure fails every commit in it.
+     */
+    private void appendToLogs(List<PendingCommit> batch) {
+        // Forced unless every document type in the batch is stored without fsync
+        List<ReplicationLog.Commit> commits = new ArrayList<>(batch.size());
+        boolean force = false;
+        for (PendingCommit commit : batch) {
+            commits.add(commit.commit);
+            force |= AtomicFileWriter.FsyncPolicy.forDocumentType(commit.commit.documentType)
+                    != AtomicFileWriter.FsyncPolicy.NONE;
+        }
+
+        IOException failure = null;
+        for (Peer peer : peers.values()) {
+            try {
+                peer.log.append(commits, force);
+                peer.wake();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Cannot log " + batch.size() + " commits for " + peer.name, e);
+                failure = e;
+            }
+        }
+
+        for (PendingCommit commit : batch) {
+            commit.logged = true;
+            commit.failure = failure;
+        }
+    }
+
+    /**
+     * A commit waiting to be logged; its fields are guarded by appendLock.
+     */
+    private static final class PendingCommit {
+        final ReplicationLog.Commit commit;
+        boolean logged;
+        IOException failure;
+
+        PendingCommit(ReplicationLog.Commit commit) {
+            this.commit = commit;
+        }
+    }
+
+    private final class Peer {
+        final String name;
+        final String baseUrl;
+        final ReplicationLog log;
+        final Thread thread;
+        private final Object signal = new Object();
+        private boolean signalled;
+
+        Peer(String name, String baseUrl, ReplicationLog log) {
+            this.name = name;
+            this.baseUrl = baseUrl;
+            this.log = log;
+            this.thread = new Thread(this::run, "replication-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        void wake() {
+            synchronized (signal) {
+                signalled = true;
+                signal.notifyAll();
+            }
+        }
+
+        private void await(long timeoutMs) throws InterruptedException {
+            synchronized (signal) {
+                if (!signalled) {
+                    signal.wait(timeoutMs);
+                }
+                signalled = false;
+            }
+        }
+
+        private void run() {
+            long backoff = retryMs;
+
+            while (running) {
+                try {
+                    List<ReplicationLog.Entry> entries = log.read(BATCH_SIZE);
+                    if (entries.isEmpty()) {
+                        await(TimeUnit.SECONDS.toMillis(30));
+                        continue;
+                    }
+
+                    for (int i = 0; i < entries.size(); i++) {
+                        ReplicationLog.Entry entry = entries.get(i);
+                        // Later commits of the same document in this batch ship its current version anyway
+                        if (!supersededLater(entries, i)) {
+                            ship(this, entry);
+                        }
+                        log.acknowledge(entry);
+                    }
+                    backoff = retryMs;
+
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Replication to " + name + " failed, " + log.lag()
+                            + " commits behind; retrying in " + backoff + " ms: " + e.getMessage());
+                    try {
+                        // New commits do not cut the backoff short; only shutdown does
+                        TimeUnit.MILLISECONDS.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    backoff = Math.min(MAX_RETRY_MS, backoff * 2);
+                }
+            }
+        }
+    }
+
+    private static boolean supersededLater(List<ReplicationLog.Entry> entries, int index) {
+        String key = entries.get(index).key();
+        for (int i = index + 1; i < entries.size(); i++) {
+            if (entries.get(i).key().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the current local version unless the peer reports the same or a later one.
+     */
+    private void ship(Peer peer, ReplicationLog.Entry entry) throws IOException {
+        Version local = localVersion(entry.documentType, entry.documentId, entry.fileName);
+        if (local == null) {
+            // Removed since the commit; nothing to replicate
+            return;
+        }
+
+        URL url = documentUrl(peer, entry.documentType, entry.documentId, entry.fileName);
+
+        HttpURLConnection head = open(url, "HEAD");
+        try {
+            String remoteSha256 = head.getHeaderField(HEADER_CONTENT_SHA256);
+            if (head.getResponseCode() == HttpURLConnection.HTTP_OK && remoteSha256 != null
+                    && (local.sha256.equals(remoteSha256)
+                    || local.isOlderThan(parseVersion(head.getHeaderField(HEADER_VERSION)), remoteSha256))) {
+                // The peer ships a later version back from its own log
+                return;
+            }
+        } finally {
+            head.disconnect();
+        }
+
+        HttpURLConnection put = open(url, "PUT");
+        try {
+            put.setDoOutput(true);
+            put.setChunkedStreamingMode(BUFFER_SIZE);
+            put.setRequestProperty("Content-Type", "application/octet-stream");
+            put.setRequestProperty(HEADER_CONTENT_SHA256, local.sha256);
+            put.setRequestProperty(HEADER_VERSION, Long.toString(local.committedAt));
+            put.setRequestProperty(HEADER_SEQUENCE, Long.toString(entry.sequence));
+
+            try (InputStream inputStream = store.open(local.file);
+                 OutputStream outputStream = put.getOutputStream()) {
+                copy(inputStream, outputStream);
+            }
+
+            int status = put.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Peer answered " + status + " for " + url);
+            }
+        } catch (IOException e) {
+            put.disconnect();
+            throw e;
+        }
+    }
+
+    // ============================================
+    // INBOUND: RECEIVE AND SERVE
+    // ============================================
+
+    /**
+     * Installs a copy sent by a peer once its SHA-256 matches, unless the local copy is the
+     * same version or a later one.
+     */
+    Received receive(String documentType, String documentId, String fileName, String sha256, long committedAt,
+                     InputStream body) throws IOException {
+
+        Version local = localVersion(documentType, documentId, fileName);
+        if (local != null && local.sha256.equalsIgnoreCase(sha256)) {
+            return Received.UNCHANGED;
+        }
+        if (local != null && !local.isOlderThan(committedAt, sha256)) {
+            return Received.SUPERSEDED;
+        }
+        return spoolAndInstall(documentType, documentId, fileName, sha256, committedAt, body);
+    }
+
+    /**
+     * The local copy of a document with its SHA-256, or null when this node has none.
+     */
+    Version localVersion(String documentType, String documentId, String fileName) throws IOException {
+        Path file = store.resolve(documentType, documentId, fileName);
+        if (file == null) {
+            return null;
+        }
+
+        long committedAt = store.committedAt(documentType, documentId, fileName);
+        String digest = DocumentStore.contentDigest(file);
+        if (digest != null) {
+            return new Version(file, digest, committedAt);
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        CachedVersion cached = versions.get(file);
+        if (cached == null || !cached.matches(attributes)) {
+            MessageDigest sha256 = newSha256();
+            try (InputStream inputStream = new DigestInputStream(store.open(file), sha256)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (inputStream.read(buffer) != -1) {
+                    // Hashing only
+                }
+            }
+            if (versions.size() >= MAX_CACHED_VERSIONS) {
+                versions.clear();
+            }
+            cached = new CachedVersion(attributes, DocumentStore.toHex(sha256.digest()));
+            versions.put(file, cached);
+        }
+        return new Version(file, cached.sha256, committedAt);
+    }
+
+    private static final class CachedVersion {
+        final long size;
+        final long modified;
+        final String sha256;
+
+        CachedVersion(BasicFileAttributes attributes, String sha256) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.sha256 = sha256;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    // ============================================
+    // READ FROM ANY REPLICA
+    // ============================================
+
+    /**
+     * Copies a document this node does not have from the first peer that does, verified
+     * against the checksum the peer reports; null when no peer has it, or had it when last
+     * asked within REPLICATION_FETCH_NEGATIVE_TTL_MS. A reader arriving while the document is
+     * being fetched waits for that fetch.
+     */
+    Path fetchFromReplica(String documentType, String documentId, String fileName) throws IOException {
+        String key = documentType + '/' + SaveDocumentV2.storedFileName(documentId, fileName);
+
+        Long missingUntil = missing.get(key);
+        if (missingUntil != null) {
+            if (System.currentTimeMillis() < missingUntil) {
+                return null;
+            }
+            missing.remove(key, missingUntil);
+        }
+
+        CompletableFuture<Path> fetch = new CompletableFuture<>();
+        CompletableFuture<Path> inFlight = fetches.putIfAbsent(key, fetch);
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+
+        try {
+            if (!fetchPermits.tryAcquire()) {
+                throw new FetchRejectedException(key);
+            }
+            try {
+                Path fetched = fetchFromPeers(documentType, documentId, fileName);
+                if (fetched == null) {
+                    if (missing.size() >= MAX_MISSING_ENTRIES) {
+                        missing.clear();
+                    }
+                    missing.put(key, System.currentTimeMillis() + fetchNegativeTtlMs);
+                }
+                fetch.complete(fetched);
+                return fetched;
+            } finally {
+                fetchPermits.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            fetch.completeExceptionally(e);
+            throw e;
+        } finally {
+            fetches.remove(key, fetch);
+            if (!fetch.isDone()) {
+                fetch.completeExceptionally(new IOException("Fetch of " + key + " failed"));
+            }
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> fetch) throws IOException {
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a replica fetch");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Path fetchFromPeers(String documentType, String documentId, String fileName) throws IOException {
+        for (Peer peer : peers.values()) {
+            try {
+                HttpURLConnection get = open(documentUrl(peer, documentType, documentId, fileName), "GET",
+                        fetchTimeoutMs);
+                try {
+                    String sha256 = get.getHeaderField(HEADER_CONTENT_SHA256);
+                    long committedAt = parseVersion(get.getHeaderField(HEADER_VERSION));
+                    if (get.getResponseCode() != HttpURLConnection.HTTP_OK || sha256 == null || committedAt < 0) {
+                        continue;
+                    }
+                    try (InputStream body = get.getInputStream()) {
+                        // SUPERSEDED: committed locally meanwhile, which is served instead
+                        if (spoolAndInstall(documentType, documentId, fileName, sha256, committedAt, body)
+                                == Received.CHECKSUM_MISMATCH) {
+                            LOGGER.warning("Copy of " + documentType + "/" + documentId + "/" + fileName
+                                    + " from " + peer.name + " failed its checksum");
+                            continue;
+                        }
+                    }
+                } finally {
+                    get.disconnect();
+                }
+
+                LOGGER.info("Fetched " + documentType + "/" + documentId + "/" + fileName + " from " + peer.name);
+                return store.resolve(documentType, documentId, fileName);
+
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Replica " + peer.name + " unavailable", e);
+            }
+        }
+        return null;
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private Received spoolAndInstall(String documentType, String documentId, String fileName, String sha256,
+                                     long committedAt, InputStream body) throws IOException {
+
+        Path tempFile = store.tempFile(documentType, documentId, fileName);
+        try {
+            MessageDigest digest = newSha256();
+            try (InputStream inputStream = new DigestInputStream(body, digest);
+                 OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                copy(inputStream, outputStream);
+            }
+
+            if (!DocumentStore.toHex(digest.digest()).equalsIgnoreCase(sha256)) {
+                return Received.CHECKSUM_MISMATCH;
+            }
+            return store.install(documentType, documentId, fileName, tempFile, committedAt)
+                    ? Received.STORED : Received.SUPERSEDED;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * The commit time carried in HEADER_VERSION, or -1 when it is missing or malformed.
+     */
+    static long parseVersion(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private HttpURLConnection open(URL url, String method) throws IOException {
+        return open(url, method, readTimeoutMs);
+    }
+
+    private HttpURLConnection open(URL url, String method, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(HEADER_TOKEN, secret);
+        connection.setRequestProperty(HEADER_NODE, nodeId);
+        return connection;
+    }
+
+    private static URL documentUrl(Peer peer, String documentType, String documentId, String fileName)
+            throws IOException {
+        return new URL(peer.baseUrl + RESOURCE_PATH + "/" + segment(documentType) + "/"
+                + segment(documentId) + "/" + segment(fileName));
+    }
+
+    private static String segment(String value) throws UnsupportedEncodingException {
+        // Path segment, not form encoding
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Replicas kept in this node's DocumentStore; received copies do not replicate again.
+     */
+    private static final class DocumentStoreReplicas implements ReplicaStore {
+        @Override
+        public Path resolve(String documentType, String documentId, String fileName) throws IOException {
+            return DocumentStore.getInstance().resolve(documentType, documentId, fileName);
+        }
+
+        @Override
+        public long committedAt(String documentType, String documentId, String fileName) throws IOException {
+            FileTime committedAt = DocumentStore.getInstance().committedAt(documentType, documentId, fileName);
+            return committedAt == null ? -1 : committedAt.toMillis();
+        }
+
+        @Override
+        public InputStream open(Path stored) throws IOException {
+            return ContentEncoding.ofStoredFile(stored).decode(Files.newInputStream(stored));
+        }
+
+        @Override
+        public Path tempFile(String documentType, String documentId, String fileName) throws IOException {
+            Path base = DocumentStore.basePath(documentType);
+            Files.createDirectories(base);
+            return AtomicFileWriter.tempFileFor(base.resolve(SaveDocumentV2.storedFileName(documentId, fileName)));
+        }
+
+        @Override
+        public boolean install(String documentType, String documentId, String fileName, Path writtenFile,
+                               long committedAt) throws IOException {
+            return DocumentStore.getInstance().publishReplica(documentType, documentId, fileName, writtenFile,
+                    FileTime.fromMillis(committedAt)) != null;
+        }
+    }
+}
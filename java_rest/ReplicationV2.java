@@ -0,0 +1,197 @@
+package tokenrest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node-to-node endpoint of ReplicationManager: peers PUT committed documents here and read
+ * the local version (HEAD) or copy (GET) of a document. Every call carries the shared
+ * REPLICATION_SECRET; content is exchanged decompressed, with its SHA-256 in X-Content-SHA256
+ * and its commit time (epoch milliseconds) in X-Replication-Version.
+ *
+ * @author Saeed Ahmadzad-Asl
+ */
+@Path("/ReplicationV2")
+public class ReplicationV2 {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicationV2.class.getName());
+
+    // Response messages
+    private static final String RESPONSE_OK = "{\"status\":\"%s\"}";
+    private static final String ERROR_FORBIDDEN = "{\"error\":\"Replication not authorized\"}";
+    private static final String ERROR_MISSING_CHECKSUM = "{\"error\":\"Missing content checksum\"}";
+    private static final String ERROR_MISSING_VERSION = "{\"error\":\"Missing replication version\"}";
+    private static final String ERROR_CHECKSUM_MISMATCH = "{\"error\":\"Content does not match its checksum\"}";
+    private static final String ERROR_INVALID_DOCTYPE = "{\"error\":\"Invalid document type\"}";
+    private static final String ERROR_NOT_FOUND = "{\"error\":\"Document not found\"}";
+    private static final String ERROR_TEMPLATE = "{\"error\":\"%s\"}";
+
+    // HTTP header constants
+    private static final String HEADER_TOKEN = ReplicationManager.HEADER_TOKEN;
+    private static final String HEADER_NODE = ReplicationManager.HEADER_NODE;
+    private static final String HEADER_CONTENT_SHA256 = ReplicationManager.HEADER_CONTENT_SHA256;
+    private static final String HEADER_VERSION = ReplicationManager.HEADER_VERSION;
+
+    // ============================================
+    // RECEIVE
+    // ============================================
+
+    /**
+     * Installs a document sent by a peer once its checksum matches, unless this node has the
+     * same or a later version.
+     */
+    @PUT
+    @Path("{docType}/{docId}/{fileName}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response receiveDocument(
+            InputStream body,
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @PathParam("fileName") String fileName,
+            @HeaderParam(HEADER_TOKEN) String token,
+            @HeaderParam(HEADER_NODE) String node,
+            @HeaderParam(HEADER_CONTENT_SHA256) String sha256,
+            @HeaderParam(HEADER_VERSION) String version) {
+
+        ReplicationManager replication = ReplicationManager.getInstance();
+        if (!replication.isAuthorized(token)) {
+            LOGGER.warning("❌ Replication request rejected from " + node);
+            return buildErrorResponse(Response.Status.FORBIDDEN, ERROR_FORBIDDEN);
+        }
+        if (sha256 == null || sha256.trim().isEmpty()) {
+            return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_CHECKSUM);
+        }
+        long committedAt = ReplicationManager.parseVersion(version);
+        if (committedAt < 0) {
+            return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_MISSING_VERSION);
+        }
+        if (SaveDocumentV2.resolveBasePath(documentType) == null) {
+            return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+        }
+
+        try {
+            ReplicationManager.Received received =
+                    replication.receive(documentType, documentId, fileName, sha256.trim(), committedAt, body);
+
+            if (received == ReplicationManager.Received.CHECKSUM_MISMATCH) {
+                LOGGER.warning("❌ Replica of " + documentType + "/" + documentId + "/" + fileName
+                        + " from " + node + " failed its checksum");
+                return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_CHECKSUM_MISMATCH);
+            }
+            return Response.ok(String.format(RESPONSE_OK, received)).type(MediaType.APPLICATION_JSON).build();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Replication receive failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    // ============================================
+    // SERVE LOCAL VERSION
+    // ============================================
+
+    /**
+     * The checksum and commit time of the local copy, so a peer can skip sending a version
+     * this node has or has replaced.
+     */
+    @HEAD
+    @Path("{docType}/{docId}/{fileName}")
+    public Response headDocument(
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @PathParam("fileName") String fileName,
+            @HeaderParam(HEADER_TOKEN) String token) {
+
+        return serveDocument(documentType, documentId, fileName, token, false);
+    }
+
+    /**
+     * The local copy, decompressed, for a peer that is missing the document.
+     */
+    @GET
+    @Path("{docType}/{docId}/{fileName}")
+    public Response readDocument(
+            @PathParam("docType") String documentType,
+            @PathParam("docId") String documentId,
+            @PathParam("fileName") String fileName,
+            @HeaderParam(HEADER_TOKEN) String token) {
+
+        return serveDocument(documentType, documentId, fileName, token, true);
+    }
+
+    private Response serveDocument(String documentType, String documentId, String fileName, String token,
+                                   boolean withBody) {
+
+        ReplicationManager replication = ReplicationManager.getInstance();
+        if (!replication.isAuthorized(token)) {
+            return buildErrorResponse(Response.Status.FORBIDDEN, ERROR_FORBIDDEN);
+        }
+        if (SaveDocumentV2.resolveBasePath(documentType) == null) {
+            return buildErrorResponse(Response.Status.BAD_REQUEST, ERROR_INVALID_DOCTYPE);
+        }
+
+        try {
+            ReplicationManager.Version version = replication.localVersion(documentType, documentId, fileName);
+            if (version == null) {
+                return buildErrorResponse(Response.Status.NOT_FOUND, ERROR_NOT_FOUND);
+            }
+
+            Response.ResponseBuilder builder = Response.ok()
+                    .tag(new EntityTag(version.sha256))
+                    .header(HEADER_CONTENT_SHA256, version.sha256)
+                    .header(HEADER_VERSION, version.committedAt);
+
+            if (withBody) {
+                StreamingOutput content = output -> {
+                    try (InputStream inputStream =
+                                 ContentEncoding.ofStoredFile(version.file).decode(Files.newInputStream(version.file))) {
+                        byte[] buffer = new byte[64 * 1024];
+                        int bytesRead;
+                        while ((bytesRead = inputStream.read(buffer)) != -1) {
+                            output.write(buffer, 0, bytesRead);
+                        }
+                    }
+                    output.flush();
+                };
+                builder.entity(content).type(MediaType.APPLICATION_OCTET_STREAM);
+            }
+            return builder.build();
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Replication read failed", e);
+            return buildErrorResponse(Response.Status.INTERNAL_SERVER_ERROR,
+                    String.format(ERROR_TEMPLATE, e.getMessage()));
+        }
+    }
+
+    // ============================================
+    // RESPONSE BUILDERS
+    // ============================================
+
+    private Response buildErrorResponse(Response.Status status, String errorMessage) {
+        return Response.status(status)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(errorMessage)
+                .build();
+    }
+}
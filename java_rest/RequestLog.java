@@ -0,0 +1,35 @@
+package tokenrest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-request debug logging: only a sample of requests (one in REQUEST_LOG_SAMPLE_RATE) is
+ * traced, at FINE, and session ids are masked. Failures are still logged by the callers.
+ */
+final class RequestLog {
+
+    private static final int SAMPLE_RATE = (int) Math.max(1, DocumentPaths.getLong("REQUEST_LOG_SAMPLE_RATE", 100));
+
+    private RequestLog() {
+    }
+
+    /**
+     * Decides once per request whether its debug lines are written.
+     */
+    static boolean isSampled(Logger logger) {
+        return logger.isLoggable(Level.FINE) && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * Keeps the last four characters of a session id, enough to correlate with APEX logs.
+     */
+    static String mask(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        int visible = Math.min(4, sessionId.length() / 2);
+        return "****" + sessionId.substring(sessionId.length() - visible);
+    }
+}
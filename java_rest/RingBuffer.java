@@ -0,0 +1,86 @@
+package tokenrest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and one consumer (a per-slot sequence number
+ * tells each side whether a slot is free or filled). offer() never blocks: when the buffer
+ * is full the element is refused, so request threads cannot be slowed by a stalled consumer.
+ */
+final class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * Rounds the capacity up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element; false when the buffer is full.
+     */
+    boolean offer(T element) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(slot, element);
+                    // Publishes the element to the consumer
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                // Slot still holds an element from the previous lap
+                return false;
+            }
+            // Another producer took this position; retry with the new tail
+        }
+    }
+
+    /**
+     * Moves up to max elements into the list and returns how many were moved. Only one
+     * thread may drain.
+     */
+    int drainTo(List<? super T> target, int max) {
+        int drained = 0;
+
+        while (drained < max) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                // Empty, or the producer of this slot has not published yet
+                break;
+            }
+
+            target.add(elements.get(slot));
+            elements.lazySet(slot, null);
+            sequences.set(slot, head + mask + 1);
+            head++;
+            drained++;
+        }
+        return drained;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
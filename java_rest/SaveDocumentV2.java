@@ -1,22 +1,20 @@
 package tokenrest;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.OPTIONS;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,8 +31,6 @@ public class SaveDocumentV2 {
     // ============================================
     
     private static final Logger LOGGER = Logger.getLogger(SaveDocumentV2.class.getName());
-    private static final String PATH_CONFIG_FILE = "/u01/oracle/config/document-paths.properties";
-    private static final Properties DOCUMENT_PATHS = new Properties();
     
     // Response messages
     private static final String RESPONSE_OK = "{\"status\":\"OK\",\"file\":\"%s\"}";
@@ -42,43 +38,24 @@ public class SaveDocumentV2 {
     private static final String ERROR_INVALID_SESSION = "{\"error\":\"Invalid or expired APEX session\"}";
     private static final String ERROR_INVALID_DOCTYPE = "{\"error\":\"Invalid document type\"}";
     private static final String ERROR_TEMPLATE = "{\"error\":\"%s\"}";
+    private static final String ERROR_BUSY = "{\"error\":\"Server busy, retry later\"}";
+    private static final String ERROR_VALIDATION_UNAVAILABLE = "{\"error\":\"Session validation unavailable, retry later\"}";
+    private static final String ERROR_TOO_LARGE = "{\"error\":\"Document exceeds the size limit of its document type\"}";
+    private static final String ERROR_QUOTA_EXCEEDED = "{\"error\":\"Storage quota of the document type exceeded\"}";
+    private static final String ERROR_RATE_LIMITED = "{\"error\":\"Too many uploads for this document type, retry later\"}";
+    
+    // Not in Response.Status
+    static final int STATUS_INSUFFICIENT_STORAGE = 507;
+    
+    // Upper bound for a suspended upload, 0 for none (large uploads from slow clients)
+    private static final long ASYNC_TIMEOUT_MS = DocumentPaths.getLong("UPLOAD_ASYNC_TIMEOUT_MS", 0);
     
     // HTTP header constants
     private static final String HEADER_DOC_ID = "X-Doc-Id";
     private static final String HEADER_FILE_NAME = "X-File-Name";
     private static final String HEADER_DOC_TYPE = "X-Doc-Type";
-    private static final String HEADER_APP_ID = "p_app_id";
-    private static final String HEADER_SESSION_ID = "p_session_id";
-    
-    // Buffer size for file operations
-    private static final int BUFFER_SIZE = 8192;
-    private static final int CONNECTION_TIMEOUT = 50000;
-    private static final int READ_TIMEOUT = 50000;
-    
-    // ============================================
-    // STATIC INITIALIZATION
-    // ============================================
-    
-    static {
-        loadDocumentPaths();
-    }
-    
-    /**
-     * Loads document paths configuration from properties file.
-     */
-    private static void loadDocumentPaths() {
-        try {
-            File configFile = new File(PATH_CONFIG_FILE);
-            LOGGER.info("Loading document paths from: " + configFile.getAbsolutePath());
-            
-            try (InputStream inputStream = new FileInputStream(configFile)) {
-                DOCUMENT_PATHS.load(inputStream);
-                LOGGER.info("Document paths loaded successfully: " + DOCUMENT_PATHS);
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to load configuration file: " + PATH_CONFIG_FILE, e);
-        }
-    }
+    private static final String HEADER_APP_ID = ApexSessionValidator.HEADER_APP_ID;
+    private static final String HEADER_SESSION_ID = ApexSessionValidator.HEADER_SESSION_ID;
     
     // ============================================
     // CORS PREFLIGHT HANDLER
@@ -93,54 +70,151 @@ public class SaveDocumentV2 {
     // MAIN DOCUMENT SAVE ENDPOINT
     // ============================================
     
+    /**
+     * Suspends the request and releases the container thread: the session is validated
+     * asynchronously and the body is written on the UploadExecutor.
+     */
     @POST
     @Consumes(MediaType.APPLICATION_OCTET_STREAM)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response saveDocument(
+    public void saveDocument(
             InputStream fileStream,
             @HeaderParam(HEADER_DOC_ID) String documentId,
             @HeaderParam(HEADER_FILE_NAME) String fileName,
             @HeaderParam(HEADER_DOC_TYPE) String documentType,
             @HeaderParam(HEADER_APP_ID) String applicationId,
-            @HeaderParam(HEADER_SESSION_ID) String sessionId) {
+            @HeaderParam(HEADER_SESSION_ID) String sessionId,
+            @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long contentLength,
+            @Suspended AsyncResponse asyncResponse) {
         
-        LOGGER.info("========= SaveDocumentV2 START =========");
+        long started = System.nanoTime();
+        boolean traced = RequestLog.isSampled(LOGGER);
         
-        try {
-            // Log incoming request
+        if (traced) {
+            LOGGER.fine("========= SaveDocumentV2 START =========");
             logRequestHeaders(documentId, fileName, documentType, applicationId, sessionId);
+        }
+        
+        // Validate required headers
+        boolean headersValid = validateHeaders(fileStream, documentId, fileName, documentType, applicationId, sessionId);
+        Metrics.recordStage(Metrics.Stage.HEADER_VALIDATION, started);
+        
+        if (!headersValid) {
+            asyncResponse.resume(buildBadRequestResponse(ERROR_MISSING_HEADERS));
+            return;
+        }
+        
+        // Reserve an upload slot before any work is queued
+        UploadExecutor uploads = UploadExecutor.getInstance();
+        if (!uploads.tryReserve()) {
+            LOGGER.warning("❌ Upload rejected — node at UPLOAD_MAX_CONCURRENT");
+            asyncResponse.resume(buildBusyResponse());
+            return;
+        }
+        
+        if (ASYNC_TIMEOUT_MS > 0) {
+            asyncResponse.setTimeout(ASYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            asyncResponse.setTimeoutHandler(response -> response.resume(buildBusyResponse()));
+        }
+        
+        if (traced) {
+            LOGGER.fine("✅ Headers validated — checking APEX session");
+        }
+        
+        long validationStarted = System.nanoTime();
+        
+        try {
+            ApexSessionValidator.isApexSessionValidAsync(applicationId, documentId, sessionId, uploads.executor())
+                    .handleAsync((sessionValid, error) -> {
+                        Metrics.recordStage(Metrics.Stage.SESSION_VALIDATION, validationStarted);
+                        try {
+                            Response response = error == null
+                                    ? completeSave(Boolean.TRUE.equals(sessionValid), fileStream, contentLength,
+                                            documentId, fileName, documentType, traced)
+                                    : buildValidationErrorResponse(error);
+                            
+                            long responseStarted = System.nanoTime();
+                            boolean resumed = asyncResponse.resume(response);
+                            Metrics.recordStage(Metrics.Stage.RESPONSE, responseStarted);
+                            return resumed;
+                        } finally {
+                            uploads.release();
+                        }
+                    }, uploads.executor());
             
-            // Validate required headers
-            if (!validateHeaders(fileStream, documentId, fileName, documentType, applicationId, sessionId)) {
-                return buildBadRequestResponse(ERROR_MISSING_HEADERS);
-            }
-            
-            LOGGER.info("✅ Headers validated — checking APEX session");
-            
-            // Validate APEX session
-            if (!isApexSessionValid(applicationId, documentId, sessionId)) {
+        } catch (RuntimeException e) {
+            uploads.release();
+            LOGGER.log(Level.SEVERE, "Document save operation failed", e);
+            asyncResponse.resume(buildServerErrorResponse(e.getMessage()));
+        }
+    }
+    
+    /**
+     * Second half of saveDocument, run on the upload executor once ORDS has answered. Only a
+     * valid session is checked against the doc type's limits, so a rejected request never
+     * holds a write slot or is charged to the byte rate.
+     */
+    private Response completeSave(
+            boolean sessionValid,
+            InputStream fileStream,
+            long contentLength,
+            String documentId,
+            String fileName,
+            String documentType,
+            boolean traced) {
+        
+        try {
+            if (!sessionValid) {
                 LOGGER.warning("❌ APEX session validation failed");
                 return buildUnauthorizedResponse(ERROR_INVALID_SESSION);
             }
             
-            LOGGER.info("✅ APEX session validated successfully");
+            if (traced) {
+                LOGGER.fine("✅ APEX session validated successfully");
+            }
             
             // Resolve storage path
+            long resolutionStarted = System.nanoTime();
             String basePath = resolveBasePath(documentType);
+            Metrics.recordStage(Metrics.Stage.PATH_RESOLUTION, resolutionStarted);
+            
             if (basePath == null) {
                 return buildBadRequestResponse(ERROR_INVALID_DOCTYPE);
             }
             
-            LOGGER.info("Resolved storage path: " + basePath);
+            if (traced) {
+                LOGGER.fine("Resolved storage path: " + basePath);
+            }
+            
+            // Per-doc-type size, quota, concurrency and rate limits; answered now, never queued
+            AdmissionController.Admission admission = AdmissionController.getInstance().admit(documentType, contentLength);
+            if (!admission.admitted()) {
+                LOGGER.warning("❌ Upload rejected — " + documentType + " " + admission.verdict);
+                return buildRejectedResponse(admission.verdict, admission.retryAfterSeconds);
+            }
             
             // Save the file
-            File savedFile = saveFileToDisk(fileStream, documentId, fileName, basePath);
+            long writeStarted = System.nanoTime();
+            File savedFile;
+            try {
+                savedFile = saveFileToDisk(Metrics.countingBytesIn(admission.limit(fileStream)), documentType,
+                        documentId, fileName, basePath);
+            } finally {
+                admission.close();
+            }
+            Metrics.recordStage(Metrics.Stage.DISK_WRITE, writeStarted);
             
-            LOGGER.info("✅ File saved successfully: " + savedFile.getAbsolutePath());
-            LOGGER.info("========= SaveDocumentV2 END =========");
+            if (traced) {
+                LOGGER.fine("✅ File saved successfully: " + savedFile.getAbsolutePath());
+                LOGGER.fine("========= SaveDocumentV2 END =========");
+            }
             
             return buildSuccessResponse(savedFile.getName());
             
+        } catch (AdmissionController.LimitExceededException e) {
+            LOGGER.warning("❌ Upload of " + documentType + " stopped: " + e.getMessage());
+            return buildRejectedResponse(e.verdict, 0);
+            
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Document save operation failed", e);
             return buildServerErrorResponse(e.getMessage());
@@ -170,109 +244,23 @@ public class SaveDocumentV2 {
                sessionId != null && !sessionId.trim().isEmpty();
     }
     
-    /**
-     * Validates APEX session by calling ORDS endpoint.
-     */
-    private boolean isApexSessionValid(String applicationId, String documentId, String sessionId) {
-        String ordsEndpoint = DOCUMENT_PATHS.getProperty("ORDS_VALIDATE_SESSION");
-        
-        if (ordsEndpoint == null || ordsEndpoint.trim().isEmpty()) {
-            LOGGER.severe("ORDS validation endpoint not configured");
-            return false;
-        }
-        
-        try {
-            URL url = new URL(ordsEndpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            
-            configureConnection(connection);
-            addSessionValidationHeaders(connection, applicationId, documentId, sessionId);
-            
-            int responseCode = connection.getResponseCode();
-            String responseBody = readResponse(connection, responseCode);
-            
-            LOGGER.info("ORDS validation response: " + responseBody);
-            
-            return isSessionValidResponse(responseBody);
-            
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "APEX session validation error", e);
-            return false;
-        }
-    }
-    
-    /**
-     * Configures HTTP connection for ORDS validation.
-     */
-    private void configureConnection(HttpURLConnection connection) throws Exception {
-        connection.setRequestMethod("GET");
-        connection.setConnectTimeout(CONNECTION_TIMEOUT);
-        connection.setReadTimeout(READ_TIMEOUT);
-        connection.setRequestProperty("Accept", "application/json");
-    }
-    
-    /**
-     * Adds session validation headers to the HTTP connection.
-     */
-    private void addSessionValidationHeaders(
-            HttpURLConnection connection,
-            String applicationId,
-            String documentId,
-            String sessionId) {
-        
-        connection.setRequestProperty(HEADER_APP_ID, applicationId);
-        connection.setRequestProperty(HEADER_SESSION_ID, sessionId);
-        connection.setRequestProperty("p_emp_no", documentId);
-    }
-    
-    /**
-     * Reads response from HTTP connection.
-     */
-    private String readResponse(HttpURLConnection connection, int responseCode) throws Exception {
-        try (InputStream inputStream = responseCode >= 200 && responseCode < 300 ? 
-                connection.getInputStream() : connection.getErrorStream()) {
-            
-            if (inputStream == null) {
-                return "";
-            }
-            
-            byte[] buffer = new byte[BUFFER_SIZE];
-            StringBuilder responseBuilder = new StringBuilder();
-            int bytesRead;
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                responseBuilder.append(new String(buffer, 0, bytesRead, StandardCharsets.UTF_8));
-            }
-            
-            return responseBuilder.toString().trim();
-        }
-    }
-    
-    /**
-     * Checks if ORDS response indicates a valid session.
-     */
-    private boolean isSessionValidResponse(String jsonResponse) {
-        return jsonResponse.contains("\"is_valid\":\"1\"") || 
-               jsonResponse.contains("\"is_valid\":1");
-    }
-    
     // ============================================
     // PATH RESOLUTION
     // ============================================
     
     /**
-     * Resolves storage path based on document type.
+     * Resolves storage path based on document type; other configuration keys are not doc types.
      */
-    private String resolveBasePath(String documentType) {
-        String path = DOCUMENT_PATHS.getProperty(documentType);
+    static String resolveBasePath(String documentType) {
+        DocumentPaths.DocumentType settings = DocumentPaths.documentType(documentType);
         
-        if (path == null) {
+        if (settings == null) {
             LOGGER.warning("No path configured for document type: " + documentType);
-        } else {
-            LOGGER.info("Resolved path for " + documentType + " → " + path);
+            return null;
         }
         
-        return path;
+        LOGGER.fine("Resolved path for " + documentType + " → " + settings.basePath);
+        return settings.basePath;
     }
     
     // ============================================
@@ -280,50 +268,42 @@ public class SaveDocumentV2 {
     // ============================================
     
     /**
-     * Saves uploaded file to disk.
+     * Saves uploaded file to disk through the document store.
      */
     private File saveFileToDisk(
             InputStream inputStream,
+            String documentType,
             String documentId,
             String originalFileName,
             String basePath) throws Exception {
         
-        // Sanitize file name
-        String safeFileName = sanitizeFileName(originalFileName);
-        String targetFileName = documentId + "_" + safeFileName;
-        
         // Ensure directory exists
         File storageDirectory = new File(basePath);
         if (!storageDirectory.exists() && !storageDirectory.mkdirs()) {
             throw new RuntimeException("Failed to create directory: " + basePath);
         }
         
-        // Save file
-        File targetFile = new File(storageDirectory, targetFileName);
-        writeStreamToFile(inputStream, targetFile);
+        // Save file (plain docId_fileName or content-addressed, per doc type)
+        java.nio.file.Path stored = DocumentStore.getInstance().store(documentType, documentId, originalFileName, inputStream);
+        
+        // Thumbnail for list pages, made in the background once the document is committed
+        PreviewPipeline.getInstance().submit(stored, originalFileName);
         
-        return targetFile;
+        return new File(storageDirectory, storedFileName(documentId, originalFileName));
     }
     
     /**
-     * Sanitizes file name to prevent path traversal attacks.
+     * Builds the on-disk name of a document; the download endpoint resolves the same name.
      */
-    private String sanitizeFileName(String fileName) {
-        return fileName.replaceAll("[\\/:*?\"<>|]", "_");
+    static String storedFileName(String documentId, String fileName) {
+        return sanitizeFileName(documentId) + "_" + sanitizeFileName(fileName);
     }
     
     /**
-     * Writes input stream to file.
+     * Sanitizes file name to prevent path traversal attacks.
      */
-    private void writeStreamToFile(InputStream inputStream, File targetFile) throws Exception {
-        try (OutputStream outputStream = new FileOutputStream(targetFile)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-        }
+    static String sanitizeFileName(String fileName) {
+        return fileName.replaceAll("[\\/:*?\"<>|]", "_");
     }
     
     // ============================================
@@ -346,6 +326,49 @@ public class SaveDocumentV2 {
                 .build();
     }
     
+    private Response buildBusyResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .entity(ERROR_BUSY)
+                .build();
+    }
+    
+    /**
+     * 413 for oversized bodies, 507 past the quota, 429 with Retry-After for the rate and
+     * concurrency limits.
+     */
+    static Response buildRejectedResponse(AdmissionController.Verdict verdict, long retryAfterSeconds) {
+        switch (verdict) {
+            case TOO_LARGE:
+                return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                        .entity(ERROR_TOO_LARGE)
+                        .build();
+            case QUOTA_EXCEEDED:
+                return Response.status(STATUS_INSUFFICIENT_STORAGE)
+                        .entity(ERROR_QUOTA_EXCEEDED)
+                        .build();
+            default:
+                return Response.status(Response.Status.TOO_MANY_REQUESTS)
+                        .header("Retry-After", Math.max(1, retryAfterSeconds))
+                        .entity(ERROR_RATE_LIMITED)
+                        .build();
+        }
+    }
+    
+    /**
+     * 503 when ORDS could not answer, so the client retries instead of treating the session as invalid.
+     */
+    private Response buildValidationErrorResponse(Throwable error) {
+        if (ApexSessionValidator.unavailableCause(error) != null) {
+            LOGGER.warning("❌ APEX session validation unavailable: " + error.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", 1)
+                    .entity(ERROR_VALIDATION_UNAVAILABLE)
+                    .build();
+        }
+        return buildServerErrorResponse(error.getMessage());
+    }
+    
     private Response buildServerErrorResponse(String errorDetails) {
         return Response.serverError()
                 .entity(String.format(ERROR_TEMPLATE, errorDetails))
@@ -357,7 +380,7 @@ public class SaveDocumentV2 {
     // ============================================
     
     /**
-     * Logs request headers for debugging.
+     * Logs request headers for debugging (sampled requests only, session id masked).
      */
     private void logRequestHeaders(
             String documentId,
@@ -366,10 +389,10 @@ public class SaveDocumentV2 {
             String applicationId,
             String sessionId) {
         
-        LOGGER.info(HEADER_DOC_ID + "     = " + documentId);
-        LOGGER.info(HEADER_FILE_NAME + "  = " + fileName);
-        LOGGER.info(HEADER_DOC_TYPE + "  = " + documentType);
-        LOGGER.info(HEADER_APP_ID + "    = " + applicationId);
-        LOGGER.info(HEADER_SESSION_ID + "= " + sessionId);
+        LOGGER.fine(HEADER_DOC_ID + "     = " + documentId);
+        LOGGER.fine(HEADER_FILE_NAME + "  = " + fileName);
+        LOGGER.fine(HEADER_DOC_TYPE + "  = " + documentType);
+        LOGGER.fine(HEADER_APP_ID + "    = " + applicationId);
+        LOGGER.fine(HEADER_SESSION_ID + "= " + RequestLog.mask(sessionId));
     }
 }
@@ -0,0 +1,275 @@
+package tokenrest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gathers session validations arriving within a few milliseconds into one POST against
+ * the batch template of the session_validation ORDS module. When the batch cannot be
+ * answered every validation in it fails with ValidationUnavailableException rather than
+ * being reported invalid; a doc id ORDS cannot convert to an EMPNO is rejected before it
+ * can join a batch.
+ */
+final class SessionValidationBatcher {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(SessionValidationBatcher.class.getName());
+
+    private static final Pattern RESULT_PATTERN =
+            Pattern.compile("\"idx\"\\s*:\\s*(\\d+)\\s*,\\s*\"is_valid\"\\s*:\\s*\"?(\\d)\"?");
+
+    // X-Doc-Id is the EMPNO checked by edu.CHECK_CS
+    private static final Pattern DOCUMENT_ID_PATTERN = Pattern.compile("\\d{1,38}");
+
+    private static final SessionValidationBatcher INSTANCE = new SessionValidationBatcher(
+            DocumentPaths.getLong("ORDS_BATCH_WINDOW_MS", 5),
+            (int) DocumentPaths.getLong("ORDS_BATCH_MAX_SIZE", 100),
+            DocumentPaths.getLong("ORDS_READ_TIMEOUT_MS", 3000));
+
+    private final long windowMs;
+    private final int maxBatchSize;
+    private final long waitTimeoutMs;
+
+    private final ConcurrentLinkedQueue<PendingValidation> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+
+    private SessionValidationBatcher(long windowMs, int maxBatchSize, long ordsTimeoutMs) {
+        this.windowMs = Math.max(1, windowMs);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.waitTimeoutMs = this.windowMs + ordsTimeoutMs * 2;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, runnable -> {
+            Thread thread = new Thread(runnable, "ords-validation-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Async validations schedule a timeout each; drop them as soon as the batch answers
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+    }
+
+    static SessionValidationBatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns true when ORDS_VALIDATE_SESSION_BATCH is configured.
+     */
+    static boolean isEnabled() {
+        String endpoint = DocumentPaths.get("ORDS_VALIDATE_SESSION_BATCH");
+        return endpoint != null && !endpoint.trim().isEmpty();
+    }
+
+    // ============================================
+    // VALIDATION
+    // ============================================
+
+    /**
+     * Queues a validation for the next batch and waits for its result.
+     */
+    boolean validate(String applicationId, String documentId, String sessionId) {
+        if (!isValidDocumentId(documentId)) {
+            return false;
+        }
+        PendingValidation validation = enqueue(applicationId, documentId, sessionId);
+
+        try {
+            return validation.result.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApexSessionValidator.ValidationUnavailableException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            ApexSessionValidator.ValidationUnavailableException unavailable = ApexSessionValidator.unavailableCause(e);
+            throw unavailable != null ? unavailable
+                    : new ApexSessionValidator.ValidationUnavailableException("Batched session validation failed", e.getCause());
+        } catch (TimeoutException e) {
+            LOGGER.warning("Batched session validation did not complete");
+            throw new ApexSessionValidator.ValidationUnavailableException("Batched session validation timed out", e);
+        }
+    }
+
+    /**
+     * Queues a validation for the next batch without waiting; the future fails with
+     * ValidationUnavailableException if the batch has not answered within the same bound
+     * validate() waits for.
+     */
+    CompletableFuture<Boolean> validateAsync(String applicationId, String documentId, String sessionId) {
+        if (!isValidDocumentId(documentId)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        PendingValidation validation = enqueue(applicationId, documentId, sessionId);
+
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (validation.result.completeExceptionally(
+                    new ApexSessionValidator.ValidationUnavailableException("Batched session validation timed out", null))) {
+                LOGGER.warning("Batched session validation did not complete");
+            }
+        }, waitTimeoutMs, TimeUnit.MILLISECONDS);
+        validation.result.whenComplete((valid, error) -> timeout.cancel(false));
+
+        return validation.result;
+    }
+
+    /**
+     * One value the batch handler cannot convert would fail the whole batch, so it never joins one.
+     */
+    private static boolean isValidDocumentId(String documentId) {
+        if (documentId == null || !DOCUMENT_ID_PATTERN.matcher(documentId).matches()) {
+            LOGGER.warning("Rejected non-numeric document id for session validation");
+            return false;
+        }
+        return true;
+    }
+
+    private PendingValidation enqueue(String applicationId, String documentId, String sessionId) {
+        PendingValidation validation = new PendingValidation(applicationId, documentId, sessionId);
+
+        pending.add(validation);
+
+        if (pendingCount.incrementAndGet() >= maxBatchSize) {
+            scheduler.execute(this::flush);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+
+        return validation;
+    }
+
+    /**
+     * Sends everything queued so far, in batches of at most ORDS_BATCH_MAX_SIZE.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+
+        List<PendingValidation> batch = new ArrayList<>(maxBatchSize);
+        PendingValidation next;
+
+        while ((next = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(next);
+
+            if (batch.size() == maxBatchSize) {
+                send(batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void send(List<PendingValidation> batch) {
+        boolean[] results = new boolean[batch.size()];
+        ApexSessionValidator.ValidationUnavailableException failure = null;
+
+        try {
+            OrdsClient.OrdsResponse response = OrdsClient.getInstance().post(
+                    DocumentPaths.get("ORDS_VALIDATE_SESSION_BATCH"),
+                    Collections.<String, String>emptyMap(),
+                    buildRequestBody(batch).getBytes(StandardCharsets.UTF_8));
+
+            if (response.status >= 200 && response.status < 300) {
+                Matcher matcher = RESULT_PATTERN.matcher(response.body);
+                while (matcher.find()) {
+                    int index = Integer.parseInt(matcher.group(1)) - 1;
+                    if (index >= 0 && index < results.length) {
+                        results[index] = "1".equals(matcher.group(2));
+                    }
+                }
+            } else {
+                LOGGER.warning("ORDS batch validation returned HTTP " + response.status);
+                failure = new ApexSessionValidator.ValidationUnavailableException(
+                        "ORDS batch validation returned HTTP " + response.status, null);
+            }
+
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "ORDS batch validation failed for " + batch.size() + " sessions", e);
+            failure = new ApexSessionValidator.ValidationUnavailableException(
+                    "ORDS batch validation failed: " + e.getMessage(), e);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (failure != null) {
+                batch.get(i).result.completeExceptionally(failure);
+            } else {
+                batch.get(i).result.complete(results[i]);
+            }
+        }
+    }
+
+    /**
+     * Builds {"items":[{"session_id":..,"emp_no":..,"cs":..},...]} in queue order.
+     */
+    private static String buildRequestBody(List<PendingValidation> batch) {
+        StringBuilder json = new StringBuilder(64 + batch.size() * 160);
+        json.append("{\"items\":[");
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingValidation validation = batch.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"session_id\":\"").append(escape(validation.sessionId))
+                .append("\",\"emp_no\":\"").append(escape(validation.documentId))
+                .append("\",\"cs\":\"").append(escape(validation.applicationId))
+                .append("\"}");
+        }
+
+        return json.append("]}").toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    // ============================================
+    // QUEUED VALIDATION
+    // ============================================
+
+    private static final class PendingValidation {
+
+        final String applicationId;
+        final String documentId;
+        final String sessionId;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingValidation(String applicationId, String documentId, String sessionId) {
+            this.applicationId = applicationId;
+            this.documentId = documentId;
+            this.sessionId = sessionId;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package tokenrest;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of ORDS session validation results keyed on (p_app_id, p_session_id, X-Doc-Id).
+ * Valid results live for the positive TTL, rejections for the shorter negative TTL, and
+ * concurrent misses for the same key share a single ORDS round trip. A load that fails is
+ * not cached: its waiters get the failure and the next lookup asks ORDS again.
+ */
+final class SessionValidationCache {
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final long positiveTtlMs;
+    private final long negativeTtlMs;
+    private final int maxEntries;
+    private final int evictToEntries;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    SessionValidationCache(long positiveTtlMs, long negativeTtlMs, int maxEntries) {
+        this.positiveTtlMs = positiveTtlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.evictToEntries = this.maxEntries - Math.max(1, this.maxEntries / 10);
+    }
+
+    // ============================================
+    // LOOKUP
+    // ============================================
+
+    /**
+     * Returns the cached result for the key, calling the loader once per miss.
+     */
+    boolean get(String applicationId, String sessionId, String documentId, Supplier<Boolean> loader) {
+        Key key = new Key(applicationId, sessionId, documentId);
+
+        while (true) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                hits.increment();
+                return join(entry.result);
+            }
+
+            Entry fresh = new Entry();
+            boolean owner = entry == null
+                    ? entries.putIfAbsent(key, fresh) == null
+                    : entries.replace(key, entry, fresh);
+
+            if (owner) {
+                misses.increment();
+                evictIfFull();
+                return load(key, fresh, loader);
+            }
+            // Another thread won the race; wait on its load instead
+        }
+    }
+
+    /**
+     * Non-blocking variant of get(): hits complete immediately, and a miss starts the
+     * asynchronous loader once while concurrent callers share its future.
+     */
+    CompletableFuture<Boolean> getAsync(String applicationId, String sessionId, String documentId,
+                                        Supplier<CompletableFuture<Boolean>> loader) {
+        Key key = new Key(applicationId, sessionId, documentId);
+
+        while (true) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                hits.increment();
+                return entry.result;
+            }
+
+            Entry fresh = new Entry();
+            boolean owner = entry == null
+                    ? entries.putIfAbsent(key, fresh) == null
+                    : entries.replace(key, entry, fresh);
+
+            if (owner) {
+                misses.increment();
+                evictIfFull();
+                try {
+                    loader.get().whenComplete((valid, error) -> {
+                        if (error != null) {
+                            fail(key, fresh, error);
+                        } else {
+                            complete(fresh, Boolean.TRUE.equals(valid));
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    fail(key, fresh, e);
+                    throw e;
+                }
+                return fresh.result;
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Lookups answered from the cache, including those that joined a load already in flight.
+     */
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    private boolean load(Key key, Entry entry, Supplier<Boolean> loader) {
+        boolean valid;
+        try {
+            valid = Boolean.TRUE.equals(loader.get());
+        } catch (RuntimeException | Error e) {
+            fail(key, entry, e);
+            throw e;
+        }
+        complete(entry, valid);
+        return valid;
+    }
+
+    private void complete(Entry entry, boolean valid) {
+        entry.expiresAt = System.currentTimeMillis() + (valid ? positiveTtlMs : negativeTtlMs);
+        entry.result.complete(valid);
+    }
+
+    /**
+     * Drops the entry so the failure is not served as a result, then releases its waiters.
+     */
+    private void fail(Key key, Entry entry, Throwable error) {
+        entries.remove(key, entry);
+        entry.result.completeExceptionally(error);
+    }
+
+    /**
+     * Waits for a shared load and rethrows its failure as the loader raised it.
+     */
+    private static boolean join(CompletableFuture<Boolean> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // ============================================
+    // EVICTION
+    // ============================================
+
+    /**
+     * Once over the bound, removes expired entries, then arbitrary ones, down to 90% of it.
+     * Each pass frees room for a tenth of the capacity, so the scan is amortised over that
+     * many misses; one thread evicts while the others carry on.
+     */
+    private void evictIfFull() {
+        if (entries.size() <= maxEntries || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(entry -> entry.isExpired(now));
+
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (entries.size() > evictToEntries && iterator.hasNext()) {
+                Map.Entry<Key, Entry> candidate = iterator.next();
+                if (candidate.getValue().result.isDone()) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // ============================================
+    // CACHE ENTRIES
+    // ============================================
+
+    private static final class Entry {
+
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isExpired(long now) {
+            return result.isDone() && expiresAt <= now;
+        }
+    }
+
+    private static final class Key {
+
+        final String applicationId;
+        final String sessionId;
+        final String documentId;
+        private final int hash;
+
+        Key(String applicationId, String sessionId, String documentId) {
+            this.applicationId = applicationId;
+            this.sessionId = sessionId;
+            this.documentId = documentId;
+            this.hash = Objects.hash(applicationId, sessionId, documentId);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return Objects.equals(applicationId, that.applicationId)
+                    && Objects.equals(sessionId, that.sessionId)
+                    && Objects.equals(documentId, that.documentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-shot tool that moves the files of a flat doc-type directory into the layout
+ * configured by &lt;DOC_TYPE&gt;.LAYOUT. Safe to run while the server is live and safe to
+ * interrupt: every file is moved independently, so re-running simply continues with
+ * whatever is still flat.
+ *
+ * <pre>
+ * java -cp tokenrest.jar tokenrest.ShardMigrator EMP_DOC [threads]
+ * </pre>
+ */
+public final class ShardMigrator {
+
+    private static final Logger LOGGER = Logger.getLogger(ShardMigrator.class.getName());
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final PathStrategy layout;
+    private final int threads;
+
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    ShardMigrator(PathStrategy layout, int threads) {
+        this.layout = layout;
+        this.threads = Math.max(1, threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ShardMigrator <DOC_TYPE> [threads]");
+            System.exit(2);
+        }
+
+        String documentType = args[0];
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+        PathStrategy layout = PathStrategy.forDocumentType(documentType);
+
+        if (layout.isFlat()) {
+            System.err.println(documentType + ".LAYOUT is flat; nothing to migrate");
+            System.exit(1);
+        }
+
+        Path base = DocumentStore.basePath(documentType);
+        ShardMigrator migrator = new ShardMigrator(layout, threads);
+
+        migrator.migrate(base);
+        migrator.migrate(base.resolve(".cas").resolve("index"));
+
+        LOGGER.info("Migration of " + documentType + " finished: moved=" + migrator.moved
+                + " superseded=" + migrator.superseded + " failed=" + migrator.failed);
+        System.exit(migrator.failed.get() == 0 ? 0 : 1);
+    }
+
+    // ============================================
+    // MIGRATION
+    // ============================================
+
+    /**
+     * Moves every regular, non-hidden file directly inside the directory to its layout location.
+     */
+    void migrate(Path directory) throws IOException, InterruptedException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        LOGGER.info("Migrating " + directory + " with " + threads + " threads");
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                // Temp files, part files, previews and shard directories stay where they are
+                if (name.startsWith(".") || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                if (name.endsWith(PreviewPipeline.LEGACY_PREVIEW_SUFFIX)) {
+                    executor.execute(() -> dropLegacyPreview(file));
+                    continue;
+                }
+                executor.execute(() -> migrateFile(directory, file));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the file at its new location with a hard link (never clobbering a newer upload),
+     * then removes the flat name and moves its preview along.
+     */
+    private void migrateFile(Path directory, Path file) {
+        try {
+            Path target = layout.locate(directory, file.getFileName().toString());
+            Files.createDirectories(target.getParent());
+
+            try {
+                Files.createLink(target, file);
+                moved.incrementAndGet();
+            } catch (FileAlreadyExistsException e) {
+                // A newer upload already landed at the layout location
+                superseded.incrementAndGet();
+            } catch (UnsupportedOperationException e) {
+                if (Files.exists(target)) {
+                    superseded.incrementAndGet();
+                } else {
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                    moved.incrementAndGet();
+                }
+            }
+
+            Files.deleteIfExists(file);
+            PreviewPipeline.relocate(file, target);
+
+            long done = moved.get() + superseded.get();
+            if (done % PROGRESS_INTERVAL == 0) {
+                LOGGER.info("Migrated " + done + " files from " + directory);
+            }
+
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Cannot migrate " + file, e);
+        }
+    }
+
+    /**
+     * Previews once lived next to the document as &lt;stored name&gt;:preview; they are made
+     * again under .previews on first request.
+     */
+    private void dropLegacyPreview(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Cannot remove legacy preview " + file, e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package tokenrest;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed array of read/write locks selected by key hash. Operations on the same key always
+ * share a lock; unrelated keys only contend when they land on the same stripe.
+ */
+final class StripedLocks {
+
+    private final ReadWriteLock[] stripes;
+    private final int mask;
+
+    /**
+     * Rounds the stripe count up to a power of two.
+     */
+    StripedLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ReadWriteLock[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    ReadWriteLock get(Object key) {
+        int hash = key.hashCode();
+        // Spread the high bits, as HashMap does, so similar names do not cluster
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    int size() {
+        return stripes.length;
+    }
+}
@@ -0,0 +1,311 @@
+package tokenrest;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sequential reader for ustar / GNU / pax tar streams, enough for bulk uploads: regular file
+ * entries with their names (long names from GNU 'L' and pax 'path' records) and sizes.
+ * Everything else (directories, links, devices) is skipped.
+ */
+final class TarReader {
+
+    private static final int BLOCK_SIZE = 512;
+
+    // Cap on GNU long-name and pax header records, which are buffered in memory
+    private static final int MAX_HEADER_RECORD = 64 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private long remaining;
+    private long padding;
+
+    TarReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * One regular file in the archive.
+     */
+    static final class Entry {
+        final String name;
+        final long size;
+
+        Entry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    // ============================================
+    // ENTRIES
+    // ============================================
+
+    /**
+     * Advances to the next regular file, skipping whatever is left of the current one;
+     * null at the end of the archive.
+     */
+    Entry next() throws IOException {
+        skipRest();
+        String longName = null;
+
+        while (true) {
+            if (!readBlock(header, true)) {
+                return null;
+            }
+            if (isZeroBlock(header)) {
+                // End-of-archive marker; the second zero block is not required
+                return null;
+            }
+            verifyChecksum();
+
+            long size = parseNumber(header, 124, 12);
+            char type = (char) header[156];
+            beginData(size);
+
+            if (type == 'L') {
+                longName = trimNul(readRecord(size));
+                continue;
+            }
+            if (type == 'x') {
+                String path = paxPath(readRecord(size));
+                longName = path != null ? path : longName;
+                continue;
+            }
+            if (type != '0' && type != '\0' && type != '7') {
+                // Directory, link, device or global header
+                skipRest();
+                longName = null;
+                continue;
+            }
+
+            String name = longName != null ? longName : headerName();
+            return new Entry(name, size);
+        }
+    }
+
+    /**
+     * Data of the current entry; reading past its size returns end of stream.
+     */
+    InputStream entryStream() {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int bytesRead = in.read(buffer, offset, (int) Math.min(length, remaining));
+                if (bytesRead < 0) {
+                    throw new EOFException("Tar entry truncated");
+                }
+                remaining -= bytesRead;
+                return bytesRead;
+            }
+
+            @Override
+            public void close() {
+                // The archive stream belongs to the reader
+            }
+        };
+    }
+
+    // ============================================
+    // HELPERS
+    // ============================================
+
+    private void beginData(long size) {
+        remaining = size;
+        padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private void skipRest() throws IOException {
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+    }
+
+    private byte[] readRecord(long size) throws IOException {
+        if (size > MAX_HEADER_RECORD) {
+            throw new IOException("Tar header record too large: " + size);
+        }
+        byte[] record = new byte[(int) size];
+        readFully(record);
+        remaining = 0;
+        skipRest();
+        return record;
+    }
+
+    private String headerName() {
+        String name = trimNul(slice(0, 100));
+        // ustar splits long paths into prefix + name
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[345] != 0) {
+            name = trimNul(slice(345, 155)) + "/" + name;
+        }
+        return name;
+    }
+
+    /**
+     * The "path" keyword of a pax extended header ("len key=value\n" records).
+     */
+    private static String paxPath(byte[] record) throws IOException {
+        String path = null;
+        int position = 0;
+
+        while (position < record.length) {
+            int space = indexOf(record, (byte) ' ', position);
+            if (space < 0) {
+                break;
+            }
+            int length = paxRecordLength(record, position, space);
+            if (position + length > record.length) {
+                break;
+            }
+
+            String keyValue = new String(record, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            if (keyValue.startsWith("path=")) {
+                path = keyValue.substring("path=".length());
+            }
+            position += length;
+        }
+        return path;
+    }
+
+    /**
+     * The decimal length of the pax record at position, which must cover its key and newline.
+     */
+    private static int paxRecordLength(byte[] record, int position, int space) throws IOException {
+        if (space == position || space - position > 9) {
+            throw new IOException("Invalid pax record length");
+        }
+        int length = 0;
+        for (int i = position; i < space; i++) {
+            if (record[i] < '0' || record[i] > '9') {
+                throw new IOException("Invalid pax record length");
+            }
+            length = length * 10 + (record[i] - '0');
+        }
+        if (length < space - position + 2) {
+            throw new IOException("Invalid pax record length: " + length);
+        }
+        return length;
+    }
+
+    private void verifyChecksum() throws IOException {
+        long expected = parseNumber(header, 148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        if (sum != expected) {
+            throw new IOException("Not a tar archive (header checksum mismatch)");
+        }
+    }
+
+    /**
+     * Octal field, or base-256 when the high bit of the first byte is set (GNU, sizes over 8 GB).
+     */
+    private static long parseNumber(byte[] block, int offset, int length) throws IOException {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (block[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Invalid number in tar header");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private boolean readBlock(byte[] block, boolean endAllowed) throws IOException {
+        int total = 0;
+        while (total < block.length) {
+            int bytesRead = inputStream.read(block, total, block.length - total);
+            if (bytesRead < 0) {
+                if (total == 0 && endAllowed) {
+                    return false;
+                }
+                throw new EOFException("Tar archive truncated");
+            }
+            total += bytesRead;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        readBlock(buffer, false);
+    }
+
+    private void skipFully(long count) throws IOException {
+        long left = count;
+        byte[] scratch = null;
+
+        while (left > 0) {
+            long skipped = inputStream.skip(left);
+            if (skipped <= 0) {
+                // Some streams refuse to skip; fall back to reading
+                if (scratch == null) {
+                    scratch = new byte[8192];
+                }
+                int bytesRead = inputStream.read(scratch, 0, (int) Math.min(scratch.length, left));
+                if (bytesRead < 0) {
+                    throw new EOFException("Tar archive truncated");
+                }
+                skipped = bytesRead;
+            }
+            left -= skipped;
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] slice(int offset, int length) {
+        byte[] field = new byte[length];
+        System.arraycopy(header, offset, field, 0, length);
+        return field;
+    }
+
+    private static String trimNul(byte[] field) {
+        int end = indexOf(field, (byte) 0, 0);
+        return new String(field, 0, end < 0 ? field.length : end, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,75 @@
+package tokenrest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket for byte or request rates (GCRA: one atomic "theoretical arrival
+ * time"). Up to burst permits can be taken at once; after that permits refill at rate per second.
+ */
+final class TokenBucket {
+
+    private final double nanosPerPermit;
+    private final long burstNanos;
+
+    // Time at which the bucket is full again; in the past when idle
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(long permitsPerSecond, long burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.nanosPerPermit = (double) TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burstNanos = (long) (Math.max(1, burst) * nanosPerPermit);
+    }
+
+    /**
+     * Takes the permits if available now; otherwise takes nothing and returns the nanoseconds
+     * until they would be. A request larger than the burst is allowed once the bucket is full.
+     */
+    long tryAcquire(long permits) {
+        long cost = cost(permits);
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            long wait = start + Math.min(cost, burstNanos) - now - burstNanos;
+
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, start + cost)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes the permits, sleeping as long as the rate requires.
+     */
+    void acquire(long permits) throws InterruptedException {
+        long cost = cost(permits);
+        long now;
+        long start;
+
+        while (true) {
+            now = System.nanoTime();
+            long current = fullAt.get();
+            start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            if (fullAt.compareAndSet(current, start + cost)) {
+                break;
+            }
+        }
+
+        // Reserved; wait for the part of the reservation that exceeds the burst
+        long wait = start + cost - now - burstNanos;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private long cost(long permits) {
+        return (long) (Math.max(0, permits) * nanosPerPermit);
+    }
+}
@@ -0,0 +1,111 @@
+package tokenrest;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs suspended uploads off the container's work manager, so slow clients and slow ORDS
+ * responses never hold WebLogic request threads. Admission is bounded by UPLOAD_MAX_CONCURRENT;
+ * work runs on UPLOAD_MAX_THREADS dedicated threads, or on virtual threads when
+ * UPLOAD_EXECUTOR=virtual and the JVM provides them (Java 21+).
+ */
+final class UploadExecutor {
+
+    // ============================================
+    // CONSTANTS AND CONFIGURATION
+    // ============================================
+
+    private static final Logger LOGGER = Logger.getLogger(UploadExecutor.class.getName());
+
+    private static final UploadExecutor INSTANCE = new UploadExecutor(
+            DocumentPaths.get("UPLOAD_EXECUTOR"),
+            (int) DocumentPaths.getLong("UPLOAD_MAX_THREADS", 64),
+            (int) DocumentPaths.getLong("UPLOAD_MAX_CONCURRENT", 512));
+
+    private final ExecutorService executor;
+    private final Semaphore admissions;
+    private final int maxConcurrent;
+
+    private UploadExecutor(String mode, int maxThreads, int maxConcurrent) {
+        ExecutorService virtual = "virtual".equalsIgnoreCase(mode == null ? "" : mode.trim())
+                ? newVirtualThreadExecutor() : null;
+
+        this.executor = virtual != null ? virtual : newBoundedExecutor(Math.max(1, maxThreads));
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.admissions = new Semaphore(this.maxConcurrent);
+
+        LOGGER.info("Upload executor: " + (virtual != null ? "virtual threads" : maxThreads + " threads")
+                + ", at most " + maxConcurrent + " concurrent uploads");
+    }
+
+    static UploadExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // ADMISSION
+    // ============================================
+
+    /**
+     * Reserves a slot for one upload; false when the node is already at capacity.
+     * Every successful reservation must be paired with release().
+     */
+    boolean tryReserve() {
+        return admissions.tryAcquire();
+    }
+
+    void release() {
+        admissions.release();
+    }
+
+    /**
+     * Executor for reserved uploads; never rejects, since admission already bounds the work.
+     */
+    Executor executor() {
+        return executor;
+    }
+
+    int inFlight() {
+        return maxConcurrent - admissions.availablePermits();
+    }
+
+    // ============================================
+    // EXECUTORS
+    // ============================================
+
+    private static ExecutorService newBoundedExecutor(int maxThreads) {
+        AtomicInteger counter = new AtomicInteger();
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "upload-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() looked up reflectively, so the module still
+     * builds for Java 8; null on JVMs without virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning("Virtual threads are not available on Java "
+                    + System.getProperty("java.version") + ", using a bounded pool");
+            return null;
+        }
+    }
+}
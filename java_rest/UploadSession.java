@@ -0,0 +1,166 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * State of one chunked upload: a sparse part file written with positional writes,
+ * plus the set of byte ranges received so far. Chunks may arrive in any order and in parallel.
+ * The upload holds its doc type's admission from start until it is committed or discarded.
+ */
+final class UploadSession {
+
+    private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+
+    final String uploadId;
+    final String documentType;
+    final String documentId;
+    final String fileName;
+    final String applicationId;
+    final String sessionId;
+    final long totalLength;
+    final Path partFile;
+
+    private final AdmissionController.Admission admission;
+    private final FileChannel channel;
+    private final TreeMap<Long, Long> receivedRanges = new TreeMap<>(); // start -> end (exclusive)
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    UploadSession(String uploadId, String documentType, String documentId, String fileName,
+                  String applicationId, String sessionId, long totalLength, Path partFile,
+                  AdmissionController.Admission admission) throws IOException {
+        this.uploadId = uploadId;
+        this.documentType = documentType;
+        this.documentId = documentId;
+        this.fileName = fileName;
+        this.applicationId = applicationId;
+        this.sessionId = sessionId;
+        this.totalLength = totalLength;
+        this.partFile = partFile;
+        this.admission = admission;
+        this.channel = FileChannel.open(partFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+    }
+
+    // ============================================
+    // CHUNK WRITES
+    // ============================================
+
+    /**
+     * Writes exactly length bytes from the stream at the given offset of the part file.
+     */
+    void writeChunk(long offset, long length, InputStream inputStream) throws IOException {
+        if (offset < 0 || length <= 0 || offset + length > totalLength) {
+            throw new IllegalArgumentException("Chunk outside upload bounds: " + offset + "+" + length);
+        }
+
+        lastActivity = System.currentTimeMillis();
+
+        inputStream = admission.throttle(inputStream);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_BUFFER_SIZE, length));
+        long position = offset;
+        long end = offset + length;
+
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+            int bytesRead = inputStream.read(buffer.array(), 0, buffer.limit());
+            if (bytesRead == -1) {
+                throw new IOException("Chunk body shorter than Content-Range: " + (position - offset));
+            }
+            buffer.limit(bytesRead);
+
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        if (inputStream.read() != -1) {
+            throw new IOException("Chunk body longer than Content-Range");
+        }
+
+        markReceived(offset, end);
+        Metrics.addBytesIn(length);
+    }
+
+    private synchronized void markReceived(long start, long end) {
+        Map.Entry<Long, Long> before = receivedRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        Map.Entry<Long, Long> after = receivedRanges.ceilingEntry(start);
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            receivedRanges.remove(after.getKey());
+            after = receivedRanges.ceilingEntry(start);
+        }
+
+        receivedRanges.put(start, end);
+    }
+
+    // ============================================
+    // STATE
+    // ============================================
+
+    synchronized boolean isComplete() {
+        Long end = receivedRanges.get(0L);
+        return receivedRanges.size() == 1 && end != null && end == totalLength;
+    }
+
+    /**
+     * Received ranges in Range header syntax, e.g. "0-1048575,2097152-3145727".
+     */
+    synchronized String describeReceived() {
+        StringBuilder ranges = new StringBuilder();
+        for (Map.Entry<Long, Long> range : receivedRanges.entrySet()) {
+            if (ranges.length() > 0) {
+                ranges.append(',');
+            }
+            ranges.append(range.getKey()).append('-').append(range.getValue() - 1);
+        }
+        return ranges.toString();
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Flushes and closes the part file; it can then be moved into place.
+     */
+    void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Releases the admission of a published upload, counting it against the quota.
+     */
+    void committed() {
+        admission.stored(totalLength);
+        admission.close();
+    }
+
+    /**
+     * Closes and deletes the part file of an abandoned upload and releases its admission.
+     */
+    void discard() throws IOException {
+        try {
+            close();
+            Files.deleteIfExists(partFile);
+        } finally {
+            admission.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Open chunked uploads, keyed by upload id. Idle uploads are discarded after UPLOAD_IDLE_TIMEOUT_MS.
+ */
+final class UploadSessionRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadSessionRegistry.class.getName());
+
+    private static final String PART_FILE_PREFIX = ".upload-";
+    private static final String PART_FILE_SUFFIX = ".part";
+
+    private static final UploadSessionRegistry INSTANCE =
+            new UploadSessionRegistry(DocumentPaths.getLong("UPLOAD_IDLE_TIMEOUT_MS", 3600000));
+
+    private final ConcurrentHashMap<String, UploadSession> uploads = new ConcurrentHashMap<>();
+    private final long idleTimeoutMs;
+
+    private UploadSessionRegistry(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chunked-upload-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, idleTimeoutMs / 4);
+        scheduler.scheduleWithFixedDelay(this::discardIdleUploads, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    static UploadSessionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts an upload whose part file lives in the target directory, so commit is a rename.
+     * The upload takes over the admission; it is released here when the upload cannot start.
+     */
+    UploadSession open(String documentType, String documentId, String fileName,
+                       String applicationId, String sessionId, long totalLength, Path directory,
+                       AdmissionController.Admission admission) throws IOException {
+
+        String uploadId = UUID.randomUUID().toString();
+        Path partFile = directory.resolve(PART_FILE_PREFIX + uploadId + PART_FILE_SUFFIX);
+        UploadSession upload;
+
+        try {
+            Files.createDirectories(directory);
+            upload = new UploadSession(uploadId, documentType, documentId, fileName,
+                    applicationId, sessionId, totalLength, partFile, admission);
+        } catch (IOException | RuntimeException e) {
+            admission.close();
+            throw e;
+        }
+        uploads.put(uploadId, upload);
+
+        return upload;
+    }
+
+    UploadSession get(String uploadId) {
+        return uploadId == null ? null : uploads.get(uploadId);
+    }
+
+    /**
+     * Removes the upload from the registry; the caller owns its part file afterwards.
+     */
+    boolean remove(UploadSession upload) {
+        return uploads.remove(upload.uploadId, upload);
+    }
+
+    private void discardIdleUploads() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+
+        for (UploadSession upload : uploads.values()) {
+            if (upload.lastActivity() < cutoff && remove(upload)) {
+                try {
+                    upload.discard();
+                    LOGGER.info("Discarded idle upload " + upload.uploadId);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot discard idle upload " + upload.uploadId, e);
+                }
+            }
+        }
+    }
+}
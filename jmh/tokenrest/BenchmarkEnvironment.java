@@ -0,0 +1,71 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Work directory and document-paths.properties shared by the benchmarks of one JVM, installed
+ * before any tokenrest class reads its configuration. JMH forks a JVM per benchmark and
+ * parameter combination, so each trial starts from a fresh configuration and empty caches.
+ *
+ * The configuration points ORDS_VALIDATE_SESSION at a StubOrds port chosen here; only the
+ * benchmarks that validate sessions start the stub on it.
+ */
+final class BenchmarkEnvironment {
+
+    static final String DOC_TYPE = "EMP_DOC";
+    static final String APP_ID = "100";
+
+    private static BenchmarkEnvironment instance;
+
+    final Path workDirectory;
+    final int ordsPort;
+
+    private BenchmarkEnvironment(Path workDirectory, int ordsPort) {
+        this.workDirectory = workDirectory;
+        this.ordsPort = ordsPort;
+    }
+
+    static synchronized BenchmarkEnvironment get() throws IOException {
+        if (instance == null) {
+            Path workDirectory = Files.createTempDirectory("tokenrest-jmh");
+            int ordsPort = freePort();
+
+            String properties = "EMP_DOC=" + Files.createDirectories(workDirectory.resolve("emp")) + "\n"
+                    + "TEMP_BASE_PATH=" + Files.createDirectories(workDirectory.resolve("temp")) + "\n"
+                    + "ORDS_VALIDATE_SESSION=http://127.0.0.1:" + ordsPort + StubOrds.RESULT_PATH + "\n"
+                    + "FSYNC_POLICY=none\n"
+                    + "CS_LOCAL_VERIFY=false\n"
+                    + "CS_SECRET=bench-secret\n"
+                    + "DOWNLOAD_TOKEN_SECRET=bench-download-secret\n"
+                    + "DOC_CACHE_MAX_BYTES=0\n"
+                    + "METRICS_ENABLED=false\n"
+                    + "AUDIT_SINK=none\n";
+            Path config = workDirectory.resolve("document-paths.properties");
+            Files.write(config, properties.getBytes(StandardCharsets.ISO_8859_1));
+
+            // Must happen before any tokenrest class reads DocumentPaths
+            System.setProperty("tokenrest.config", config.toString());
+            instance = new BenchmarkEnvironment(workDirectory, ordsPort);
+        }
+        return instance;
+    }
+
+    /**
+     * A stub ORDS on the configured port, answering without injected latency.
+     */
+    StubOrds startOrds() throws IOException {
+        StubOrds ords = new StubOrds(ordsPort, 16);
+        ords.start();
+        return ords;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package tokenrest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTTP round trips through the real resources and filters on an embedded Jersey/Grizzly
+ * server, with sessions validated against StubOrds: upload (POST /SaveDocumentV2) with a
+ * cached or a new session, direct download, and the APEX token flow (POST then GET /{token}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndpointBenchmarks {
+
+    private static final String CONTEXT = "/api";
+    private static final String DOCUMENT_ID = "1001";
+    private static final String FILE_NAME = "contract.pdf";
+    private static final String CACHED_SESSION = "1234567890123";
+    private static final Pattern TOKEN = Pattern.compile("\"file\"\\s*:\\s*\"([^\"]+)\"");
+
+    @Param({"65536", "1048576"})
+    public int payloadSize;
+
+    private StubOrds ords;
+    private HttpServer server;
+    private String baseUrl;
+    private byte[] payload;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final AtomicLong sessions = new AtomicLong(2000000000000L);
+
+    @Setup
+    public void start() throws IOException {
+        BenchmarkEnvironment environment = BenchmarkEnvironment.get();
+        ords = environment.startOrds();
+
+        ResourceConfig application = new ResourceConfig(SaveDocumentV2.class, AccessToDocumentV2.class,
+                CORSFilter.class, MetricsFilter.class);
+        int port = BenchmarkEnvironment.freePort();
+        server = GrizzlyHttpServerFactory.createHttpServer(URI.create("http://127.0.0.1:" + port + CONTEXT + "/"),
+                application);
+        baseUrl = "http://127.0.0.1:" + port + CONTEXT;
+
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        if (upload(CACHED_SESSION) != 200) {
+            throw new IllegalStateException("Seed upload failed");
+        }
+    }
+
+    @TearDown
+    public void stop() {
+        server.shutdownNow();
+        ords.stop();
+    }
+
+    // ============================================
+    // BENCHMARKS
+    // ============================================
+
+    @Benchmark
+    public int uploadCachedSession() throws IOException {
+        return expectOk(upload(CACHED_SESSION));
+    }
+
+    /**
+     * Every upload validates a session the cache has not seen, so each one calls StubOrds.
+     */
+    @Benchmark
+    public int uploadNewSession() throws IOException {
+        return expectOk(upload(Long.toString(sessions.incrementAndGet())));
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        HttpURLConnection get = open(baseUrl + "/AccessToDocumentV2/" + BenchmarkEnvironment.DOC_TYPE + "/"
+                + DOCUMENT_ID + "/" + FILE_NAME, "GET");
+        expectOk(get.getResponseCode());
+        return drain(get);
+    }
+
+    @Benchmark
+    public long downloadByToken() throws IOException {
+        HttpURLConnection post = open(baseUrl + "/AccessToDocumentV2", "POST");
+        post.setRequestProperty("X-Doc-Id", DOCUMENT_ID);
+        post.setRequestProperty("X-File-Name", FILE_NAME);
+        post.setRequestProperty("X-Doc-Type", BenchmarkEnvironment.DOC_TYPE);
+        post.setFixedLengthStreamingMode(0);
+        post.setDoOutput(true);
+        post.getOutputStream().close();
+        expectOk(post.getResponseCode());
+
+        String body;
+        try (InputStream inputStream = post.getInputStream()) {
+            body = new String(readAll(inputStream), StandardCharsets.UTF_8);
+        }
+        Matcher token = TOKEN.matcher(body);
+        if (!token.find()) {
+            throw new IllegalStateException("No token in " + body);
+        }
+
+        HttpURLConnection get = open(baseUrl + "/AccessToDocumentV2/" + token.group(1), "GET");
+        expectOk(get.getResponseCode());
+        return drain(get);
+    }
+
+    // ============================================
+    // HTTP
+    // ============================================
+
+    private int upload(String sessionId) throws IOException {
+        HttpURLConnection post = open(baseUrl + "/SaveDocumentV2", "POST");
+        post.setRequestProperty(ApexSessionValidator.HEADER_SESSION_ID, sessionId);
+        post.setRequestProperty("Content-Type", "application/octet-stream");
+        post.setRequestProperty("X-Doc-Id", DOCUMENT_ID);
+        post.setRequestProperty("X-File-Name", FILE_NAME);
+        post.setRequestProperty("X-Doc-Type", BenchmarkEnvironment.DOC_TYPE);
+        post.setFixedLengthStreamingMode(payload.length);
+        post.setDoOutput(true);
+
+        try (OutputStream outputStream = post.getOutputStream()) {
+            outputStream.write(payload);
+        }
+        int status = post.getResponseCode();
+        drain(post);
+        return status;
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_APP_ID, BenchmarkEnvironment.APP_ID);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_SESSION_ID, CACHED_SESSION);
+        return connection;
+    }
+
+    /**
+     * Reads the body to the end so the connection returns to the keep-alive pool.
+     */
+    private long drain(HttpURLConnection connection) throws IOException {
+        long total = 0;
+        try (InputStream inputStream = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream()) {
+            if (inputStream == null) {
+                return 0;
+            }
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                total += bytesRead;
+            }
+        }
+        return total;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(chunk)) != -1) {
+            output.write(chunk, 0, bytesRead);
+        }
+        return output.toByteArray();
+    }
+
+    private static int expectOk(int status) {
+        if (status != 200) {
+            throw new IllegalStateException("HTTP " + status);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,80 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request CPU work outside the I/O: file name sanitization, ORDS response parsing, the CS
+ * checksum and download tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmarks {
+
+    private String fileName;
+    private String validResponse;
+    private String invalidResponse;
+    private String checksum;
+    private DownloadTokenRegistry tokens;
+    private String token;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkEnvironment.get();
+        fileName = "Q3 report: \"final\" <v2>|draft?.pdf";
+        validResponse = "{\"is_valid\":\"1\",\"session_id\":\"1234567890123\"}";
+        invalidResponse = "{\"is_valid\":\"0\",\"session_id\":\"1234567890123\"}";
+        checksum = CsTokenVerifier.generate("1001", "1234567890123", DocumentPaths.get("CS_SECRET"));
+        tokens = DownloadTokenRegistry.getInstance();
+        token = tokens.issue(BenchmarkEnvironment.DOC_TYPE, "1001", "contract.pdf");
+    }
+
+    @Benchmark
+    public String sanitizeFileName() {
+        return SaveDocumentV2.sanitizeFileName(fileName);
+    }
+
+    @Benchmark
+    public boolean isSessionValidResponseValid() {
+        return ApexSessionValidator.isSessionValidResponse(validResponse);
+    }
+
+    @Benchmark
+    public boolean isSessionValidResponseInvalid() {
+        return ApexSessionValidator.isSessionValidResponse(invalidResponse);
+    }
+
+    @Benchmark
+    public String csTokenGenerate() {
+        return CsTokenVerifier.generate("1001", "1234567890123", "bench-secret");
+    }
+
+    @Benchmark
+    public boolean csTokenVerify() {
+        return CsTokenVerifier.verify(checksum, "1001", "1234567890123");
+    }
+
+    @Benchmark
+    public String downloadTokenIssue() {
+        return tokens.issue(BenchmarkEnvironment.DOC_TYPE, "1001", "contract.pdf");
+    }
+
+    @Benchmark
+    public Object downloadTokenResolve() {
+        return tokens.resolve(token);
+    }
+}
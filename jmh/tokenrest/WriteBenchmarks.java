@@ -0,0 +1,73 @@
+package tokenrest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The upload write path of SaveDocumentV2 and DocumentStore: AtomicFileWriter.prepare() with
+ * each candidate copy buffer (WRITE_BUFFER_BYTES) and stored encoding, then the rename into
+ * place. Fsync is off so only the copy and the rename are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmarks {
+
+    @Param({"8192", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"65536", "4194304"})
+    public int payloadSize;
+
+    // ContentEncoding is package-private, which the generated JMH classes cannot name
+    @Param({"NONE", "GZIP"})
+    public String encoding;
+
+    private ContentEncoding contentEncoding;
+    private byte[] payload;
+    private Path target;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Files.createDirectories(BenchmarkEnvironment.get().workDirectory.resolve("write"));
+        target = directory.resolve("document.bin");
+        contentEncoding = ContentEncoding.valueOf(encoding);
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+    }
+
+    @Benchmark
+    public Path prepareAndInstall() throws IOException {
+        Path prepared = AtomicFileWriter.prepare(new ByteArrayInputStream(payload), target,
+                AtomicFileWriter.FsyncPolicy.NONE, contentEncoding, bufferSize);
+        AtomicFileWriter.install(prepared, target, AtomicFileWriter.FsyncPolicy.NONE);
+        return prepared;
+    }
+
+    /**
+     * The whole store path at the configured buffer size: naming, layout, write and publish.
+     */
+    @Benchmark
+    public Path documentStore() throws IOException {
+        return DocumentStore.getInstance().store(BenchmarkEnvironment.DOC_TYPE, "1001", "contract.pdf",
+                new ByteArrayInputStream(payload));
+    }
+}
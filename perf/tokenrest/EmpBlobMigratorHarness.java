@@ -0,0 +1,425 @@
+package tokenrest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs EmpBlobMigrator against an embedded H2 EMP table seeded with BLOBs and checks the
+ * result the way an operator would after a migration, printing PASS / FAIL per check:
+ *
+ * <ol>
+ *   <li>a run interrupted part way stops and leaves a checkpoint behind</li>
+ *   <li>a row whose BLOB stream fails is recorded as failed.N and keeps FILENAME unset</li>
+ *   <li>a row whose stored copy does not match the source checksum keeps FILENAME unset</li>
+ *   <li>the next run retries the failed rows, resumes the unfinished partitions and completes</li>
+ *   <li>every row ends with a FILENAME and a stored file identical to its BLOB</li>
+ *   <li>a run on a completed checkpoint reads nothing</li>
+ * </ol>
+ *
+ * Failures are injected through a JDBC proxy around the H2 connections, so the migrator runs
+ * unchanged against the real DocumentStore.
+ *
+ * <pre>
+ * java -cp perf/target/classes:$(cat perf/cp.txt) -Dmigrate.rows=200 -Dmigrate.threads=2 \
+ *      -Dmigrate.dir=/tmp/emp-blob-migration tokenrest.EmpBlobMigratorHarness
+ * </pre>
+ */
+final class EmpBlobMigratorHarness {
+
+    private static final String DOC_TYPE = "EMP_DOC";
+    private static final long FIRST_EMPNO = 1001;
+    private static final int PARTITIONS = 4;
+
+    // Both in the first partition, so they are handled before the interruption
+    private static final long FAILING_EMPNO = 1001;
+    private static final long CORRUPTED_EMPNO = 1004;
+
+    private static final String SQL_CREATE =
+            "CREATE TABLE EMP (EMPNO BIGINT PRIMARY KEY, FILENAME VARCHAR(255), MIME_TYPE VARCHAR(100), EMP_DOC BLOB)";
+    private static final String SQL_INSERT = "INSERT INTO EMP (EMPNO, FILENAME, MIME_TYPE, EMP_DOC) VALUES (?, ?, ?, ?)";
+    private static final String SQL_FILENAME = "SELECT FILENAME FROM EMP WHERE EMPNO = ?";
+    private static final String SQL_UNNAMED = "SELECT COUNT(*) FROM EMP WHERE FILENAME IS NULL";
+
+    private final String url;
+    private final Path checkpointFile;
+    private final Map<Long, byte[]> documents = new TreeMap<>();
+
+    // Fault injection, shared by every proxied connection
+    private final Set<Long> failOnce = ConcurrentHashMap.newKeySet();
+    private final Set<Long> corruptOnce = ConcurrentHashMap.newKeySet();
+    private final Set<Long> retriedByKey = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger rowsFetched = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile int interruptAfter = Integer.MAX_VALUE;
+    private volatile Thread runner;
+
+    private int failures;
+
+    private EmpBlobMigratorHarness(String url, Path checkpointFile) {
+        this.url = url;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = Integer.getInteger("migrate.rows", 200);
+        int threads = Integer.getInteger("migrate.threads", 2);
+        Path directory = Paths.get(System.getProperty("migrate.dir", "/tmp/emp-blob-migration"),
+                Long.toString(System.currentTimeMillis()));
+
+        configure(directory);
+
+        EmpBlobMigratorHarness harness = new EmpBlobMigratorHarness(
+                "jdbc:h2:mem:emp" + System.nanoTime() + ";DB_CLOSE_DELAY=-1",
+                directory.resolve("emp_doc.checkpoint"));
+        harness.seed(rows);
+        harness.run(rows, threads);
+        System.exit(harness.failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Points the file server configuration at the harness directory; must run before any
+     * tokenrest class reads DocumentPaths.
+     */
+    private static void configure(Path directory) throws IOException {
+        String properties = "EMP_DOC=" + Files.createDirectories(directory.resolve("emp")) + "\n"
+                + "TEMP_BASE_PATH=" + Files.createDirectories(directory.resolve("temp")) + "\n"
+                + "FSYNC_POLICY=none\n"
+                + "CAS_SWEEP_INTERVAL_MS=0\n"
+                + "DOC_CACHE_MAX_BYTES=0\n"
+                + "METRICS_ENABLED=false\n"
+                + "AUDIT_SINK=none\n";
+        Path config = directory.resolve("document-paths.properties");
+        Files.write(config, properties.getBytes(StandardCharsets.ISO_8859_1));
+        System.setProperty("tokenrest.config", config.toString());
+    }
+
+    // ============================================
+    // SCENARIOS
+    // ============================================
+
+    private void run(int rows, int threads) throws Exception {
+        failOnce.add(FAILING_EMPNO);
+        corruptOnce.add(CORRUPTED_EMPNO);
+
+        // 1. Interrupted after a bit more than half of the rows
+        boolean interrupted = false;
+        interruptAfter = rows / 2 + rows / 10;
+        runner = Thread.currentThread();
+        try {
+            migrator().run(threads, PARTITIONS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            runner = null;
+            interruptAfter = Integer.MAX_VALUE;
+            Thread.interrupted();
+        }
+        awaitConnectionsClosed();
+
+        Properties checkpoint = loadCheckpoint();
+        int unfinished = unfinishedPartitions(checkpoint);
+        check("interrupted run stops with a checkpoint", interrupted && unfinished > 0,
+                "interrupted=" + interrupted + ", " + unfinished + " of " + PARTITIONS + " partitions unfinished");
+
+        String failedRows = checkpoint.getProperty("failed.0", "");
+        check("failed rows recorded in the checkpoint",
+                failedRows.contains(String.valueOf(FAILING_EMPNO)) && failedRows.contains(String.valueOf(CORRUPTED_EMPNO)),
+                "failed.0=" + failedRows);
+        check("failed read leaves FILENAME unset", fileNameOf(FAILING_EMPNO) == null,
+                "FILENAME=" + fileNameOf(FAILING_EMPNO));
+
+        Path corrupted = DocumentStore.getInstance().resolve(DOC_TYPE, String.valueOf(CORRUPTED_EMPNO),
+                "document_" + CORRUPTED_EMPNO + ".pdf");
+        check("checksum mismatch leaves FILENAME unset",
+                fileNameOf(CORRUPTED_EMPNO) == null && corrupted != null
+                        && !Arrays.equals(Files.readAllBytes(corrupted), documents.get(CORRUPTED_EMPNO)),
+                "FILENAME=" + fileNameOf(CORRUPTED_EMPNO) + ", stored " + corrupted);
+
+        // 2. Resumed run
+        rowsFetched.set(0);
+        boolean completed = true;
+        try {
+            migrator().run(threads, PARTITIONS);
+        } catch (InterruptedException e) {
+            completed = false;
+        }
+        awaitConnectionsClosed();
+        int resumedRows = rowsFetched.get();
+
+        check("failed rows retried by EMPNO",
+                retriedByKey.contains(FAILING_EMPNO) && retriedByKey.contains(CORRUPTED_EMPNO),
+                "retried " + retriedByKey);
+        check("resumed run reads only unfinished partitions", completed && resumedRows < rows,
+                resumedRows + " of " + rows + " rows read");
+
+        checkpoint = loadCheckpoint();
+        boolean noFailedRows = true;
+        for (String key : checkpoint.stringPropertyNames()) {
+            noFailedRows &= !key.startsWith("failed.");
+        }
+        check("checkpoint complete", unfinishedPartitions(checkpoint) == 0 && noFailedRows,
+                checkpoint.size() + " entries");
+
+        check("every row has a FILENAME", countUnnamed() == 0, countUnnamed() + " rows without FILENAME");
+
+        int mismatched = 0;
+        for (Map.Entry<Long, byte[]> document : documents.entrySet()) {
+            String fileName = fileNameOf(document.getKey());
+            Path stored = fileName == null ? null
+                    : DocumentStore.getInstance().resolve(DOC_TYPE, String.valueOf(document.getKey()), fileName);
+            if (stored == null || !Arrays.equals(Files.readAllBytes(stored), document.getValue())) {
+                mismatched++;
+            }
+        }
+        check("stored files match the BLOBs", mismatched == 0, mismatched + " of " + documents.size() + " differ");
+
+        // 3. Nothing left to do
+        rowsFetched.set(0);
+        migrator().run(threads, PARTITIONS);
+        awaitConnectionsClosed();
+        check("completed checkpoint reads nothing", rowsFetched.get() == 0, rowsFetched.get() + " rows read");
+    }
+
+    private EmpBlobMigrator migrator() {
+        return new EmpBlobMigrator(() -> instrument(DriverManager.getConnection(url)), DOC_TYPE, checkpointFile, 0, false);
+    }
+
+    private void check(String name, boolean passed, String detail) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name + " (" + detail + ")");
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    // ============================================
+    // DATABASE
+    // ============================================
+
+    /**
+     * EMP rows with random BLOBs; every third row already has a FILENAME, the others get
+     * one named after their MIME type.
+     */
+    private void seed(int rows) throws SQLException {
+        Random random = new Random(42);
+
+        try (Connection connection = DriverManager.getConnection(url)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(SQL_CREATE);
+            }
+
+            try (PreparedStatement insert = connection.prepareStatement(SQL_INSERT)) {
+                for (long employeeNumber = FIRST_EMPNO; employeeNumber < FIRST_EMPNO + rows; employeeNumber++) {
+                    byte[] data = new byte[1024 + random.nextInt(48 * 1024)];
+                    random.nextBytes(data);
+                    documents.put(employeeNumber, data);
+
+                    insert.setLong(1, employeeNumber);
+                    insert.setString(2, employeeNumber % 3 == 0 ? "contract_" + employeeNumber + ".pdf" : null);
+                    insert.setString(3, employeeNumber % 10 == 5 ? null
+                            : employeeNumber % 2 == 0 ? "application/pdf" : "image/png");
+                    insert.setBytes(4, data);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    private String fileNameOf(long employeeNumber) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement select = connection.prepareStatement(SQL_FILENAME)) {
+            select.setLong(1, employeeNumber);
+            try (ResultSet rows = select.executeQuery()) {
+                return rows.next() ? rows.getString(1) : null;
+            }
+        }
+    }
+
+    private int countUnnamed() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement select = connection.prepareStatement(SQL_UNNAMED);
+             ResultSet rows = select.executeQuery()) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+
+    private Properties loadCheckpoint() throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(checkpointFile)) {
+            try (InputStream inputStream = Files.newInputStream(checkpointFile)) {
+                properties.load(inputStream);
+            }
+        }
+        return properties;
+    }
+
+    private static int unfinishedPartitions(Properties checkpoint) {
+        int unfinished = 0;
+        for (int i = 0; checkpoint.containsKey("partition." + i); i++) {
+            String[] values = checkpoint.getProperty("partition." + i).split(",");
+            if (Long.parseLong(values[2].trim()) < Long.parseLong(values[1].trim())) {
+                unfinished++;
+            }
+        }
+        return unfinished;
+    }
+
+    /**
+     * Partitions still running when the migrator was interrupted close their connections
+     * shortly after run() returns.
+     */
+    private void awaitConnectionsClosed() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (openConnections.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // ============================================
+    // FAULT INJECTION
+    // ============================================
+
+    private Connection instrument(Connection connection) {
+        openConnections.incrementAndGet();
+        return proxy(Connection.class, connection, (proxy, method, args) -> {
+            if ("close".equals(method.getName())) {
+                openConnections.decrementAndGet();
+            }
+            Object result = invoke(connection, method, args);
+            if (result instanceof PreparedStatement) {
+                return instrument((PreparedStatement) result, ((String) args[0]).startsWith("SELECT") && ((String) args[0]).contains("EMPNO = ?"));
+            }
+            return result;
+        });
+    }
+
+    private PreparedStatement instrument(PreparedStatement statement, boolean singleRow) {
+        return proxy(PreparedStatement.class, statement, (proxy, method, args) -> {
+            if (singleRow && "setLong".equals(method.getName()) && Integer.valueOf(1).equals(args[0])) {
+                retriedByKey.add((Long) args[1]);
+            }
+            Object result = invoke(statement, method, args);
+            if (result instanceof ResultSet) {
+                return instrument((ResultSet) result);
+            }
+            return result;
+        });
+    }
+
+    private ResultSet instrument(ResultSet rows) {
+        return proxy(ResultSet.class, rows, (proxy, method, args) -> {
+            Object result = invoke(rows, method, args);
+
+            if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                Thread target = runner;
+                if (rowsFetched.incrementAndGet() >= interruptAfter && target != null) {
+                    // As if the operator stopped the run: run() shuts its partitions down
+                    target.interrupt();
+                }
+            } else if ("getBinaryStream".equals(method.getName()) && result != null) {
+                long employeeNumber = rows.getLong(1);
+                if (failOnce.remove(employeeNumber)) {
+                    return new FailingStream((InputStream) result);
+                }
+                if (corruptOnce.remove(employeeNumber)) {
+                    return new CorruptingStream((InputStream) result, employeeNumber);
+                }
+            }
+            return result;
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, T target, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(EmpBlobMigratorHarness.class.getClassLoader(),
+                new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * Drops the BLOB stream after the first few KB, like a connection reset.
+     */
+    private static final class FailingStream extends FilterInputStream {
+        private int remaining = 512;
+
+        FailingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkRemaining();
+            remaining--;
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkRemaining();
+            int bytesRead = super.read(buffer, offset, Math.min(length, remaining));
+            remaining -= Math.max(0, bytesRead);
+            return bytesRead;
+        }
+
+        private void checkRemaining() throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Injected BLOB read failure");
+            }
+        }
+    }
+
+    /**
+     * Damages the stored copy once it is in place: the migrator closes the BLOB stream after
+     * DocumentStore.store returns and before it reads the stored file back.
+     */
+    private static final class CorruptingStream extends FilterInputStream {
+        private final long employeeNumber;
+
+        CorruptingStream(InputStream in, long employeeNumber) {
+            super(in);
+            this.employeeNumber = employeeNumber;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            Path stored = DocumentStore.getInstance().resolve(DOC_TYPE, String.valueOf(employeeNumber),
+                    "document_" + employeeNumber + ".pdf");
+            if (stored != null) {
+                byte[] data = Files.readAllBytes(stored);
+                data[data.length / 2] ^= 0x5a;
+                Files.write(stored, data);
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package tokenrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed-loop load generator for a deployed file server: every worker alternates uploads
+ * (POST /SaveDocumentV2) and downloads (GET /AccessToDocumentV2/{docType}/{docId}/{fileName}) of
+ * documents with a realistic size mix, then throughput, latency quantiles and error rates are
+ * reported per operation.
+ *
+ * <pre>
+ * java -cp out -Dload.url=http://host:7001/tokenrest/api -Dload.threads=64 -Dload.duration.s=120 \
+ *      -Dload.ords.port=18080 -Dords.latency.ms=20 tokenrest.LoadGenerator
+ * </pre>
+ *
+ * Settings (system properties):
+ * <ul>
+ *   <li>load.url - base URL of the JAX-RS application (required)</li>
+ *   <li>load.threads (32), load.duration.s (60), load.warmup.s (10)</li>
+ *   <li>load.download.ratio (0.7) - share of operations that are downloads</li>
+ *   <li>load.sizes (10k-100k:40,100k-1m:35,1m-10m:20,10m-50m:5) - size buckets and weights;
+ *       sizes are log-uniform within a bucket</li>
+ *   <li>load.doc.type (EMP_DOC), load.app.id (100)</li>
+ *   <li>load.session.id (1000000000001), load.sessions (1000) - each request uses a random one of
+ *       the load.sessions consecutive session ids from load.session.id, so the server's session
+ *       cache misses and ORDS latency and errors show up under load; 1 measures the cached path</li>
+ *   <li>load.ords.port - also start StubOrds in this JVM (configured by the ords.* properties);
+ *       the server's ORDS_VALIDATE_SESSION must point at it</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 120000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Documents uploaded so far, sampled for downloads
+    private static final int KNOWN_DOCUMENTS = 4096;
+
+    private enum Operation { UPLOAD, DOWNLOAD }
+
+    private final String baseUrl;
+    private final String documentType;
+    private final String applicationId;
+    private final long firstSessionId;
+    private final int sessions;
+    private final double downloadRatio;
+    private final SizeDistribution sizes;
+
+    private final AtomicReferenceArray<String> uploaded = new AtomicReferenceArray<>(KNOWN_DOCUMENTS);
+    private final AtomicInteger uploadCount = new AtomicInteger();
+    private final byte[] payload = new byte[BUFFER_SIZE];
+
+    private final Map<Operation, Stats> stats = new ConcurrentHashMap<>();
+
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadGenerator(String baseUrl, String documentType, String applicationId, long firstSessionId,
+                          int sessions, double downloadRatio, SizeDistribution sizes) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.documentType = documentType;
+        this.applicationId = applicationId;
+        this.firstSessionId = firstSessionId;
+        this.sessions = Math.max(1, sessions);
+        this.downloadRatio = downloadRatio;
+        this.sizes = sizes;
+
+        new Random(42).nextBytes(payload);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("load.url");
+        if (url == null) {
+            System.err.println("Usage: java -Dload.url=http://host:port/context tokenrest.LoadGenerator");
+            System.exit(2);
+        }
+
+        int threads = Integer.getInteger("load.threads", 32);
+        long durationSeconds = Long.getLong("load.duration.s", 60);
+        long warmupSeconds = Long.getLong("load.warmup.s", 10);
+
+        StubOrds ords = null;
+        Integer ordsPort = Integer.getInteger("load.ords.port");
+        if (ordsPort != null) {
+            ords = StubOrds.fromSystemProperties(ordsPort, Integer.getInteger("ords.threads", 64));
+            ords.start();
+            System.out.println("Stub ORDS listening on " + ords.baseUrl() + StubOrds.RESULT_PATH);
+        }
+
+        LoadGenerator generator = new LoadGenerator(url,
+                System.getProperty("load.doc.type", "EMP_DOC"),
+                System.getProperty("load.app.id", "100"),
+                Long.getLong("load.session.id", 1000000000001L),
+                Integer.getInteger("load.sessions", 1000),
+                Double.parseDouble(System.getProperty("load.download.ratio", "0.7")),
+                SizeDistribution.parse(System.getProperty("load.sizes", "10k-100k:40,100k-1m:35,1m-10m:20,10m-50m:5")));
+
+        try {
+            generator.run(threads, warmupSeconds, durationSeconds);
+        } finally {
+            if (ords != null) {
+                System.out.println("Stub ORDS served " + ords.requestCount() + " requests, "
+                        + ords.injectedErrorCount() + " injected errors");
+                ords.stop();
+            }
+        }
+    }
+
+    // ============================================
+    // LOAD LOOP
+    // ============================================
+
+    private void run(int threads, long warmupSeconds, long durationSeconds) throws InterruptedException {
+        System.out.println("Driving " + baseUrl + " with " + threads + " workers for " + warmupSeconds
+                + "s warmup + " + durationSeconds + "s, download ratio " + downloadRatio + ", " + sessions + " sessions");
+
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    work();
+                } finally {
+                    finished.countDown();
+                }
+            }, "load-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        measuring = true;
+        long started = System.nanoTime();
+
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        measuring = false;
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        running = false;
+
+        finished.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        report(elapsedSeconds);
+    }
+
+    private void work() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (running) {
+            String fileName = knownDocument(random);
+            boolean download = fileName != null && random.nextDouble() < downloadRatio;
+
+            Operation operation = download ? Operation.DOWNLOAD : Operation.UPLOAD;
+            long started = System.nanoTime();
+            int status;
+            long bytes;
+
+            try {
+                if (download) {
+                    long[] result = download(fileName);
+                    status = (int) result[0];
+                    bytes = result[1];
+                } else {
+                    bytes = sizes.next(random);
+                    status = upload(bytes);
+                }
+            } catch (IOException e) {
+                status = -1;
+                bytes = 0;
+            }
+
+            if (measuring) {
+                stats.get(operation).record(status, bytes, System.nanoTime() - started);
+            }
+        }
+    }
+
+    private String knownDocument(ThreadLocalRandom random) {
+        int known = Math.min(uploadCount.get(), KNOWN_DOCUMENTS);
+        return known == 0 ? null : uploaded.get(random.nextInt(known));
+    }
+
+    // ============================================
+    // HTTP
+    // ============================================
+
+    private int upload(long length) throws IOException {
+        String documentId = String.valueOf(ThreadLocalRandom.current().nextInt(1, 100000));
+        String fileName = "load-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".pdf";
+
+        HttpURLConnection connection = open(baseUrl + "/SaveDocumentV2", "POST");
+        try {
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("X-Doc-Id", documentId);
+            connection.setRequestProperty("X-File-Name", fileName);
+            connection.setRequestProperty("X-Doc-Type", documentType);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                long remaining = length;
+                while (remaining > 0) {
+                    int chunk = (int) Math.min(payload.length, remaining);
+                    outputStream.write(payload, 0, chunk);
+                    remaining -= chunk;
+                }
+            }
+
+            int status = connection.getResponseCode();
+            drain(connection, status);
+
+            if (status == 200) {
+                int slot = uploadCount.getAndIncrement() % KNOWN_DOCUMENTS;
+                uploaded.set(slot, documentId + "/" + fileName);
+            }
+            return status;
+
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private long[] download(String document) throws IOException {
+        int slash = document.indexOf('/');
+        String path = baseUrl + "/AccessToDocumentV2/" + documentType + "/" + document.substring(0, slash)
+                + "/" + URLEncoder.encode(document.substring(slash + 1), StandardCharsets.UTF_8.name());
+
+        HttpURLConnection connection = open(path, "GET");
+        try {
+            int status = connection.getResponseCode();
+            return new long[] {status, drain(connection, status)};
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_APP_ID, applicationId);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_SESSION_ID,
+                Long.toString(firstSessionId + ThreadLocalRandom.current().nextInt(sessions)));
+        return connection;
+    }
+
+    /**
+     * Reads the body to the end so the keep-alive connection is reused; returns the bytes read.
+     */
+    private static long drain(HttpURLConnection connection, int status) throws IOException {
+        try (InputStream inputStream = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (inputStream == null) {
+                return 0;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                total += bytesRead;
+            }
+            return total;
+        }
+    }
+
+    // ============================================
+    // REPORT
+    // ============================================
+
+    private void report(double elapsedSeconds) {
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %8s %s%n",
+                "operation", "requests", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "errors", "statuses");
+
+        for (Operation operation : Operation.values()) {
+            Stats operationStats = stats.get(operation);
+            LatencyHistogram latency = operationStats.latency;
+            long requests = latency.count();
+
+            System.out.printf("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %7.2f%% %s%n",
+                    operation.name().toLowerCase(),
+                    requests,
+                    requests / elapsedSeconds,
+                    operationStats.bytes.sum() / elapsedSeconds / (1024 * 1024),
+                    latency.quantileSeconds(0.5) * 1000,
+                    latency.quantileSeconds(0.99) * 1000,
+                    latency.quantileSeconds(0.999) * 1000,
+                    requests == 0 ? 0.0 : operationStats.errors.sum() * 100.0 / requests,
+                    operationStats.statuses());
+        }
+    }
+
+    /**
+     * Measurements of one operation; status -1 is a connection-level failure.
+     */
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(int status, long transferred, long nanos) {
+            latency.recordNanos(nanos);
+            bytes.add(transferred);
+            if (status < 200 || status >= 300) {
+                errors.increment();
+            }
+            statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        }
+
+        String statuses() {
+            Map<Integer, Long> sorted = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+                sorted.put(entry.getKey(), entry.getValue().sum());
+            }
+            return sorted.toString();
+        }
+    }
+
+    // ============================================
+    // DOCUMENT SIZES
+    // ============================================
+
+    /**
+     * Weighted size buckets, e.g. "10k-100k:40,100k-1m:35"; sizes are log-uniform within a bucket.
+     */
+    static final class SizeDistribution {
+        private final List<long[]> buckets = new ArrayList<>();
+        private long totalWeight;
+
+        static SizeDistribution parse(String spec) {
+            SizeDistribution distribution = new SizeDistribution();
+
+            for (String bucket : spec.split(",")) {
+                String[] rangeAndWeight = bucket.trim().split(":");
+                String[] bounds = rangeAndWeight[0].split("-");
+                long low = parseSize(bounds[0]);
+                long high = parseSize(bounds[bounds.length - 1]);
+                long weight = rangeAndWeight.length > 1 ? Long.parseLong(rangeAndWeight[1].trim()) : 1;
+
+                if (low <= 0 || high < low || weight <= 0) {
+                    throw new IllegalArgumentException("Invalid size bucket: " + bucket);
+                }
+
+                distribution.totalWeight += weight;
+                distribution.buckets.add(new long[] {low, high, distribution.totalWeight});
+            }
+
+            return distribution;
+        }
+
+        long next(ThreadLocalRandom random) {
+            long pick = random.nextLong(totalWeight);
+            for (long[] bucket : buckets) {
+                if (pick < bucket[2]) {
+                    double logLow = Math.log(bucket[0]);
+                    double logHigh = Math.log(bucket[1]);
+                    return (long) Math.exp(logLow + random.nextDouble() * (logHigh - logLow));
+                }
+            }
+            return buckets.get(buckets.size() - 1)[1];
+        }
+
+        private static long parseSize(String value) {
+            String size = value.trim().toLowerCase();
+            long unit = 1;
+            if (size.endsWith("k")) {
+                unit = 1024;
+            } else if (size.endsWith("m")) {
+                unit = 1024 * 1024;
+            } else if (size.endsWith("g")) {
+                unit = 1024L * 1024 * 1024;
+            }
+            return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package tokenrest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Several replicating file servers on localhost, each a ReplicationNode in its own JVM with its
+ * own document-paths.properties, DocumentStore directory and replication logs, serving the
+ * production SaveDocumentV2, AccessToDocumentV2 and ReplicationV2 resources. Sessions are
+ * validated against a StubOrds in this process. Runs the scenarios the replication layer has to
+ * survive over HTTP only and prints PASS / FAIL per check:
+ *
+ * <ol>
+ *   <li>uploads on two nodes reach every peer with identical checksums</li>
+ *   <li>a peer that is down falls behind and catches up from the log when it returns</li>
+ *   <li>uploads acknowledged just before a node is killed are shipped once it restarts</li>
+ *   <li>a document missing on one node is downloaded there from a replica and verified</li>
+ *   <li>a copy whose content does not match its checksum is refused</li>
+ *   <li>a copy older than the local version is refused</li>
+ *   <li>concurrent uploads of one document on two nodes converge on the later one</li>
+ * </ol>
+ *
+ * <pre>
+ * java -cp perf/target/classes:$(cat perf/cp.txt) -Drepl.nodes=3 -Drepl.docs=200 -Drepl.size.kb=64 \
+ *      -Drepl.port=19100 -Drepl.dir=/tmp/replication-cluster tokenrest.ReplicationCluster
+ * </pre>
+ *
+ * Node output goes to &lt;repl.dir&gt;/&lt;run&gt;/&lt;node&gt;/node.log.
+ */
+final class ReplicationCluster {
+
+    private static final String SECRET = "cluster-secret";
+    private static final String DOC_TYPE = "EMP_DOC";
+    private static final String CONTEXT = "/api/";
+    private static final String APP_ID = "100";
+    private static final String SESSION_ID = "1234567890123";
+    private static final long NODE_START_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final Pattern LAG = Pattern.compile("^tokenrest_replication_lag\\{peer=\"([^\"]+)\"} (\\d+)", Pattern.MULTILINE);
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<String[]> committed = new ArrayList<>();
+    private StubOrds ords;
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = Integer.getInteger("repl.nodes", 3);
+        int documents = Integer.getInteger("repl.docs", 200);
+        int sizeKb = Integer.getInteger("repl.size.kb", 64);
+        int port = Integer.getInteger("repl.port", 19100);
+        Path directory = Paths.get(System.getProperty("repl.dir", "/tmp/replication-cluster"),
+                Long.toString(System.currentTimeMillis()));
+
+        ReplicationCluster cluster = new ReplicationCluster();
+        try {
+            cluster.start(nodeCount, port, directory);
+            cluster.run(documents, sizeKb * 1024);
+        } finally {
+            cluster.stop();
+        }
+        System.exit(cluster.failures == 0 ? 0 : 1);
+    }
+
+    // ============================================
+    // SCENARIOS
+    // ============================================
+
+    private void run(int documents, int size) throws Exception {
+        Random random = new Random(42);
+        Node first = nodes.get(0);
+        Node second = nodes.get(1 % nodes.size());
+        Node last = nodes.get(nodes.size() - 1);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < documents; i++) {
+            upload(i % 2 == 0 ? first : second, Integer.toString(i), "scan " + i + ".pdf", randomBytes(random, size));
+        }
+        // A second version of one document: every node must end with the newer one
+        upload(first, "0", "scan 0.pdf", randomBytes(random, size));
+        awaitConvergence(60);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        check("initial replication of " + documents + " documents to " + nodes.size() + " nodes", converged(),
+                String.format("%.2f s, %.1f MB/s per peer", seconds, (double) documents * size / seconds / 1e6));
+
+        last.kill();
+        for (int i = documents; i < documents + 20; i++) {
+            upload(first, Integer.toString(i), "late " + i + ".pdf", randomBytes(random, size));
+        }
+        TimeUnit.MILLISECONDS.sleep(500);
+        Long lag = lag(first).get(last.name);
+        check("commits queue up while " + last.name + " is down", lag != null && lag > 0, "lag " + lag);
+
+        last.start();
+        awaitConvergence(60);
+        check(last.name + " catches up from the log", converged(), "lag " + lag(first));
+
+        // Acknowledged uploads are in the log on disk, whether or not shipping got to them
+        for (int i = 0; i < 10; i++) {
+            upload(first, "crash" + i, "crash " + i + ".pdf", randomBytes(random, size));
+        }
+        first.kill();
+        first.start();
+        awaitConvergence(60);
+        check("uploads acknowledged before " + first.name + " was killed are replicated", converged(),
+                "lag " + lag(first));
+
+        RemoteVersion source = head(first, "1", "scan 1.pdf");
+        Files.delete(second.documentFile("1", "scan 1.pdf"));
+        byte[] downloaded = download(second, "1", "scan 1.pdf");
+        RemoteVersion copy = head(second, "1", "scan 1.pdf");
+        check("missing document downloaded from a replica", downloaded != null && copy != null
+                && sha256(downloaded).equals(source.sha256) && copy.sha256.equals(source.sha256),
+                downloaded == null ? "not found" : downloaded.length + " bytes");
+
+        int status = put(second, "corrupt", "bad.pdf", "0000000000000000000000000000000000000000000000000000000000000000",
+                System.currentTimeMillis(), new byte[]{1, 2, 3});
+        check("copy with a wrong checksum refused", status == 400 && head(second, "corrupt", "bad.pdf") == null,
+                "status " + status);
+
+        byte[] stale = randomBytes(random, size);
+        RemoteVersion current = head(second, "2", "scan 2.pdf");
+        status = put(second, "2", "scan 2.pdf", sha256(stale), current.committedAt - 1, stale);
+        RemoteVersion kept = head(second, "2", "scan 2.pdf");
+        check("copy older than the local version refused", status == 200 && kept.sha256.equals(current.sha256),
+                "status " + status);
+
+        // The upload on the second node is later, whichever of the two is shipped first
+        byte[] later = randomBytes(random, size);
+        upload(first, "conflict", "both.pdf", randomBytes(random, size));
+        TimeUnit.MILLISECONDS.sleep(5);
+        upload(second, "conflict", "both.pdf", later);
+        awaitConvergence(60);
+        RemoteVersion winner = head(first, "conflict", "both.pdf");
+        check("concurrent uploads converge on the later one", converged() && winner.sha256.equals(sha256(later)),
+                String.valueOf(winner.committedAt));
+    }
+
+    private void awaitConvergence(int timeoutSeconds) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (System.nanoTime() < deadline) {
+            boolean idle = true;
+            for (Node node : nodes) {
+                for (long lag : lag(node).values()) {
+                    idle &= lag == 0;
+                }
+            }
+            if (idle) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    /**
+     * Every node has every uploaded document, all with the same checksum.
+     */
+    private boolean converged() throws IOException {
+        for (String[] document : committed) {
+            String expected = null;
+            for (Node node : nodes) {
+                RemoteVersion version = head(node, document[0], document[1]);
+                if (version == null || (expected != null && !expected.equals(version.sha256))) {
+                    return false;
+                }
+                expected = version.sha256;
+            }
+        }
+        return true;
+    }
+
+    private void check(String name, boolean passed, String detail) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name + " (" + detail + ")");
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        return DocumentStore.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    // ============================================
+    // HTTP
+    // ============================================
+
+    /**
+     * The version a node reports over ReplicationV2.
+     */
+    private static final class RemoteVersion {
+        final String sha256;
+        final long committedAt;
+
+        RemoteVersion(String sha256, long committedAt) {
+            this.sha256 = sha256;
+            this.committedAt = committedAt;
+        }
+    }
+
+    /**
+     * POST /SaveDocumentV2; once it answers 200 the commit is in the node's replication logs.
+     */
+    private void upload(Node node, String documentId, String fileName, byte[] content) throws IOException {
+        HttpURLConnection post = open(node.url("SaveDocumentV2"), "POST");
+        post.setRequestProperty("Content-Type", "application/octet-stream");
+        post.setRequestProperty("X-Doc-Id", documentId);
+        post.setRequestProperty("X-File-Name", fileName);
+        post.setRequestProperty("X-Doc-Type", DOC_TYPE);
+        post.setFixedLengthStreamingMode(content.length);
+        post.setDoOutput(true);
+        try (OutputStream outputStream = post.getOutputStream()) {
+            outputStream.write(content);
+        }
+
+        int status = post.getResponseCode();
+        readBody(post);
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Upload of " + documentId + "/" + fileName + " to " + node.name + " answered " + status);
+        }
+        committed.add(new String[]{documentId, fileName});
+    }
+
+    /**
+     * GET /AccessToDocumentV2/{docType}/{docId}/{fileName}; null when the node answers 404.
+     */
+    private static byte[] download(Node node, String documentId, String fileName) throws IOException {
+        HttpURLConnection get = open(node.url("AccessToDocumentV2/" + DOC_TYPE + "/" + segment(documentId) + "/"
+                + segment(fileName)), "GET");
+        int status = get.getResponseCode();
+        byte[] body = readBody(get);
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Download from " + node.name + " answered " + status);
+        }
+        return body;
+    }
+
+    /**
+     * HEAD /ReplicationV2/{docType}/{docId}/{fileName}; null when the node has no copy.
+     */
+    private static RemoteVersion head(Node node, String documentId, String fileName) throws IOException {
+        HttpURLConnection head = open(node.replicationUrl(documentId, fileName), "HEAD");
+        head.setRequestProperty(ReplicationManager.HEADER_TOKEN, SECRET);
+        int status = head.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HEAD on " + node.name + " answered " + status);
+        }
+        return new RemoteVersion(head.getHeaderField(ReplicationManager.HEADER_CONTENT_SHA256),
+                ReplicationManager.parseVersion(head.getHeaderField(ReplicationManager.HEADER_VERSION)));
+    }
+
+    /**
+     * PUT /ReplicationV2/{docType}/{docId}/{fileName} as a peer would.
+     */
+    private static int put(Node node, String documentId, String fileName, String sha256, long committedAt,
+                           byte[] body) throws IOException {
+        HttpURLConnection put = open(node.replicationUrl(documentId, fileName), "PUT");
+        put.setDoOutput(true);
+        put.setRequestProperty("Content-Type", "application/octet-stream");
+        put.setRequestProperty(ReplicationManager.HEADER_TOKEN, SECRET);
+        put.setRequestProperty(ReplicationManager.HEADER_CONTENT_SHA256, sha256);
+        put.setRequestProperty(ReplicationManager.HEADER_VERSION, Long.toString(committedAt));
+        try (OutputStream outputStream = put.getOutputStream()) {
+            outputStream.write(body);
+        }
+        int status = put.getResponseCode();
+        readBody(put);
+        return status;
+    }
+
+    /**
+     * Commits each peer has not acknowledged yet, from the node's replication_lag metric.
+     */
+    private static Map<String, Long> lag(Node node) throws IOException {
+        HttpURLConnection get = open(node.url("metrics"), "GET");
+        String metrics = new String(readBody(get), StandardCharsets.UTF_8);
+        if (get.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Metrics of " + node.name + " answered " + get.getResponseCode());
+        }
+
+        Map<String, Long> lag = new LinkedHashMap<>();
+        Matcher sample = LAG.matcher(metrics);
+        while (sample.find()) {
+            lag.put(sample.group(1), Long.parseLong(sample.group(2)));
+        }
+        return lag;
+    }
+
+    private static HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_APP_ID, APP_ID);
+        connection.setRequestProperty(ApexSessionValidator.HEADER_SESSION_ID, SESSION_ID);
+        return connection;
+    }
+
+    /**
+     * The whole body, so the connection returns to the keep-alive pool.
+     */
+    private static byte[] readBody(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream inputStream = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream()) {
+            if (inputStream == null) {
+                return body.toByteArray();
+            }
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                body.write(buffer, 0, bytesRead);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static String segment(String value) throws IOException {
+        // Path segment, not form encoding
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    // ============================================
+    // NODES
+    // ============================================
+
+    private void start(int nodeCount, int basePort, Path directory) throws IOException, InterruptedException {
+        int ordsPort = basePort + nodeCount;
+        ords = new StubOrds(ordsPort, 16);
+        ords.start();
+
+        for (int i = 0; i < nodeCount; i++) {
+            StringBuilder peers = new StringBuilder();
+            for (int j = 0; j < nodeCount; j++) {
+                if (j != i) {
+                    peers.append(peers.length() == 0 ? "" : ",")
+                            .append("node").append(j).append("=http://127.0.0.1:").append(basePort + j).append(CONTEXT);
+                }
+            }
+            nodes.add(new Node("node" + i, basePort + i, directory.resolve("node" + i), peers.toString(), ordsPort));
+        }
+        for (Node node : nodes) {
+            node.start();
+        }
+    }
+
+    private void stop() {
+        for (Node node : nodes) {
+            node.stop();
+        }
+        if (ords != null) {
+            ords.stop();
+        }
+    }
+
+    /**
+     * One file server: its configuration and directories, and the JVM running it.
+     */
+    private static final class Node {
+        final String name;
+        final int port;
+        final Path root;
+        final Path config;
+        private Process process;
+
+        Node(String name, int port, Path root, String peers, int ordsPort) throws IOException {
+            this.name = name;
+            this.port = port;
+            this.root = root;
+
+            String properties = "EMP_DOC=" + Files.createDirectories(root.resolve("documents")) + "\n"
+                    + "TEMP_BASE_PATH=" + Files.createDirectories(root.resolve("temp")) + "\n"
+                    + "ORDS_VALIDATE_SESSION=http://127.0.0.1:" + ordsPort + StubOrds.RESULT_PATH + "\n"
+                    + "CS_LOCAL_VERIFY=false\n"
+                    + "DOC_CACHE_MAX_BYTES=0\n"
+                    + "CAS_SWEEP_INTERVAL_MS=0\n"
+                    + "AUDIT_SINK=none\n"
+                    + "METRICS_ENABLED=true\n"
+                    + "DOWNLOAD_TOKEN_SECRET=" + SECRET + "\n"
+                    + "REPLICATION_NODE_ID=" + name + "\n"
+                    + "REPLICATION_PEERS=" + peers + "\n"
+                    + "REPLICATION_SECRET=" + SECRET + "\n"
+                    + "REPLICATION_LOG_DIR=" + root.resolve("replication") + "\n"
+                    + "REPLICATION_READ_TIMEOUT_MS=5000\n"
+                    + "REPLICATION_RETRY_MS=50\n";
+            this.config = root.resolve("document-paths.properties");
+            Files.write(config, properties.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        String url(String resource) {
+            return "http://127.0.0.1:" + port + CONTEXT + resource;
+        }
+
+        String replicationUrl(String documentId, String fileName) throws IOException {
+            return url(ReplicationManager.RESOURCE_PATH + "/" + DOC_TYPE + "/" + segment(documentId) + "/"
+                    + segment(fileName));
+        }
+
+        /**
+         * Where the node's DocumentStore keeps the document (flat layout, no compression).
+         */
+        Path documentFile(String documentId, String fileName) {
+            return root.resolve("documents").resolve(SaveDocumentV2.storedFileName(documentId, fileName));
+        }
+
+        /**
+         * Starts the node's JVM on this classpath and waits until it serves.
+         */
+        void start() throws IOException, InterruptedException {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-Dtokenrest.config=" + config, ReplicationNode.class.getName(), Integer.toString(port));
+            builder.redirectError(ProcessBuilder.Redirect.appendTo(new File(root.toFile(), "node.log")));
+            process = builder.start();
+
+            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8));
+            long deadline = System.currentTimeMillis() + NODE_START_TIMEOUT_MS;
+            String line;
+            while ((line = output.readLine()) != null && !"READY".equals(line)) {
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+            }
+            if (!"READY".equals(line)) {
+                process.destroyForcibly();
+                throw new IOException(name + " did not start; see " + root.resolve("node.log"));
+            }
+        }
+
+        /**
+         * Kills the JVM without a shutdown, as a crash would.
+         */
+        void kill() throws InterruptedException {
+            process.destroyForcibly();
+            process.waitFor();
+        }
+
+        void stop() {
+            if (process == null || !process.isAlive()) {
+                return;
+            }
+            try {
+                process.getOutputStream().close();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
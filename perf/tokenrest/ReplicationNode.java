@@ -0,0 +1,37 @@
+package tokenrest;
+
+import java.net.URI;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+/**
+ * One file server of ReplicationCluster, in a JVM of its own so that DocumentPaths, DocumentStore
+ * and ReplicationManager are configured for this node alone (-Dtokenrest.config). Serves the
+ * production resources on embedded Grizzly at http://127.0.0.1:&lt;port&gt;/api/, prints READY and
+ * runs until its standard input is closed or the process is killed.
+ */
+final class ReplicationNode {
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+
+        // As on server start: take the log directory and resume shipping what is logged
+        ReplicationManager.getInstance();
+
+        HttpServer server = GrizzlyHttpServerFactory.createHttpServer(
+                URI.create("http://127.0.0.1:" + port + "/api/"),
+                new ResourceConfig(SaveDocumentV2.class, AccessToDocumentV2.class, ReplicationV2.class,
+                        MetricsResource.class, CORSFilter.class, MetricsFilter.class));
+
+        System.out.println("READY");
+        System.out.flush();
+
+        while (System.in.read() != -1) {
+            // Until the cluster closes the pipe
+        }
+        server.shutdownNow();
+        ReplicationManager.getInstance().shutdown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,226 @@
+package tokenrest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the session_validation ORDS module (result and batch templates),
+ * built on the JDK HTTP server. Like apex/ords_apex_restful_curl.sql, the result template answers
+ * 200 {"is_valid":"1"} or 401 {"is_valid":"0"}. Sessions whose id starts with "bad" are invalid.
+ *
+ * Latency, a random share of invalid sessions and a rate of 500 errors can be injected, so the
+ * file server can be load tested without an APEX/ORDS stack. Run standalone with
+ * <pre>
+ * java -cp out -Dords.port=18080 -Dords.latency.ms=20 -Dords.latency.jitter.ms=30 \
+ *      -Dords.error.rate=0.01 -Dords.invalid.rate=0 tokenrest.StubOrds
+ * </pre>
+ * and point ORDS_VALIDATE_SESSION at http://host:18080/ords/validate_session/result.
+ */
+final class StubOrds {
+
+    static final String RESULT_PATH = "/ords/validate_session/result";
+    static final String BATCH_PATH = "/ords/validate_session/batch";
+
+    private static final Pattern SESSION_ID = Pattern.compile("\"session_id\":\"([^\"]*)\"");
+
+    static {
+        // Read once when the JDK server starts; without it Nagle and delayed ACKs add ~40 ms
+        // to every keep-alive exchange, which would swamp the injected latency
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private volatile long latencyMs;
+    private volatile long latencyJitterMs;
+    private volatile double errorRate;
+    private volatile double invalidRate;
+
+    StubOrds(int port, int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+
+        server.createContext(RESULT_PATH, this::handleResult);
+        server.createContext(BATCH_PATH, this::handleBatch);
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        StubOrds ords = fromSystemProperties(Integer.getInteger("ords.port", 18080),
+                Integer.getInteger("ords.threads", 64));
+        ords.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ords::stop));
+
+        System.out.println("Stub ORDS listening on " + ords.baseUrl() + RESULT_PATH
+                + " (latency " + ords.latencyMs + "+" + ords.latencyJitterMs + " ms, error rate "
+                + ords.errorRate + ", invalid rate " + ords.invalidRate + ")");
+    }
+
+    /**
+     * Stub configured from -Dords.latency.ms, -Dords.latency.jitter.ms, -Dords.error.rate and
+     * -Dords.invalid.rate.
+     */
+    static StubOrds fromSystemProperties(int port, int threads) throws IOException {
+        return new StubOrds(port, threads)
+                .withLatency(Long.getLong("ords.latency.ms", 0), Long.getLong("ords.latency.jitter.ms", 0))
+                .withErrorRate(Double.parseDouble(System.getProperty("ords.error.rate", "0")))
+                .withInvalidRate(Double.parseDouble(System.getProperty("ords.invalid.rate", "0")));
+    }
+
+    /**
+     * Delays every response by latencyMs plus a uniformly random 0..jitterMs.
+     */
+    StubOrds withLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Share of requests (0..1) answered with a 500, which the file server counts as an ORDS failure.
+     */
+    StubOrds withErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Share of otherwise valid sessions (0..1) reported invalid.
+     */
+    StubOrds withInvalidRate(double invalidRate) {
+        this.invalidRate = invalidRate;
+        return this;
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    long requestCount() {
+        return requests.get();
+    }
+
+    long injectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    // ============================================
+    // HANDLERS
+    // ============================================
+
+    /**
+     * GET result template: p_session_id header in, 200 {"is_valid":"1"} or 401 {"is_valid":"0"} out.
+     */
+    private void handleResult(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        drain(exchange.getRequestBody());
+
+        if (injectFault(exchange)) {
+            return;
+        }
+
+        String sessionId = exchange.getRequestHeaders().getFirst(ApexSessionValidator.HEADER_SESSION_ID);
+        boolean valid = isValid(sessionId);
+        respond(exchange, valid ? 200 : 401, "{\"is_valid\":\"" + (valid ? 1 : 0) + "\"}");
+    }
+
+    /**
+     * POST batch template: {"items":[{"session_id":..},..]} in, one idx/is_valid row per item out.
+     */
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String body = new String(drain(exchange.getRequestBody()), StandardCharsets.UTF_8);
+
+        if (injectFault(exchange)) {
+            return;
+        }
+
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        Matcher matcher = SESSION_ID.matcher(body);
+        int index = 0;
+
+        while (matcher.find()) {
+            index++;
+            json.append(index == 1 ? "" : ",")
+                    .append("{\"idx\":").append(index)
+                    .append(",\"is_valid\":\"").append(isValid(matcher.group(1)) ? 1 : 0).append("\"}");
+        }
+
+        respond(exchange, 200, json.append("]}").toString());
+    }
+
+    /**
+     * Sleeps for the configured latency, then answers 500 for the configured share of requests.
+     */
+    private boolean injectFault(HttpExchange exchange) throws IOException {
+        long delay = latencyMs + (latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 500, "{\"error\":\"injected failure\"}");
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isValid(String sessionId) {
+        if (sessionId == null || sessionId.startsWith("bad")) {
+            return false;
+        }
+        return invalidRate <= 0 || ThreadLocalRandom.current().nextDouble() >= invalidRate;
+    }
+
+    private static byte[] drain(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, bytesRead);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+}